@@ -7,8 +7,29 @@ grammar CssSelectors;
     import static com.threelevers.css.Combinator.*;
     import static com.threelevers.css.AttributeComparator.*;
     import static com.threelevers.css.NthExpressions.*;
+    import java.util.Collections;
     import java.util.List;
     import java.util.LinkedList;
+    import java.util.Map;
+}
+
+@parser::members {
+    private Map<String, String> namespaces = Collections.emptyMap();
+
+    /**
+     * Binds the namespace prefixes the selectors can use to the URIs of their namespaces.
+     */
+    void bind(Map<String, String> namespaces) {
+        this.namespaces = namespaces;
+    }
+
+    /**
+     * @return whether the next token is the identifier {@code of}, which is only a keyword between the argument and
+     *         the selectors of {@code :nth-child()} and {@code :nth-last-child()}, and a name everywhere else
+     */
+    private boolean nextIsOf() {
+        return input.LA(1) == IDENT && "of".equals(input.LT(1).getText());
+    }
 }
 
 @lexer::header {
@@ -21,7 +42,11 @@ selectors returns [GroupingSelector selector]
     ;
     
 selector returns [CombinableSelector selector]
-    : S* s=simple_selector { $selector = CssSelectors.selector($s.selector); }
+    : S* s=combined_selector { $selector = $s.selector; }
+    ;
+
+combined_selector returns [CombinableSelector selector]
+    : s=simple_selector { $selector = CssSelectors.selector($s.selector); }
       ( c=combinator s=simple_selector { 
         switch ($c.combinator) {
             case DESCENDANT:
@@ -48,8 +73,7 @@ combinator returns [Combinator combinator]
     ;
 
 simple_selector returns [SimpleSelector selector]
-    : ( type_selector { $selector = $type_selector.selector; } 
-      | universal { $selector = $universal.selector; } )
+    : type_selector { $selector = $type_selector.selector; }
       ( element_selector { $selector = $selector.and($element_selector.selector); } )*
     | e=element_selector { $selector = $e.selector; }
       ( e=element_selector { $selector.and($e.selector); })*
@@ -62,18 +86,22 @@ element_selector returns [ElementSelector selector]
     | pseudo_selector { $selector = $pseudo_selector.selector; }
     ;
 
-// not supporting namespaces at this time
+// namespace prefixes are bound when the selector is compiled, there is no @namespace rule
 type_selector returns [TypeSelector selector]
-    : /* ( namespace_prefix )? */ element_name { $selector = tag($element_name.text); }
+    : p=IDENT 
+      ( '|' n=type_name { 
+          $selector = tag($p.text, CssSelectorsParserHelper.namespace(namespaces, $p.text), $n.text); 
+        }
+      | { $selector = tag($p.text); } )
+    | '*' 
+      ( '|' n=type_name { $selector = tag("*", null, $n.text); }
+      | { $selector = any(); } )
+    | '|' n=type_name { $selector = tag("", "", $n.text); }
     ;
 
-element_name
+type_name
     : IDENT
-    ;
-
-// not supporting namespaces at this time
-universal returns [TypeSelector selector]
-    : /* ( namespace_prefix )? */ '*' { $selector = any(); }
+    | '*'
     ;
 
 
@@ -85,23 +113,44 @@ class_selector returns [ElementSelector selector]
     : '.' className=IDENT { $selector = cssClass($className.text); }
     ;
 
-// not supporting namespaces at this time
 attrib_selector returns [ElementSelector selector]
-    : '[' S* /* ( namespace_prefix )? */ attribName=IDENT { $selector = attrib($attribName.text); } S*
-      ( ( '=' S* v=STRING { $selector = ((AttributeSelector) selector).equalTo($v.text); }
-        | '^=' S* v=STRING { $selector = ((AttributeSelector) selector).startsWith($v.text); }
-        | '$=' S* v=STRING { $selector = ((AttributeSelector) selector).endsWith($v.text); }
-        | '*=' S* v=STRING { $selector = ((AttributeSelector) selector).contains($v.text); }
-        | '~=' S* v=STRING { $selector = ((AttributeSelector) selector).has($v.text); }
-        | '|=' S* v=STRING { $selector = ((AttributeSelector) selector).equalsLangSubcode($v.text); }
-        | '=' S* a=IDENT { $selector = ((AttributeSelector) selector).equalTo(attrib($a.text)); }
-        | '^=' S* a=IDENT { $selector = ((AttributeSelector) selector).startsWith(attrib($a.text)); }
-        | '$=' S* a=IDENT { $selector = ((AttributeSelector) selector).endsWith(attrib($a.text)); }
-        | '*=' S* a=IDENT { $selector = ((AttributeSelector) selector).contains(attrib($a.text)); }
-        | '~=' S* a=IDENT { $selector = ((AttributeSelector) selector).has(attrib($a.text)); }
-        | '|=' S* a=IDENT { $selector = ((AttributeSelector) selector).equalsLangSubcode(attrib($a.text)); }
-        ) S*
-      )? ']'
+    : '[' S*
+      ( attribName=IDENT { $selector = attrib($attribName.text); } S*
+        ( ( '=' S* v=STRING { $selector = ((AttributeSelector) selector).equalTo($v.text); }
+          | '^=' S* v=STRING { $selector = ((AttributeSelector) selector).startsWith($v.text); }
+          | '$=' S* v=STRING { $selector = ((AttributeSelector) selector).endsWith($v.text); }
+          | '*=' S* v=STRING { $selector = ((AttributeSelector) selector).contains($v.text); }
+          | '~=' S* v=STRING { $selector = ((AttributeSelector) selector).has($v.text); }
+          | '|=' S* v=STRING { $selector = ((AttributeSelector) selector).equalsLangSubcode($v.text); }
+          | '=' S* a=IDENT { $selector = ((AttributeSelector) selector).equalTo(attrib($a.text)); }
+          | '^=' S* a=IDENT { $selector = ((AttributeSelector) selector).startsWith(attrib($a.text)); }
+          | '$=' S* a=IDENT { $selector = ((AttributeSelector) selector).endsWith(attrib($a.text)); }
+          | '*=' S* a=IDENT { $selector = ((AttributeSelector) selector).contains(attrib($a.text)); }
+          | '~=' S* a=IDENT { $selector = ((AttributeSelector) selector).has(attrib($a.text)); }
+          | '|=' S* a=IDENT { $selector = ((AttributeSelector) selector).equalsLangSubcode(attrib($a.text)); }
+          ) S*
+        )?
+      | p=attrib_namespace n=IDENT { $selector = attrib($p.prefix, $p.namespace, $n.text); } S*
+        ( c=attrib_comparator S* v=STRING S* { 
+            $selector = attrib($p.prefix, $p.namespace, $n.text, $c.comparator, $v.text); 
+          } 
+        )?
+      ) ']'
+    ;
+
+attrib_namespace returns [String prefix, String namespace]
+    : ( p=IDENT { $prefix = $p.text; $namespace = CssSelectorsParserHelper.namespace(namespaces, $p.text); }
+      | '*' { $prefix = "*"; $namespace = null; }
+      | { $prefix = ""; $namespace = ""; } ) '|'
+    ;
+
+attrib_comparator returns [AttributeComparator comparator]
+    : '=' { $comparator = EQ; }
+    | '^=' { $comparator = STARTS_WITH; }
+    | '$=' { $comparator = ENDS_WITH; }
+    | '*=' { $comparator = CONTAINS; }
+    | '~=' { $comparator = HAS; }
+    | '|=' { $comparator = EQUALS_LANG_SUBCODE; }
     ;
 
 pseudo_selector returns [ElementSelector selector]
@@ -131,50 +180,38 @@ functional_pseudo_selector returns [ElementSelector selector]
     | 'disabled' { $selector = disabled(); }
     | 'checked' { $selector = checked(); }
     | 'selected' { $selector = selected(); }
+    | relational { $selector = $relational.selector; }
+    | text_pseudo_selector { $selector = $text_pseudo_selector.selector; }
+    | 'lang(' S* ( v=IDENT | v=STRING ) S* ')' { $selector = lang($v.text); }
     ;
     
 nth_child returns [ElementSelector selector]
-    : 'nth-child(' S*
-      ( nth_expr {
-          NthExpression nthExpr = CssSelectorsParserHelper.parseNthExpression($nth_expr.text);
-          $selector = nthChild(nthExpr); 
-        }
-      | 'odd' S* { $selector = nthChild(odd); }
-      | 'even' S* { $selector = nthChild(even); }
-      ) ')'
+    : 'nth-child(' S* a=nth_argument { $selector = nthChild($a.expr); }
+      ( {nextIsOf()}?=> IDENT s=nth_of { $selector = nthChild($a.expr, $s.selector); } )? ')'
     ;
     
 nth_last_child returns [ElementSelector selector]
-    : 'nth-last-child(' S*
-      ( nth_expr {
-          NthExpression nthExpr = CssSelectorsParserHelper.parseNthExpression($nth_expr.text);
-          $selector = nthLastChild(nthExpr); 
-        }
-      | 'odd' S* { $selector = nthLastChild(odd); }
-      | 'even' S* { $selector = nthLastChild(even); }
-      ) ')'
+    : 'nth-last-child(' S* a=nth_argument { $selector = nthLastChild($a.expr); }
+      ( {nextIsOf()}?=> IDENT s=nth_of { $selector = nthLastChild($a.expr, $s.selector); } )? ')'
     ;
       
 nth_of_type returns [ElementSelector selector]
-    : 'nth-of-type(' S*
-      ( nth_expr {
-          NthExpression nthExpr = CssSelectorsParserHelper.parseNthExpression($nth_expr.text);
-          $selector = nthOfType(nthExpr); 
-        }
-      | 'odd' S* { $selector = nthOfType(odd); }
-      | 'even' S* { $selector = nthOfType(even); }
-      ) ')'
+    : 'nth-of-type(' S* a=nth_argument ')' { $selector = nthOfType($a.expr); }
     ;
 
 nth_last_of_type returns [ElementSelector selector]
-    : 'nth-last-of-type(' S*
-      ( nth_expr {
-          NthExpression nthExpr = CssSelectorsParserHelper.parseNthExpression($nth_expr.text);
-          $selector = nthLastOfType(nthExpr); 
-        }
-      | 'odd' S* { $selector = nthLastOfType(odd); }
-      | 'even' S* { $selector = nthLastOfType(even); }
-      ) ')'
+    : 'nth-last-of-type(' S* a=nth_argument ')' { $selector = nthLastOfType($a.expr); }
+    ;
+
+nth_of returns [GroupingSelector selector]
+    : s=selector { $selector = CssSelectors.selectors($s.selector); }
+      (',' s=selector { $selector = $selector.or($s.selector); } )*
+    ;
+
+nth_argument returns [NthExpression expr]
+    : nth_expr { $expr = CssSelectorsParserHelper.parseNthExpression($nth_expr.text); }
+    | 'odd' S* { $expr = odd; }
+    | 'even' S* { $expr = even; }
     ;
 
 // NOTE: this is the way i'd like to do the nth_expr, but i can't figure out how to make antlr not see -n and n-1 in
@@ -188,7 +225,38 @@ nth_last_of_type returns [ElementSelector selector]
 //    ;
 
 nth_expr
-    : ( ( '+' | '-' | NUMBER | STRING | IDENT ) S* )+ 
+    : ( ( '+' | '-' | NUMBER | STRING | {!nextIsOf()}?=> IDENT ) S* )+ 
+    ;
+
+text_pseudo_selector returns [ElementSelector selector]
+@init { boolean ignoreCase = false; }
+    : 'contains(' S* v=STRING S* 
+      ( f=IDENT S* { ignoreCase = CssSelectorsParserHelper.isIgnoreCaseFlag($f.text); } )? ')' {
+        $selector = contains($v.text, ignoreCase);
+      }
+    | '-text-matches(' S* v=STRING S* 
+      ( f=IDENT S* { ignoreCase = CssSelectorsParserHelper.isIgnoreCaseFlag($f.text); } )? ')' {
+        $selector = textMatches($v.text, ignoreCase);
+      }
+    ;
+
+relational returns [ElementSelector selector]
+@init { List<RelativeSelector> selectors = new LinkedList<RelativeSelector>(); }
+    : 'has(' r=relative_selector { selectors.add($r.selector); } 
+      ( ',' r=relative_selector { selectors.add($r.selector); } )* ')' { $selector = has(selectors); }
+    ;
+
+relative_selector returns [RelativeSelector selector]
+@init { Combinator combinator = DESCENDANT; }
+    : S* ( c=relative_combinator { combinator = $c.combinator; } )? s=combined_selector {
+        $selector = relative(combinator, $s.selector);
+      }
+    ;
+
+relative_combinator returns [Combinator combinator]
+    : ( '+' { $combinator = ADJACENT; }
+      | '>' { $combinator = CHILDOF; }
+      | '~' { $combinator = SIBLING; } ) S*
     ;
 
 negation returns [ElementSelector selector ]
@@ -197,7 +265,6 @@ negation returns [ElementSelector selector ]
 
 negation_arg returns [ElementSelector selector]
     : type_selector { $selector = $type_selector.selector; }
-    | universal { $selector = $universal.selector; }
     | id_selector { $selector = $id_selector.selector; }
     | class_selector { $selector = $class_selector.selector; }
     | attrib_selector { $selector = $attrib_selector.selector; }
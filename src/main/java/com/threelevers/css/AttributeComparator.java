@@ -1,7 +1,5 @@
 package com.threelevers.css;
 
-import static java.util.Arrays.*;
-
 enum AttributeComparator {
     EQ("=", new Comparator() { public boolean compare(String lhs, String rhs) {
         return lhs.equals(rhs);
@@ -20,13 +18,19 @@ enum AttributeComparator {
     }}),
     
     HAS("~=",  new  Comparator() { public boolean compare(String lhs, String rhs) {
-        return asList(lhs.split("\\s")).contains(rhs);
+        return lhs.length() < LONG_VALUE ? containsWord(lhs, rhs) : findWord(lhs, rhs);
     }}),
     
     EQUALS_LANG_SUBCODE("|=",  new  Comparator() { public boolean compare(String lhs, String rhs) {
-        return lhs.equals(rhs) || lhs.startsWith(rhs + "-");
+        return lhs.startsWith(rhs) && (lhs.length() == rhs.length() || lhs.charAt(rhs.length()) == '-');
     }});
     
+    /**
+     * Length from which a list of words is searched for a word with {@link String#indexOf(String, int)}, which the JVM
+     * compiles to vector instructions where the processor has them, instead of being scanned a character at a time.
+     */
+    static final int LONG_VALUE = 64;
+    
     private final String symbol;
     private final Comparator comparator;
 
@@ -43,6 +47,56 @@ enum AttributeComparator {
         return comparator.compare(lhs, rhs);
     }
     
+    /**
+     * Looks for the word among the white space separated words of the list without splitting it up.
+     */
+    static boolean containsWord(String list, String word) {
+        int length = word.length();
+        int i = 0;
+        while (i < list.length()) {
+            while (i < list.length() && isSpace(list.charAt(i))) {
+                i++;
+            }
+            int end = i;
+            while (end < list.length() && !isSpace(list.charAt(end))) {
+                end++;
+            }
+            if (end - i == length && list.regionMatches(i, word, 0, length)) {
+                return true;
+            }
+            i = end;
+        }
+        return length == 0 && list.length() == 0;
+    }
+
+    /**
+     * Same as {@link #containsWord(String, String)}, but only stops at the occurrences of the word in the list, found by
+     * searching for the whole word at once, to check that white space or the ends of the list surround them.
+     */
+    static boolean findWord(String list, String word) {
+        int length = word.length();
+        if (length == 0) {
+            return containsWord(list, word);
+        }
+        for (int i = 0; i < length; i++) {
+            if (isSpace(word.charAt(i))) {
+                return false;
+            }
+        }
+        for (int i = list.indexOf(word); i >= 0; i = list.indexOf(word, i + 1)) {
+            boolean startsWord = i == 0 || isSpace(list.charAt(i - 1));
+            boolean endsWord = i + length == list.length() || isSpace(list.charAt(i + length));
+            if (startsWord && endsWord) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+    
     private interface Comparator {
         boolean compare(String lhs, String rhs);
     }
@@ -8,6 +8,7 @@ import org.w3c.dom.Element;
 
 import com.google.common.base.Function;
 import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
 import com.threelevers.css.CssSelectors.SimpleSelector;
 
 enum Combinator {
@@ -41,18 +42,34 @@ enum Combinator {
         this.times = times;
     }
     
-    boolean matches(CombinatorSelector lhs, SimpleSelector rhs, Element element) {
+    boolean matches(CombinatorSelector lhs, SimpleSelector rhs, Element element, MatchContext context) {
         checkNotNull(lhs);
         checkNotNull(rhs);
         checkNotNull(element);
         
-        if (!rhs.matches(element)) {
-            return false;
+        context.evaluated();
+        return rhs.matches(element, context) && matchesLeft(lhs, element, context);
+    }
+
+    /**
+     * Same as {@link #matches(CombinatorSelector, SimpleSelector, Element, MatchContext)} for an element already
+     * known to match the right hand side, whose evaluation is charged by whoever matched it.
+     */
+    boolean matchesLeft(CombinatorSelector lhs, Element element, MatchContext context) {
+        if (this == ADJACENT) {
+            Element prev = previous(element);
+            return prev != null && context.matches(prev, lhs);
+        }
+        if (this == SIBLING) {
+            return context.precededBy(element, lhs);
+        }
+        if (this == DESCENDANT && context.numbering() != null && lhs instanceof NoCombinatorSelectorImpl) {
+            return context.descendsFrom(element, lhs);
         }
         Element prev = element;
         int i = 0;
         while ((prev = traverser.apply(prev)) != null && i++ < times) {
-            if (lhs.matches(prev)) {
+            if (lhs.matches(prev, context)) {
                 return true;
             }
         }
@@ -0,0 +1,20 @@
+package com.threelevers.css;
+
+import com.threelevers.css.CssSelectors.SimpleSelector;
+
+/**
+ * Estimates how many elements the parts of a compound match, for planning queries.
+ */
+interface CostModel {
+    /**
+     * @param part one of the selectors of a compound, such as a type, id, class or attribute selector
+     * @return the estimated share of the elements matching the part, which is only 0 when none of them can
+     */
+    double selectivity(SimpleSelector part);
+
+    /**
+     * @return the largest share of the elements a compound can be expected to match and still be worth narrowing a
+     *         query to the subtrees under the elements it matches
+     */
+    double anchorLimit();
+}
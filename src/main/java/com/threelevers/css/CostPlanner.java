@@ -0,0 +1,127 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.CssSelectors.selector;
+import static com.threelevers.css.CssSelectors.selectors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.GroupingSelector;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+
+/**
+ * Rewrites selectors into equivalent ones that are cheaper to run against a document, given what a {@link CostModel}
+ * knows about it. The selectors of each compound are put in order of increasing selectivity so that the compound
+ * fails on the part most elements don't match first, leaving expensive pseudo-classes that can't be estimated for
+ * last.
+ */
+final class CostPlanner {
+    private CostPlanner() {}
+
+    /**
+     * @return the selector with the parts of its compounds reordered, or the selector itself if it isn't one this
+     *         planner knows how to take apart
+     */
+    static CssSelector plan(CssSelector selector, CostModel model) {
+        if (selector instanceof GroupingSelectorImpl) {
+            GroupingSelector planned = null;
+            for (CombinableSelector combinable : ((GroupingSelectorImpl) selector).selectors) {
+                CombinableSelector p = plan(combinable, model);
+                planned = planned == null ? selectors(p) : planned.or(p);
+            }
+            return planned;
+        }
+        if (selector instanceof CombinableSelectorImpl) {
+            return plan((CombinableSelector) selector, model);
+        }
+        return selector;
+    }
+
+    /**
+     * @return the estimated share of the elements matching all the parts of the compound
+     */
+    static double selectivity(SimpleSelector compound, CostModel model) {
+        double selectivity = 1;
+        for (SimpleSelector part : ScopePlanner.parts(compound)) {
+            selectivity *= model.selectivity(part);
+        }
+        return selectivity;
+    }
+
+    private static CombinableSelector plan(CombinableSelector selector, CostModel model) {
+        if (!(selector instanceof CombinableSelectorImpl)) {
+            return selector;
+        }
+        List<CombinatorSelectorImpl> steps = new LinkedList<CombinatorSelectorImpl>();
+        CombinatorSelector step = ((CombinableSelectorImpl) selector).selector;
+        while (step instanceof CombinatorSelectorImpl) {
+            steps.add(0, (CombinatorSelectorImpl) step);
+            step = ((CombinatorSelectorImpl) step).lhs;
+        }
+        if (!(step instanceof NoCombinatorSelectorImpl)) {
+            return selector;
+        }
+        CombinableSelector planned = selector(order(((NoCombinatorSelectorImpl) step).selector, model));
+        for (CombinatorSelectorImpl s : steps) {
+            SimpleSelector rhs = order(s.rhs, model);
+            switch (s.combinator) {
+                case DESCENDANT:
+                    planned = planned.ancestorOf(rhs);
+                    break;
+                case CHILDOF:
+                    planned = planned.parentOf(rhs);
+                    break;
+                case ADJACENT:
+                    planned = planned.adjacentTo(rhs);
+                    break;
+                case SIBLING:
+                    planned = planned.siblingOf(rhs);
+                    break;
+            }
+        }
+        return planned;
+    }
+
+    private static SimpleSelector order(SimpleSelector compound, final CostModel model) {
+        if (!(compound instanceof SimpleSelectorImpl)) {
+            return compound;
+        }
+        List<SimpleSelector> parts = new ArrayList<SimpleSelector>();
+        for (SimpleSelector part : ((SimpleSelectorImpl) compound).selectors) {
+            parts.add(part);
+        }
+        Collections.sort(parts, new Comparator<SimpleSelector>() {
+            public int compare(SimpleSelector a, SimpleSelector b) {
+                return Double.compare(model.selectivity(a), model.selectivity(b));
+            }
+        });
+        return new OrderedSelectorImpl(parts, compound);
+    }
+
+    /**
+     * A compound matching its parts in a different order than they were written in. It still prints the way it was
+     * written.
+     */
+    private static final class OrderedSelectorImpl extends SimpleSelectorImpl {
+        private final SimpleSelector written;
+
+        OrderedSelectorImpl(Iterable<SimpleSelector> selectors, SimpleSelector written) {
+            super(selectors);
+            this.written = written;
+        }
+
+        public String toString() {
+            return written.toString();
+        }
+    }
+}
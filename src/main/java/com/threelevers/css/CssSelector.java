@@ -4,4 +4,10 @@ import org.w3c.dom.Element;
 
 interface CssSelector {
     boolean matches(Element element);
-}
\ No newline at end of file
+
+    /**
+     * Same as {@link #matches(Element)}, but lets selectors share work through the context for as long as it lives.
+     * The context must not be used across changes to the document.
+     */
+    boolean matches(Element element, MatchContext context);
+}
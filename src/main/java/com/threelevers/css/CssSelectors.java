@@ -15,33 +15,96 @@ import static com.threelevers.css.Combinator.SIBLING;
 import static com.threelevers.css.Nodes.*;
 import static com.threelevers.css.Elements.*;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
 
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import static com.google.common.collect.Iterables.*;
 
 final class CssSelectors {
     private CssSelectors() {}
     
+    private static final ConcurrentMap<String, GroupingSelector> precompiled = new ConcurrentHashMap<String, GroupingSelector>();
+    
     static GroupingSelector selectors(String selectors) {
         checkNotNull(selectors);
+        GroupingSelector selector = precompiled.get(selectors);
+        SelectorStatistics statistics = SelectorStatistics.current();
+        if (statistics != null) {
+            statistics.looked(selector != null);
+        }
+        if (selector != null) {
+            return selector;
+        }
+        return parse(selectors);
+    }
+    
+    /**
+     * Same as {@link #selectors(String)}, with the namespace prefixes used by the selectors bound to the URIs they're
+     * mapped to.
+     */
+    static GroupingSelector selectors(String selectors, Map<String, String> namespaces) {
+        checkNotNull(namespaces);
+        if (namespaces.isEmpty()) {
+            return selectors(selectors);
+        }
+        return parse(selectors, namespaces);
+    }
+    
+    static GroupingSelector parse(String selectors) {
+        return parse(selectors, ImmutableMap.<String, String>of());
+    }
+    
+    static GroupingSelector parse(String selectors, Map<String, String> namespaces) {
+        checkNotNull(selectors);
+        checkNotNull(namespaces);
         
         CssSelectorsLexer lex = new CssSelectorsLexer(new ANTLRStringStream(selectors));
         CommonTokenStream tokens = new CommonTokenStream(lex);
 
         CssSelectorsParser parser = new CssSelectorsParser(tokens);
+        parser.bind(namespaces);
+        SelectorStatistics statistics = SelectorStatistics.current();
+        long start = statistics == null ? 0 : System.nanoTime();
         try {
             return parser.selectors();
         } catch (RecognitionException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (statistics != null) {
+                statistics.parsed(System.nanoTime() - start);
+            }
         }
     }
     
+    /**
+     * Registers an already compiled selector so that looking up its source text skips the lexer and parser.
+     */
+    static void precompiled(String source, GroupingSelector selector) {
+        checkNotNull(source);
+        checkNotNull(selector);
+        precompiled.put(source, selector);
+    }
+    
+    static int precompiledCount() {
+        return precompiled.size();
+    }
+    
     static GroupingSelector selectors(CombinableSelector selector) {
         checkNotNull(selector);
         return new GroupingSelectorImpl(selector);
@@ -57,6 +120,17 @@ final class CssSelectors {
         return new TypSelectorImpl(tagName);
     }
         
+    /**
+     * @param prefix the namespace prefix as written, {@code "*"} for any namespace and {@code ""} for none
+     * @param namespace URI of the namespace, {@code null} for any namespace and {@code ""} for none
+     * @param localName local name of the elements, or {@code "*"} for any
+     */
+    static TypeSelector tag(String prefix, String namespace, String localName) {
+        checkNotNull(prefix);
+        checkNotBlank(localName);
+        return new NamespacedTypeSelector(prefix, namespace, localName);
+    }
+        
     static TypeSelector any() {
         return any;
     }
@@ -76,11 +150,84 @@ final class CssSelectors {
         return new HasAttributeSelectorImpl(attribName);
     }
     
+    /**
+     * Same as {@link #tag(String, String, String)} for the attribute with the local name in the namespace.
+     */
+    static ElementSelector attrib(String prefix, String namespace, String localName) {
+        checkNotNull(prefix);
+        checkNotBlank(localName);
+        return new NamespacedAttributeSelectorImpl(prefix, namespace, localName, null, null);
+    }
+    
+    static ElementSelector attrib(String prefix, String namespace, String localName, AttributeComparator comparator, String value) {
+        checkNotNull(prefix);
+        checkNotBlank(localName);
+        checkNotNull(comparator);
+        checkNotNull(value);
+        return new NamespacedAttributeSelectorImpl(prefix, namespace, localName, comparator, value);
+    }
+    
     static ElementSelector not(ElementSelector selector) {
         checkNotNull(selector);
         return new NotPseudoSelector(selector);
     }
     
+    static ElementSelector has(CombinableSelector selector) {
+        return has(relative(DESCENDANT, selector));
+    }
+    
+    static ElementSelector has(RelativeSelector selector) {
+        checkNotNull(selector);
+        return has(ImmutableList.of(selector));
+    }
+    
+    static ElementSelector has(Iterable<RelativeSelector> selectors) {
+        checkNotNull(selectors);
+        checkArgument(!isEmpty(selectors), ":has() needs at least one selector");
+        return new HasPseudoSelector(ImmutableList.copyOf(selectors));
+    }
+    
+    /**
+     * Equivalent to ":contains(text)", which matches elements whose text content, with its white space collapsed,
+     * contains the text.
+     */
+    static ElementSelector contains(String text) {
+        return contains(text, false);
+    }
+    
+    static ElementSelector contains(String text, boolean ignoreCase) {
+        checkNotNull(text);
+        return new ContainsPseudoSelector(text, ignoreCase);
+    }
+    
+    /**
+     * Equivalent to ":-text-matches(regex)", which matches elements whose text content, with its white space
+     * collapsed, contains a match for the regular expression.
+     */
+    static ElementSelector textMatches(String regex) {
+        return textMatches(regex, false);
+    }
+    
+    static ElementSelector textMatches(String regex, boolean ignoreCase) {
+        checkNotNull(regex);
+        return new TextMatchesPseudoSelector(regex, ignoreCase);
+    }
+    
+    /**
+     * Equivalent to ":lang(range)", which matches elements whose language, inherited from their ancestors when they
+     * don't have a lang attribute of their own, is the language range or starts with it followed by a "-".
+     */
+    static ElementSelector lang(String range) {
+        checkNotBlank(range);
+        return new LangPseudoSelector(range);
+    }
+    
+    static RelativeSelector relative(Combinator combinator, CombinableSelector selector) {
+        checkNotNull(combinator);
+        checkNotNull(selector);
+        return new RelativeSelector(combinator, selector);
+    }
+    
     static ElementSelector nthChild(int a) {
         return nthChild(a, 0);
     }
@@ -90,7 +237,17 @@ final class CssSelectors {
     }
     
     static ElementSelector nthChild(NthExpression expr) {
-        return new NthChildPseudoSelector(expr);
+        checkNotNull(expr);
+        return new NthChildPseudoSelector(expr, null);
+    }
+    
+    /**
+     * Equivalent to ":nth-child(an+b of S)", which counts only the siblings matching S.
+     */
+    static ElementSelector nthChild(NthExpression expr, GroupingSelector of) {
+        checkNotNull(expr);
+        checkNotNull(of);
+        return new NthChildPseudoSelector(expr, of);
     }
     
     static ElementSelector nthLastChild(int a) {
@@ -102,7 +259,17 @@ final class CssSelectors {
     }
     
     static ElementSelector nthLastChild(NthExpression expr) {
-        return new NthLastChildPseudoSelector(expr);
+        checkNotNull(expr);
+        return new NthLastChildPseudoSelector(expr, null);
+    }
+    
+    /**
+     * Equivalent to ":nth-last-child(an+b of S)", which counts only the siblings matching S.
+     */
+    static ElementSelector nthLastChild(NthExpression expr, GroupingSelector of) {
+        checkNotNull(expr);
+        checkNotNull(of);
+        return new NthLastChildPseudoSelector(expr, of);
     }
     
     static ElementSelector firstChild() {
@@ -175,22 +342,30 @@ final class CssSelectors {
         GroupingSelector or(CombinableSelector selector);
     }
     
-    private static class GroupingSelectorImpl implements GroupingSelector {
+    static class GroupingSelectorImpl implements GroupingSelector {
 
-        private final Iterable<CombinableSelector> selectors;
+        final Iterable<CombinableSelector> selectors;
+        private final CombinableSelector[] alternatives;
+        /** the text of the selectors, kept once worked out since the statistics of every query are keyed on it */
+        private String source;
         
         GroupingSelectorImpl(CombinableSelector selector) {
-            selectors = ImmutableList.of(selector);
+            this(ImmutableList.of(selector));
         }
         
         private GroupingSelectorImpl(Iterable<CombinableSelector>  selectors) {
             this.selectors = selectors;
+            this.alternatives = toArray(selectors, CombinableSelector.class);
         }
 
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element);
-            for (CssSelector selector : selectors) {
-                if (selector.matches(element)) {
+            for (int i = 0; i < alternatives.length; i++) {
+                if (alternatives[i].matches(element, context)) {
                     return true;
                 }
             }
@@ -203,6 +378,9 @@ final class CssSelectors {
         }
 
         public String toString() {
+            if (source != null) {
+                return source;
+            }
             StringBuilder sb = new StringBuilder();
             for (Iterator<? extends CssSelector> it = selectors.iterator(); it.hasNext(); ) {
                 sb.append(it.next());
@@ -210,7 +388,8 @@ final class CssSelectors {
                     sb.append(", ");
                 }
             }
-            return sb.toString();
+            source = sb.toString();
+            return source;
         }
     }
 
@@ -248,8 +427,8 @@ final class CssSelectors {
         CombinableSelector siblingOf(SimpleSelector selector);
     }
     
-    private static class CombinableSelectorImpl implements CombinableSelector {
-        private final CombinatorSelector selector;
+    static class CombinableSelectorImpl implements CombinableSelector {
+        final CombinatorSelector selector;
 
         public CombinableSelectorImpl(SimpleSelector selector) {
             this(new NoCombinatorSelectorImpl(selector));
@@ -260,8 +439,12 @@ final class CssSelectors {
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element);
-            return selector.matches(element);
+            return selector.matches(element, context);
         }
         
         public CombinableSelector ancestorOf(SimpleSelector selector) {
@@ -291,27 +474,32 @@ final class CssSelectors {
     
     interface CombinatorSelector extends CssSelector {}
     
-    private static class NoCombinatorSelectorImpl implements CombinatorSelector {
-        private final SimpleSelector selector;
+    static class NoCombinatorSelectorImpl implements CombinatorSelector {
+        final SimpleSelector selector;
 
         NoCombinatorSelectorImpl(SimpleSelector selector) {
             this.selector = selector;
         }
 
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element);
-            return selector.matches(element);
+            context.evaluated();
+            return selector.matches(element, context);
         }
-        
+
         public String toString() {
             return selector.toString();
         }
     }
-    
-    private static class CombinatorSelectorImpl implements CombinatorSelector {
-        private final CombinatorSelector lhs;
-        private final Combinator combinator;
-        private final SimpleSelector rhs;
+
+    static class CombinatorSelectorImpl implements CombinatorSelector {
+        final CombinatorSelector lhs;
+        final Combinator combinator;
+        final SimpleSelector rhs;
 
         CombinatorSelectorImpl(CombinatorSelector lhs, Combinator combinator, SimpleSelector rhs) {
             this.lhs = lhs;
@@ -320,7 +508,15 @@ final class CssSelectors {
         }
 
         public boolean matches(Element element) {
-            return combinator.matches(lhs, rhs, element);
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
+            return combinator.matches(lhs, rhs, element, context);
+        }
+
+        boolean matchesLeft(Element element, MatchContext context) {
+            return combinator.matchesLeft(lhs, element, context);
         }
         
         public String toString() {
@@ -330,7 +526,11 @@ final class CssSelectors {
     
     interface ElementSelector extends SimpleSelector {}
 
-    private static abstract class AbstractElementSelector implements ElementSelector {
+    static abstract class AbstractElementSelector implements ElementSelector {
+        public boolean matches(Element element, MatchContext context) {
+            return matches(element);
+        }
+
         public SimpleSelector and(ElementSelector selector) {
             checkNotNull(selector);
             return new SimpleSelectorImpl(this).and(selector);
@@ -347,26 +547,32 @@ final class CssSelectors {
         SimpleSelector and(ElementSelector selector);
     }
         
-    private static class SimpleSelectorImpl implements SimpleSelector {
-        private final Iterable<SimpleSelector> selectors;
+    static class SimpleSelectorImpl implements SimpleSelector {
+        final Iterable<SimpleSelector> selectors;
+        private final SimpleSelector[] parts;
         
         SimpleSelectorImpl(SimpleSelector selector) {
-            selectors = ImmutableList.of(selector);
+            this(ImmutableList.of(selector));
         }
         
-        private SimpleSelectorImpl(Iterable<SimpleSelector> selectors) {
+        SimpleSelectorImpl(Iterable<SimpleSelector> selectors) {
             this.selectors = selectors;
+            this.parts = toArray(selectors, SimpleSelector.class);
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element);
-            for (CssSelector selector : selectors) {
-                if (!selector.matches(element)) {
+            for (int i = 0; i < parts.length; i++) {
+                if (!parts[i].matches(element, context)) {
                     return false;
                 }
             }
             return true;
-        }        
+        }
         
         public SimpleSelector and(ElementSelector selector) {
             checkNotNull(selector);
@@ -384,16 +590,25 @@ final class CssSelectors {
     
     interface TypeSelector extends ElementSelector {}
     
-    private static class TypSelectorImpl extends AbstractElementSelector implements TypeSelector {
-        private final String tagName;
+    /**
+     * Matches elements by their local name in any namespace, ignoring case. The name is interned along with its upper
+     * and lower case forms, so the names most parsers produce are matched by identity.
+     */
+    static class TypSelectorImpl extends AbstractElementSelector implements TypeSelector {
+        final String tagName;
+        private final String upper;
+        private final String lower;
         
         TypSelectorImpl(String tagName) {
-            this.tagName = tagName;
+            this.tagName = tagName.intern();
+            this.upper = tagName.toUpperCase(Locale.ENGLISH).intern();
+            this.lower = tagName.toLowerCase(Locale.ENGLISH).intern();
         }
         
         public boolean matches(Element element) {
             checkNotNull(element);
-            return element.getTagName().equalsIgnoreCase(tagName);
+            String name = localName(element);
+            return name == lower || name == upper || name == tagName || name.equalsIgnoreCase(tagName);
         }
         
         public String toString() {
@@ -413,15 +628,42 @@ final class CssSelectors {
         }
     }
 
-    private static class IdSelector extends AbstractElementSelector implements ElementSelector {
-        private final String id;
+    /**
+     * Matches elements by namespace and local name. Both are compared case-sensitively, by identity first since
+     * namespace aware parsers intern them. Elements created without namespaces are in no namespace, and their names
+     * are compared ignoring case.
+     */
+    static final class NamespacedTypeSelector extends AbstractElementSelector implements TypeSelector {
+        final String prefix;
+        final String namespace;
+        final String localName;
+
+        NamespacedTypeSelector(String prefix, String namespace, String localName) {
+            this.prefix = prefix;
+            this.namespace = namespace == null ? null : namespace.intern();
+            this.localName = localName.intern();
+        }
+
+        public boolean matches(Element element) {
+            checkNotNull(element);
+            return inNamespace(element, namespace) && ("*".equals(localName) || hasLocalName(element, localName));
+        }
+
+        public String toString() {
+            return prefix + "|" + localName;
+        }
+    }
+
+    static class IdSelector extends AbstractElementSelector implements ElementSelector {
+        final String id;
 
         public IdSelector(String id) {
             this.id = id;
         }
         
         public boolean matches(Element element) {
-            return attrib("id").equalTo(id).matches(element);
+            checkNotNull(element);
+            return element.hasAttribute("id") && EQ.compare(element.getAttribute("id"), id);
         }
         
         public String toString() {
@@ -429,15 +671,16 @@ final class CssSelectors {
         }
     }
     
-    private static class ClassSelector extends AbstractElementSelector implements ElementSelector {
-        private final String className;
+    static class ClassSelector extends AbstractElementSelector implements ElementSelector {
+        final String className;
 
         public ClassSelector(String className) {
             this.className = className;
         }
         
         public boolean matches(Element element) {
-            return attrib("class").has(className).matches(element);
+            checkNotNull(element);
+            return element.hasAttribute("class") && HAS.compare(element.getAttribute("class"), className);
         }
         
         public String toString() {
@@ -550,8 +793,8 @@ final class CssSelectors {
         ElementSelector equalsLangSubcode(AttributeSelector attrib);
     }
     
-    private static final class HasAttributeSelectorImpl extends AbstractElementSelector implements AttributeSelector {
-        private final String attribName;
+    static final class HasAttributeSelectorImpl extends AbstractElementSelector implements AttributeSelector {
+        final String attribName;
 
         HasAttributeSelectorImpl(String attribName) {
             this.attribName = attribName;
@@ -631,10 +874,10 @@ final class CssSelectors {
         }
     }
     
-    private static final class AttributeComparedToStringSelectorImpl extends AbstractElementSelector {
-        private final String attribName;
-        private final String value;
-        private final AttributeComparator comparator;
+    static final class AttributeComparedToStringSelectorImpl extends AbstractElementSelector {
+        final String attribName;
+        final String value;
+        final AttributeComparator comparator;
 
         public AttributeComparedToStringSelectorImpl(String attribName, AttributeComparator comparator, String value) {
             this.attribName = attribName;
@@ -655,10 +898,52 @@ final class CssSelectors {
         }
     }
     
-    private static final class AttributeComparedToAttributeSelectorImpl extends AbstractElementSelector {
-        private final String lhsAttribName;
-        private final AttributeComparator comparator;
-        private final String rhsAttribName;
+    /**
+     * Matches elements with an attribute in a namespace, optionally comparing its value to a string.
+     */
+    static final class NamespacedAttributeSelectorImpl extends AbstractElementSelector {
+        final String prefix;
+        final String namespace;
+        final String localName;
+        final AttributeComparator comparator;
+        final String value;
+
+        NamespacedAttributeSelectorImpl(String prefix, String namespace, String localName, AttributeComparator comparator, String value) {
+            this.prefix = prefix;
+            this.namespace = namespace == null ? null : namespace.intern();
+            this.localName = localName.intern();
+            this.comparator = comparator;
+            this.value = value;
+        }
+
+        public boolean matches(Element element) {
+            checkNotNull(element);
+            if (namespace != null) {
+                return matches(element.getAttributeNodeNS(namespace.length() == 0 ? null : namespace, localName));
+            }
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                if (hasLocalName(attribute, localName) && matches(attribute)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(Node attribute) {
+            return attribute != null && (comparator == null || comparator.compare(attribute.getNodeValue(), value));
+        }
+
+        public String toString() {
+            return '[' + prefix + "|" + localName + (comparator == null ? "" : comparator + "\"" + value + '"') + ']';
+        }
+    }
+    
+    static final class AttributeComparedToAttributeSelectorImpl extends AbstractElementSelector {
+        final String lhsAttribName;
+        final AttributeComparator comparator;
+        final String rhsAttribName;
 
         public AttributeComparedToAttributeSelectorImpl(String lhsAttribName, AttributeComparator comparator, String rhsAttribName) {
             this.lhsAttribName = lhsAttribName;
@@ -679,16 +964,20 @@ final class CssSelectors {
         }
     }
     
-    private static final class NotPseudoSelector extends AbstractElementSelector {
-        private final ElementSelector selector;
+    static final class NotPseudoSelector extends AbstractElementSelector {
+        final ElementSelector selector;
 
         public NotPseudoSelector(ElementSelector selector) {
             this.selector = selector;
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
-            return !selector.matches(element);
+            return !selector.matches(element, context);
         }
         
         public String toString() {
@@ -696,47 +985,302 @@ final class CssSelectors {
         }
     }
     
-    private static class NthChildPseudoSelector extends AbstractElementSelector {
-        private final NthExpression expr;
+    static final class ContainsPseudoSelector extends AbstractElementSelector {
+        final String text;
+        final boolean ignoreCase;
+        private final String needle;
+
+        ContainsPseudoSelector(String text, boolean ignoreCase) {
+            this.text = text;
+            this.ignoreCase = ignoreCase;
+            String normalized = TextIndex.normalize(text);
+            this.needle = ignoreCase ? TextIndex.fold(normalized) : normalized;
+        }
+        
+        public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
+            checkNotNull(element, "element");
+            return context.text().contains(element, needle, ignoreCase);
+        }
+        
+        public String toString() {
+            return ":contains(\"" + text + (ignoreCase ? "\" i)" : "\")");
+        }
+    }
+    
+    static final class LangPseudoSelector extends AbstractElementSelector {
+        final String range;
+
+        LangPseudoSelector(String range) {
+            this.range = range;
+        }
+        
+        public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
+            checkNotNull(element, "element");
+            return matchesRange(context.language(element), range);
+        }
+        
+        /**
+         * Compares the language to the range ignoring case, without building the range followed by a "-".
+         */
+        static boolean matchesRange(String language, String range) {
+            int length = range.length();
+            return language.regionMatches(true, 0, range, 0, length)
+                && (language.length() == length || language.charAt(length) == '-');
+        }
+        
+        public String toString() {
+            return ":lang(" + range + ")";
+        }
+    }
+    
+    static final class TextMatchesPseudoSelector extends AbstractElementSelector {
+        final String regex;
+        final boolean ignoreCase;
+        private final Pattern pattern;
+
+        TextMatchesPseudoSelector(String regex, boolean ignoreCase) {
+            this.regex = regex;
+            this.ignoreCase = ignoreCase;
+            this.pattern = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+        }
+        
+        public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
+            checkNotNull(element, "element");
+            return context.text().find(element, pattern);
+        }
+        
+        public String toString() {
+            return ":-text-matches(\"" + regex + (ignoreCase ? "\" i)" : "\")");
+        }
+    }
+    
+    static final class HasPseudoSelector extends AbstractElementSelector {
+        final Iterable<RelativeSelector> selectors;
+
+        HasPseudoSelector(Iterable<RelativeSelector> selectors) {
+            this.selectors = selectors;
+        }
+
+        public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+
+        public boolean matches(Element element, MatchContext context) {
+            checkNotNull(element, "element");
+            for (RelativeSelector selector : selectors) {
+                if (selector.matches(element, context)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(":has(");
+            for (Iterator<RelativeSelector> it = selectors.iterator(); it.hasNext(); ) {
+                sb.append(it.next());
+                if (it.hasNext()) {
+                    sb.append(", ");
+                }
+            }
+            return sb.append(')').toString();
+        }
+    }
+    
+    /**
+     * A selector relative to an anchor element, as in "> .otherclass" in ".someclass:has(> .otherclass)". Rather than
+     * looking backwards from every candidate like the combinators do, it works forwards from the anchor through the
+     * compound selectors of the chain and memoizes, per element, whether the rest of the chain can be matched from
+     * it. Whole subtrees and sibling runs are worked out bottom up in one pass the first time they are needed, so
+     * anchors that are nested inside each other or are siblings of each other share the work instead of each of them
+     * rescanning it.
+     */
+    static final class RelativeSelector {
+        final Combinator combinator;
+        final CombinableSelector selector;
+        
+        /** combinators[k] relates compounds[k] to the anchor (k == 0) or to the compound before it */
+        private final Combinator[] combinators;
+        private final SimpleSelector[] compounds;
+        private final Object[] memoKeys;
+
+        RelativeSelector(Combinator combinator, CombinableSelector selector) {
+            this.combinator = combinator;
+            this.selector = selector;
+            
+            LinkedList<CombinatorSelectorImpl> chain = new LinkedList<CombinatorSelectorImpl>();
+            CombinatorSelector current = ((CombinableSelectorImpl) selector).selector;
+            while (current instanceof CombinatorSelectorImpl) {
+                chain.addFirst((CombinatorSelectorImpl) current);
+                current = ((CombinatorSelectorImpl) current).lhs;
+            }
+            combinators = new Combinator[chain.size() + 1];
+            compounds = new SimpleSelector[chain.size() + 1];
+            memoKeys = new Object[chain.size() + 1];
+            combinators[0] = combinator;
+            compounds[0] = ((NoCombinatorSelectorImpl) current).selector;
+            for (int k = 1; k < combinators.length; k++) {
+                combinators[k] = chain.get(k - 1).combinator;
+                compounds[k] = chain.get(k - 1).rhs;
+            }
+            for (int k = 0; k < memoKeys.length; k++) {
+                memoKeys[k] = new Object();
+            }
+        }
+        
+        boolean matches(Element anchor, MatchContext context) {
+            return related(anchor, 0, context);
+        }
+        
+        /**
+         * @return whether an element related to this one through combinators[k] matches the chain from compounds[k] on
+         */
+        private boolean related(Element element, int k, MatchContext context) {
+            Map<Element, Boolean> memo = context.memo(memoKeys[k]);
+            Boolean related = memo.get(element);
+            if (related != null) {
+                return related;
+            }
+            switch (combinators[k]) {
+                case DESCENDANT:
+                    return descendantMatches(element, k, memo, context);
+                case SIBLING:
+                    return followingSiblingMatches(element, k, memo, context);
+                case CHILDOF:
+                    related = false;
+                    for (Element child = first(element); child != null && !related; child = next(child)) {
+                        related = matchesFrom(child, k, context);
+                    }
+                    break;
+                case ADJACENT:
+                    Element next = next(element);
+                    related = next != null && matchesFrom(next, k, context);
+                    break;
+            }
+            memo.put(element, related);
+            return related;
+        }
+        
+        private boolean matchesFrom(Element element, int k, MatchContext context) {
+            return compounds[k].matches(element, context) && (k + 1 == compounds.length || related(element, k + 1, context));
+        }
+        
+        /**
+         * Works out, bottom up, whether any descendant matches for every element of the subtree that doesn't have a
+         * result yet. Uses an explicit stack so that deep documents don't overflow the call stack.
+         */
+        private boolean descendantMatches(Element root, int k, Map<Element, Boolean> memo, MatchContext context) {
+            List<Element> stack = new ArrayList<Element>();
+            stack.add(root);
+            while (!stack.isEmpty()) {
+                Element element = stack.get(stack.size() - 1);
+                boolean pending = false;
+                for (Element child = first(element); child != null; child = next(child)) {
+                    if (!memo.containsKey(child)) {
+                        stack.add(child);
+                        pending = true;
+                    }
+                }
+                if (!pending) {
+                    stack.remove(stack.size() - 1);
+                    boolean matched = false;
+                    for (Element child = first(element); child != null && !matched; child = next(child)) {
+                        matched = memo.get(child) || matchesFrom(child, k, context);
+                    }
+                    memo.put(element, matched);
+                }
+            }
+            return memo.get(root);
+        }
+        
+        /**
+         * Works out, from the last sibling backwards, whether any following sibling matches for the element and all
+         * of its following siblings that don't have a result yet.
+         */
+        private boolean followingSiblingMatches(Element element, int k, Map<Element, Boolean> memo, MatchContext context) {
+            List<Element> pending = new ArrayList<Element>();
+            Element sibling = element;
+            while (sibling != null && !memo.containsKey(sibling)) {
+                pending.add(sibling);
+                sibling = next(sibling);
+            }
+            boolean matched = sibling != null && memo.get(sibling);
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                Element following = i + 1 < pending.size() ? pending.get(i + 1) : sibling;
+                matched = following != null && (matched || matchesFrom(following, k, context));
+                memo.put(pending.get(i), matched);
+            }
+            return memo.get(element);
+        }
+        
+        public String toString() {
+            return combinator == DESCENDANT ? selector.toString() : combinator + " " + selector;
+        }
+    }
+    
+    static class NthChildPseudoSelector extends AbstractElementSelector {
+        final NthExpression expr;
+        final GroupingSelector of;
 
-        NthChildPseudoSelector(NthExpression expr) {
+        NthChildPseudoSelector(NthExpression expr, GroupingSelector of) {
             this.expr = expr;
+            this.of = of;
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
             if (element.getParentNode() == null || !isElement(element.getParentNode())) {
                 return false;
             }
-            // TODO this isn't the most efficient, but it works. It can definitely be improved if we change the passed
-            //      in element to be a custom Element type that stores some location information
-            return expr.matches(indexOf(element) + 1);
+            int position = context.position(element, of == null ? any : of, false);
+            return position > 0 && expr.matches(position);
         }
 
         public String toString() {
-            return ":nth-child(" + expr + ")";
+            return ":nth-child(" + expr + (of == null ? "" : " of " + of) + ")";
         }
     }
     
-    private static class NthLastChildPseudoSelector extends AbstractElementSelector {
-        private final NthExpression expr;
+    static class NthLastChildPseudoSelector extends AbstractElementSelector {
+        final NthExpression expr;
+        final GroupingSelector of;
 
-        NthLastChildPseudoSelector(NthExpression expr) {
+        NthLastChildPseudoSelector(NthExpression expr, GroupingSelector of) {
             this.expr = expr;
+            this.of = of;
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
             if (element.getParentNode() == null || !isElement(element.getParentNode())) {
                 return false;
             }
-            // TODO this isn't the most efficient, but it works. It can definitely be improved if we change the passed
-            //      in element to be a custom Element type that stores some location information
-            return expr.matches(size(nextAll(element)) + 1);
+            int position = context.position(element, of == null ? any : of, true);
+            return position > 0 && expr.matches(position);
         }
 
         public String toString() {
-            return ":nth-last-child(" + expr + ")";
+            return ":nth-last-child(" + expr + (of == null ? "" : " of " + of) + ")";
         }
     }
     
@@ -785,28 +1329,23 @@ final class CssSelectors {
         }
     }
     
-    private static final class NthOfTypePseudoSelector extends AbstractElementSelector {
-        private final NthExpression expr;
+    static final class NthOfTypePseudoSelector extends AbstractElementSelector {
+        final NthExpression expr;
 
         public NthOfTypePseudoSelector(NthExpression expr) {
             this.expr = expr;
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
             if (parent(element) == null) {
                 return false;
             }
-            // TODO this isn't the most efficient, but it works. It can definitely be improved if we change the passed
-            //      in element to be a custom Element type that stores some location information
-            int index = 0;
-            CssSelector selector = tag(element.getTagName());
-            Element e = first(parent(element), selector);
-            while (e != element) {
-                e = next(e, selector);
-                index++;
-            }
-            return expr.matches(index + 1);
+            return expr.matches(context.typePosition(element, false));
         }
         
         public String toString() {
@@ -814,21 +1353,23 @@ final class CssSelectors {
         }
     }
     
-    private static class NthLastOfPseudoSelector extends AbstractElementSelector {
-        private final NthExpression expr;
+    static class NthLastOfPseudoSelector extends AbstractElementSelector {
+        final NthExpression expr;
 
         public NthLastOfPseudoSelector(NthExpression expr) {
             this.expr = expr;
         }
         
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
             if (parent(element) == null) {
                 return false;
             }
-            // TODO this isn't the most efficient, but it works. It can definitely be improved if we change the passed
-            //      in element to be a custom Element type that stores some location information
-            return expr.matches(size(nextAll(element, tag(element.getTagName()))) + 1);
+            return expr.matches(context.typePosition(element, true));
         }
 
         public String toString() {
@@ -839,11 +1380,15 @@ final class CssSelectors {
     private static final ElementSelector firstOfType = new FirstOfTypePseudoSelector();
     private static final class FirstOfTypePseudoSelector extends AbstractElementSelector {
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
             if (parent(element) == null) {
                 return false;
             }
-            return first(parent(element), tag(element.getTagName())) == element;
+            return context.typePosition(element, false) == 1;
         }
         
         public String toString() {
@@ -854,11 +1399,15 @@ final class CssSelectors {
     private static final ElementSelector lastOfType = new LastOfTypePseudoSelector();
     private static final class LastOfTypePseudoSelector extends AbstractElementSelector {
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
             if (parent(element) == null) {
                 return false;
             }
-            return last(parent(element), tag(element.getTagName())) == element;
+            return context.typePosition(element, true) == 1;
         }
         
         public String toString() {
@@ -869,8 +1418,12 @@ final class CssSelectors {
     private static final ElementSelector onlyOfType = new OnlyOfTypePseudoSelector();
     private static final class OnlyOfTypePseudoSelector extends AbstractElementSelector {
         public boolean matches(Element element) {
+            return matches(element, new MatchContext());
+        }
+        
+        public boolean matches(Element element, MatchContext context) {
             checkNotNull(element, "element");
-            return firstOfType.matches(element) && lastOfType.matches(element);
+            return firstOfType.matches(element, context) && lastOfType.matches(element, context);
         }
         
         public String toString() {
@@ -956,6 +1509,41 @@ final class CssSelectors {
         }
     }
 
+    /**
+     * @return the local name of a node created with namespaces, or its name otherwise
+     */
+    static String localName(Node node) {
+        String localName = node.getLocalName();
+        return localName != null ? localName : node.getNodeName();
+    }
+
+    /**
+     * @param namespace interned URI, {@code ""} for no namespace or {@code null} for any
+     */
+    private static boolean inNamespace(Node node, String namespace) {
+        if (namespace == null) {
+            return true;
+        }
+        String actual = node.getNamespaceURI();
+        return namespace.length() == 0 ? actual == null || actual.length() == 0 : sameName(actual, namespace);
+    }
+
+    /**
+     * Compares the local name of a node created with namespaces case-sensitively, and the name of any other node, such
+     * as those of HTML documents, ignoring case.
+     */
+    private static boolean hasLocalName(Node node, String interned) {
+        String localName = node.getLocalName();
+        if (localName == null) {
+            return node.getNodeName().equalsIgnoreCase(interned);
+        }
+        return sameName(localName, interned);
+    }
+
+    private static boolean sameName(String actual, String interned) {
+        return actual == interned || interned.equals(actual);
+    }
+
     private static String checkNotBlank(String s) {
         checkArgument(s != null && s.trim().length() > 0, "String cannot be blank");
         return s;
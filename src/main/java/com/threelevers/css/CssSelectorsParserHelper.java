@@ -1,5 +1,6 @@
 package com.threelevers.css;
 
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,6 +36,24 @@ public final class CssSelectorsParserHelper {
         throw new IllegalArgumentException("'" + text + "' is not in the form an+b");
     }
     
+    static boolean isIgnoreCaseFlag(String flag) {
+        if (!"i".equalsIgnoreCase(flag)) {
+            throw new IllegalArgumentException("'" + flag + "' is not a valid flag, only 'i' is supported");
+        }
+        return true;
+    }
+    
+    /**
+     * @return the URI the prefix is bound to
+     */
+    static String namespace(Map<String, String> namespaces, String prefix) {
+        String namespace = namespaces.get(prefix);
+        if (namespace == null) {
+            throw new IllegalArgumentException("Namespace prefix '" + prefix + "' is not bound");
+        }
+        return namespace;
+    }
+    
     private static int valueOf(String sign, String magnitude) {
         int value = 1;
         if (sign != null && "-".equals(sign)) {
@@ -0,0 +1,142 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Numbers the elements of a tree in document order, in one walk over it. Along with its number, every element gets the
+ * number of the last element of its subtree and its depth, so the descendants of an element are exactly those numbered
+ * in the interval after it, and whether an element is an ancestor of another takes two integer comparisons.
+ * <p>
+ * The numbering assumes the tree doesn't change afterwards. Elements added since are not numbered.
+ */
+final class DocumentNumbering {
+    private final Map<Element, Integer> numbers = new IdentityHashMap<Element, Integer>();
+    private Element[] elements = new Element[64];
+    private int[] ends = new int[64];
+    private int[] depths = new int[64];
+    private int[] parents = new int[64];
+    private int[] previous = new int[64];
+    // the last element entered at each depth, which is the previous sibling of the next one if it follows their parent
+    private int[] lastAt = new int[64];
+    private int count;
+
+    DocumentNumbering(Element root) {
+        checkNotNull(root, "root");
+        int depth = 0;
+        Node node = root;
+        while (node != null) {
+            if (Nodes.isElement(node)) {
+                enter((Element) node, depth);
+            }
+            if (node.getFirstChild() != null) {
+                node = node.getFirstChild();
+                depth++;
+                continue;
+            }
+            while (node != root && node.getNextSibling() == null) {
+                exit(node);
+                node = node.getParentNode();
+                depth--;
+            }
+            exit(node);
+            node = node == root ? null : node.getNextSibling();
+        }
+    }
+
+    /**
+     * @return how many elements are numbered
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of the element in document order, starting at 0 for the root, or -1 if it isn't numbered
+     */
+    int number(Element element) {
+        Integer number = numbers.get(element);
+        return number == null ? -1 : number;
+    }
+
+    Element element(int number) {
+        return elements[number];
+    }
+
+    /**
+     * @return the number of the last element in the subtree of the element with the number
+     */
+    int end(int number) {
+        return ends[number];
+    }
+
+    /**
+     * @return the depth of the element with the number, the root being at depth 0
+     */
+    int depth(int number) {
+        return depths[number];
+    }
+
+    /**
+     * @return the number of the parent of the element with the number, or -1 for the root
+     */
+    int parent(int number) {
+        return parents[number];
+    }
+
+    /**
+     * @return the number of the previous sibling element of the element with the number, or -1 if it is the first
+     */
+    int previous(int number) {
+        return previous[number];
+    }
+
+    /**
+     * @return whether the first element is a proper ancestor of the second, both being numbered
+     */
+    boolean isAncestor(Element ancestor, Element descendant) {
+        int a = number(ancestor);
+        int d = number(descendant);
+        return a >= 0 && a < d && d <= ends[a];
+    }
+
+    private void enter(Element element, int depth) {
+        if (count == elements.length) {
+            Element[] grownElements = new Element[count * 2];
+            System.arraycopy(elements, 0, grownElements, 0, count);
+            elements = grownElements;
+            ends = grow(ends);
+            depths = grow(depths);
+            parents = grow(parents);
+            previous = grow(previous);
+        }
+        if (depth == lastAt.length) {
+            lastAt = grow(lastAt);
+        }
+        int parent = depth == 0 ? -1 : lastAt[depth - 1];
+        numbers.put(element, count);
+        elements[count] = element;
+        depths[count] = depth;
+        parents[count] = parent;
+        previous[count] = depth > 0 && lastAt[depth] > parent ? lastAt[depth] : -1;
+        lastAt[depth] = count;
+        count++;
+    }
+
+    private static int[] grow(int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    private void exit(Node node) {
+        if (Nodes.isElement(node)) {
+            ends[numbers.get(node)] = count - 1;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import com.threelevers.css.CssSelectors.AttributeComparedToAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.AttributeComparedToStringSelectorImpl;
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.HasAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Counts of what a tree is made of, collected in one walk over it: how many elements there are with each tag, id,
+ * class and attribute name, how deep the tree goes and how many children an element has at most. Estimates based on
+ * them are exact for single type, id, class and attribute presence selectors, and a count of 0 means a selector
+ * can't match anything in the tree.
+ */
+final class DocumentStatistics implements CostModel {
+    private final Map<String, Integer> tags = new HashMap<String, Integer>();
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private final Map<String, Integer> classes = new HashMap<String, Integer>();
+    private final Map<String, Integer> attributes = new HashMap<String, Integer>();
+    private int elements;
+    private int maxDepth;
+    private int maxFanOut;
+
+    DocumentStatistics(Element root) {
+        checkNotNull(root, "root");
+        int depth = 0;
+        Node node = root;
+        while (node != null) {
+            if (Nodes.isElement(node)) {
+                count((Element) node, depth);
+            }
+            if (node.getFirstChild() != null) {
+                node = node.getFirstChild();
+                depth++;
+                continue;
+            }
+            while (node != root && node.getNextSibling() == null) {
+                node = node.getParentNode();
+                depth--;
+            }
+            node = node == root ? null : node.getNextSibling();
+        }
+    }
+
+    int elements() {
+        return elements;
+    }
+
+    int tags(String tagName) {
+        return count(tags, tagName.toLowerCase(Locale.ENGLISH));
+    }
+
+    int ids(String id) {
+        return count(ids, id);
+    }
+
+    int classes(String className) {
+        return count(classes, className);
+    }
+
+    int attributes(String attribName) {
+        return count(attributes, attribName.toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * @return the depth of the deepest element, the root being at depth 0
+     */
+    int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * @return the largest number of element children any one element has
+     */
+    int maxFanOut() {
+        return maxFanOut;
+    }
+
+    public double selectivity(SimpleSelector part) {
+        if (elements == 0) {
+            return 0;
+        }
+        double count;
+        if (part instanceof IdSelector) {
+            count = ids(((IdSelector) part).id);
+        } else if (part instanceof ClassSelector) {
+            count = classes(((ClassSelector) part).className);
+        } else if (part instanceof HasAttributeSelectorImpl) {
+            count = attributes(((HasAttributeSelectorImpl) part).attribName);
+        } else if (part instanceof AttributeComparedToStringSelectorImpl) {
+            count = attributes(((AttributeComparedToStringSelectorImpl) part).attribName);
+        } else if (part instanceof AttributeComparedToAttributeSelectorImpl) {
+            AttributeComparedToAttributeSelectorImpl s = (AttributeComparedToAttributeSelectorImpl) part;
+            count = Math.min(attributes(s.lhsAttribName), attributes(s.rhsAttribName));
+        } else if (part instanceof TypSelectorImpl && part != CssSelectors.any()) {
+            count = tags(((TypSelectorImpl) part).tagName);
+        } else {
+            return 1;
+        }
+        return count / elements;
+    }
+
+    /**
+     * Anchors matching a single element are always worth it, and so are ones matching no more than 1% of the elements.
+     */
+    public double anchorLimit() {
+        return elements == 0 ? 1 : Math.max(0.01, 1.0 / elements);
+    }
+
+    private void count(Element element, int depth) {
+        elements++;
+        maxDepth = Math.max(maxDepth, depth);
+        increment(tags, CssSelectors.localName(element).toLowerCase(Locale.ENGLISH));
+        NamedNodeMap attribs = element.getAttributes();
+        for (int i = 0; i < attribs.getLength(); i++) {
+            Attr attrib = (Attr) attribs.item(i);
+            increment(attributes, attrib.getName().toLowerCase(Locale.ENGLISH));
+            if ("id".equals(attrib.getName())) {
+                increment(ids, attrib.getValue());
+            } else if ("class".equals(attrib.getName())) {
+                Set<String> names = new HashSet<String>();
+                for (String name : attrib.getValue().split("\\s")) {
+                    if (name.length() > 0 && names.add(name)) {
+                        increment(classes, name);
+                    }
+                }
+            }
+        }
+        int fanOut = 0;
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (Nodes.isElement(child)) {
+                fanOut++;
+            }
+        }
+        maxFanOut = Math.max(maxFanOut, fanOut);
+    }
+
+    private static int count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        counts.put(key, count(counts, key) + 1);
+    }
+}
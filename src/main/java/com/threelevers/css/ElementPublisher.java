@@ -0,0 +1,152 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.threelevers.css.Nodes.following;
+import static com.threelevers.css.Nodes.isElement;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Publishes the elements a selector matches as they are found, to subscribers asking for as many as they can take.
+ * Every subscriber gets its own walk over the subtree, which only goes on while the subscriber has asked for more
+ * elements than it has been sent. When it hasn't, the walk stops where it is and picks up from there on the next
+ * request, and once the subscription is cancelled it stops for good before the next element is looked at. Elements
+ * are matched one after the other in document order, without the scopes or top-down plans of {@link Selector#select},
+ * which would need a look at the whole tree before the first element could be sent.
+ * <p>
+ * The interfaces follow the publisher, subscriber and subscription of the reactive streams specification, and of
+ * {@code java.util.concurrent.Flow}, closely enough for an adapter to either to be a few lines of delegation. Requests
+ * may come from any thread; the walk runs on the thread of the request that finds none in progress, and the elements
+ * of one subscription are always sent one at a time, in document order.
+ */
+public final class ElementPublisher {
+    private final Element root;
+    private final CssSelector selector;
+
+    ElementPublisher(Element root, CssSelector selector) {
+        this.root = root;
+        this.selector = CostPlanner.plan(selector, ShapeCostModel.INSTANCE);
+    }
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(Element element);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Asks for up to {@code n} more elements.
+         *
+         * @param n how many elements to add to those asked for, which must be positive
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        checkNotNull(subscriber, "subscriber");
+        subscriber.onSubscribe(new Walk(subscriber));
+    }
+
+    private final class Walk implements Subscription {
+        private final Subscriber subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final MatchContext context = new MatchContext();
+        private volatile boolean cancelled;
+        private Node node = root;
+        private volatile Throwable invalid;
+
+        Walk(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                invalid = new IllegalArgumentException("requested " + n + " elements, which is not positive");
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Walks on while there is demand, in the one thread that finds no other walking, which also takes over the
+         * requests made in the meantime, including those made by the subscriber from {@code onNext}.
+         */
+        private void drain() {
+            if (requests.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                if (invalid != null && !cancelled) {
+                    stop();
+                    subscriber.onError(invalid);
+                }
+                while (!cancelled && demand.get() > 0) {
+                    Element next;
+                    try {
+                        next = next();
+                    } catch (RuntimeException e) {
+                        stop();
+                        subscriber.onError(e);
+                        break;
+                    }
+                    if (next == null) {
+                        if (!cancelled) {
+                            stop();
+                            subscriber.onComplete();
+                        }
+                        break;
+                    }
+                    demand.decrementAndGet();
+                    try {
+                        subscriber.onNext(next);
+                    } catch (Throwable e) {
+                        // the subscriber broke rule 2.13, so the walk stops here, and leaving the loop lets requests
+                        // made later in, which then find it stopped
+                        stop();
+                        subscriber.onError(e);
+                        break;
+                    }
+                }
+            } while (requests.decrementAndGet() != 0);
+        }
+
+        /**
+         * @return the next element matching the selector, or {@code null} once the whole subtree has been walked
+         */
+        private Element next() {
+            while (node != null && !cancelled) {
+                Node current = node;
+                node = following(node, root);
+                if (isElement(current) && selector.matches((Element) current, context)) {
+                    return (Element) current;
+                }
+            }
+            return null;
+        }
+
+        private void stop() {
+            cancelled = true;
+            node = null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+
+/**
+ * Reads values from the elements a selector matches straight into columns, one row for every element in document
+ * order, without collecting the elements first. Each element is read as soon as it matches and is not referred to
+ * afterwards, so a query for a few values of many elements holds on to the values alone:
+ * <pre>
+ *   Columns links = Selector.from(doc).extract("a.product").attr("href").text().interned().columns();
+ *   for (int row = 0; row &lt; links.getRowCount(); row++) {
+ *       visit(links.get(row, 0), links.get(row, 1));
+ *   }
+ * </pre>
+ * Extractions are immutable, and each method returns an extraction with one more column or option set, in the order
+ * the methods are called.
+ */
+public final class Extraction {
+    private static final int INITIAL_ROWS = 16;
+
+    private final Element root;
+    private final String source;
+    private final CssSelector selector;
+    /** name of the attribute every column reads, or null for the text content */
+    private final String[] attributes;
+    private final boolean interned;
+
+    Extraction(Element root, String source, CssSelector selector) {
+        this(root, source, selector, new String[0], false);
+    }
+
+    private Extraction(Element root, String source, CssSelector selector, String[] attributes, boolean interned) {
+        this.root = root;
+        this.source = source;
+        this.selector = selector;
+        this.attributes = attributes;
+        this.interned = interned;
+    }
+
+    /**
+     * Adds a column with the value of an attribute of every element, or null for elements without it.
+     */
+    public Extraction attr(String name) {
+        checkNotNull(name, "name");
+        return column(name);
+    }
+
+    /**
+     * Adds a column with the text content of every element, that is the text of its whole subtree.
+     */
+    public Extraction text() {
+        return column(null);
+    }
+
+    /**
+     * Makes equal values of all the columns share one string, for values repeated across many elements such as class
+     * names or the hosts of links. The strings are shared within the extraction only, not interned by the VM.
+     */
+    public Extraction interned() {
+        return new Extraction(root, source, selector, attributes, true);
+    }
+
+    private Extraction column(String attribute) {
+        String[] columns = new String[attributes.length + 1];
+        System.arraycopy(attributes, 0, columns, 0, attributes.length);
+        columns[attributes.length] = attribute;
+        return new Extraction(root, source, selector, columns, interned);
+    }
+
+    public Columns columns() {
+        return columns(new QueryStats());
+    }
+
+    /**
+     * Same as {@link #columns()}, recording how the query was run in {@code stats}.
+     */
+    public Columns columns(QueryStats stats) {
+        checkNotNull(stats, "stats");
+        return columns(new MatchContext(), stats);
+    }
+
+    /**
+     * Same as {@link #columns(QueryStats)}, but stops as soon as the query goes over the budget.
+     *
+     * @throws QueryBudgetExceededException if the query runs out of budget, or is cancelled or interrupted, before it
+     *         is done
+     */
+    public Columns columns(QueryStats stats, QueryBudget budget) {
+        checkNotNull(stats, "stats");
+        checkNotNull(budget, "budget");
+        MatchContext context = new MatchContext();
+        context.limit(budget.start(stats));
+        return columns(context, stats);
+    }
+
+    private Columns columns(MatchContext context, QueryStats stats) {
+        checkState(attributes.length > 0, "no columns to extract");
+        Writer writer = new Writer();
+        QueryExecutor.select(root, source, selector, context, stats, ShapeCostModel.INSTANCE, writer);
+        return writer.finish();
+    }
+
+    /**
+     * Writes the values of every element into the columns as it matches.
+     */
+    private final class Writer implements QueryExecutor.Sink {
+        private final String[][] values = new String[attributes.length][INITIAL_ROWS];
+        private final Map<String, String> shared = interned ? new HashMap<String, String>() : null;
+        private int rows;
+
+        public void matched(Element element) {
+            if (rows == values[0].length) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = copy(values[i], rows * 2);
+                }
+            }
+            for (int i = 0; i < values.length; i++) {
+                values[i][rows] = share(value(element, attributes[i]));
+            }
+            rows++;
+        }
+
+        private String share(String value) {
+            if (shared == null || value == null) {
+                return value;
+            }
+            String previous = shared.get(value);
+            if (previous != null) {
+                return previous;
+            }
+            shared.put(value, value);
+            return value;
+        }
+
+        Columns finish() {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = copy(values[i], rows);
+            }
+            return new Columns(values, rows);
+        }
+
+        private String[] copy(String[] column, int length) {
+            String[] copy = new String[length];
+            System.arraycopy(column, 0, copy, 0, rows);
+            return copy;
+        }
+    }
+
+    private static String value(Element element, String attribute) {
+        if (attribute == null) {
+            return element.getTextContent();
+        }
+        return element.hasAttribute(attribute) ? element.getAttribute(attribute) : null;
+    }
+
+    /**
+     * The values read by an extraction, one array for every column, in the order the columns were added, and one row
+     * for every element the selector matched, in document order.
+     */
+    public static final class Columns {
+        private final String[][] values;
+        private final int rows;
+
+        private Columns(String[][] values, int rows) {
+            this.values = values;
+            this.rows = rows;
+        }
+
+        public int getRowCount() {
+            return rows;
+        }
+
+        public int getColumnCount() {
+            return values.length;
+        }
+
+        /**
+         * @return the values of the column, which is not copied, so that changes to it are seen by {@link #get}
+         */
+        public String[] getColumn(int column) {
+            checkElementIndex(column, values.length, "column");
+            return values[column];
+        }
+
+        public String get(int row, int column) {
+            checkElementIndex(row, rows, "row");
+            return getColumn(column)[row];
+        }
+
+        public String toString() {
+            return "Columns[rows=" + rows + ", columns=" + values.length + "]";
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.threelevers.css.Nodes.following;
+import static com.threelevers.css.Nodes.followingSubtree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes documents in a compact binary format and reads them back as read-only DOM trees that are queried in place.
+ * A document written once, such as a crawled page after it has been parsed, can then be mapped into memory and queried
+ * any number of times without being parsed again. The nodes of a mapped document only hold their number, and read
+ * their names, links and attributes from the mapped file, but they still take some heap:
+ * <ul>
+ * <li>the names of elements and attributes are decoded once, when the document is read,</li>
+ * <li>every node is created the first time it is reached and kept for as long as the document is, so that it is the
+ * same instance every time, which makes a query walking the whole document end up with a small object for every
+ * node, about as many as a parsed DOM has though each much smaller,</li>
+ * <li>attribute values and text are decoded into a new string every time they are asked for, so selectors comparing
+ * attributes or text allocate as they match.</li>
+ * </ul>
+ * <p>
+ * A file starts with a header of {@code int}s: the magic number, the version of the format, and the number of nodes,
+ * attributes and ids. It goes on with:
+ * <ul>
+ * <li>the dictionary of the names of elements and attributes, namespaces and prefixes, each stored once,</li>
+ * <li>the heap of text and attribute values, identical values being stored once,</li>
+ * <li>the table of nodes in document order, the document itself first, each with its kind, names, the numbers of its
+ * parent, first and last children and siblings, and the range of its attributes,</li>
+ * <li>the table of attributes, each with its names and value,</li>
+ * <li>the index of ids, pairing each id with the number of the first element that has it.</li>
+ * </ul>
+ * Strings are stored as the offsets of their ends followed by their UTF-16 characters. Only elements and text are
+ * kept; comments, processing instructions and the document type are left out, which none of the selectors look at.
+ */
+public final class MappedDocuments {
+    static final int MAGIC = 0x43535344; // "CSSD"
+    static final int VERSION = 1;
+
+    static final int KIND = 0;
+    static final int NAME = 1;
+    static final int LOCAL_NAME = 2;
+    static final int NAMESPACE = 3;
+    static final int PARENT = 4;
+    static final int FIRST_CHILD = 5;
+    static final int LAST_CHILD = 6;
+    static final int NEXT = 7;
+    static final int PREVIOUS = 8;
+    static final int ATTRIBUTES = 9;
+    static final int ATTRIBUTE_COUNT = 10;
+    static final int NODE_FIELDS = 11;
+
+    static final int ATTRIBUTE_NAME = 0;
+    static final int ATTRIBUTE_LOCAL_NAME = 1;
+    static final int ATTRIBUTE_NAMESPACE = 2;
+    static final int ATTRIBUTE_VALUE = 3;
+    static final int ATTRIBUTE_FIELDS = 4;
+
+    private MappedDocuments() {}
+
+    /**
+     * Writes the document in the binary format. The stream is left open.
+     */
+    public static void write(Document doc, OutputStream out) throws IOException {
+        checkNotNull(doc, "doc");
+        checkNotNull(out, "out");
+        new Writer(doc).write(out);
+    }
+
+    /**
+     * Maps a file written by {@link #write(Document, OutputStream)} into memory.
+     *
+     * @return a read-only view of the document in the file
+     */
+    public static Document map(File file) throws IOException {
+        checkNotNull(file, "file");
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param buffer buffer holding a document written by {@link #write(Document, OutputStream)}, from its position on
+     * @return a read-only view of the document in the buffer
+     */
+    public static Document read(ByteBuffer buffer) {
+        checkNotNull(buffer, "buffer");
+        return new MappedNodes.Tree(buffer.slice()).document();
+    }
+
+    private static boolean kept(Node node) {
+        switch (node.getNodeType()) {
+        case Node.DOCUMENT_NODE:
+        case Node.ELEMENT_NODE:
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static final class Writer {
+        final Map<String, Integer> names = new LinkedHashMap<String, Integer>();
+        final Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+        final Map<Node, Integer> numbers = new IdentityHashMap<Node, Integer>();
+        final List<Node> nodes = new ArrayList<Node>();
+        final List<Integer> attributes = new ArrayList<Integer>();
+        final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+        Writer(Document doc) {
+            Node node = doc;
+            while (node != null) {
+                if (kept(node)) {
+                    numbers.put(node, nodes.size());
+                    nodes.add(node);
+                    node = following(node, doc);
+                } else {
+                    node = followingSubtree(node, doc);
+                }
+            }
+            for (Node n : nodes) {
+                if (n.getNodeType() == Node.ELEMENT_NODE) {
+                    name(n.getNodeName());
+                    name(n.getLocalName());
+                    name(n.getNamespaceURI());
+                    NamedNodeMap attributes = n.getAttributes();
+                    for (int i = 0; i < attributes.getLength(); i++) {
+                        Node attribute = attributes.item(i);
+                        this.attributes.add(name(attribute.getNodeName()));
+                        this.attributes.add(name(attribute.getLocalName()));
+                        this.attributes.add(name(attribute.getNamespaceURI()));
+                        this.attributes.add(value(attribute.getNodeValue()));
+                    }
+                    String id = ((Element) n).getAttribute("id");
+                    if (id.length() > 0 && !ids.containsKey(id)) {
+                        ids.put(id, numbers.get(n));
+                    }
+                }
+            }
+        }
+
+        void write(OutputStream stream) throws IOException {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nodes.size());
+            out.writeInt(attributes.size() / ATTRIBUTE_FIELDS);
+            out.writeInt(ids.size());
+            writeStrings(out, names.keySet());
+            for (Node n : nodes) {
+                if (n.getNodeType() == Node.TEXT_NODE || n.getNodeType() == Node.CDATA_SECTION_NODE) {
+                    value(n.getNodeValue());
+                }
+            }
+            for (String id : ids.keySet()) {
+                value(id);
+            }
+            writeStrings(out, values.keySet());
+            int attribute = 0;
+            for (Node n : nodes) {
+                boolean element = n.getNodeType() == Node.ELEMENT_NODE;
+                boolean text = n.getNodeType() == Node.TEXT_NODE || n.getNodeType() == Node.CDATA_SECTION_NODE;
+                out.writeInt(text ? Node.TEXT_NODE : n.getNodeType());
+                out.writeInt(element ? names.get(n.getNodeName()) : text ? values.get(n.getNodeValue()) : -1);
+                out.writeInt(element ? name(n.getLocalName()) : -1);
+                out.writeInt(element ? name(n.getNamespaceURI()) : -1);
+                out.writeInt(number(n.getParentNode()));
+                out.writeInt(number(first(n.getFirstChild())));
+                out.writeInt(number(last(n.getLastChild())));
+                out.writeInt(number(first(n.getNextSibling())));
+                out.writeInt(number(last(n.getPreviousSibling())));
+                int count = element ? n.getAttributes().getLength() : 0;
+                out.writeInt(attribute);
+                out.writeInt(count);
+                attribute += count;
+            }
+            for (Integer field : attributes) {
+                out.writeInt(field);
+            }
+            for (Map.Entry<String, Integer> id : ids.entrySet()) {
+                out.writeInt(values.get(id.getKey()));
+                out.writeInt(id.getValue());
+            }
+            out.flush();
+        }
+
+        /**
+         * @return the first node kept among the node and its following siblings
+         */
+        Node first(Node node) {
+            while (node != null && !kept(node)) {
+                node = node.getNextSibling();
+            }
+            return node;
+        }
+
+        /**
+         * @return the last node kept among the node and its preceding siblings
+         */
+        Node last(Node node) {
+            while (node != null && !kept(node)) {
+                node = node.getPreviousSibling();
+            }
+            return node;
+        }
+
+        int number(Node node) {
+            return node == null ? -1 : numbers.get(node);
+        }
+
+        int name(String name) {
+            return index(names, name);
+        }
+
+        int value(String value) {
+            return index(values, value);
+        }
+
+        static int index(Map<String, Integer> strings, String s) {
+            if (s == null) {
+                return -1;
+            }
+            Integer index = strings.get(s);
+            if (index == null) {
+                index = strings.size();
+                strings.put(s, index);
+            }
+            return index;
+        }
+
+        static void writeStrings(DataOutputStream out, Iterable<String> strings) throws IOException {
+            List<String> list = new ArrayList<String>();
+            for (String s : strings) {
+                list.add(s);
+            }
+            out.writeInt(list.size());
+            int end = 0;
+            for (String s : list) {
+                end += s.length();
+                out.writeInt(end);
+            }
+            for (String s : list) {
+                out.writeChars(s);
+            }
+        }
+    }
+
+    static void checkFormat(boolean expression, String message) {
+        checkArgument(expression, "not a mapped document: %s", message);
+    }
+}
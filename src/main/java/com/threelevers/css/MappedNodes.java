@@ -0,0 +1,928 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.MappedDocuments.ATTRIBUTES;
+import static com.threelevers.css.MappedDocuments.ATTRIBUTE_COUNT;
+import static com.threelevers.css.MappedDocuments.ATTRIBUTE_FIELDS;
+import static com.threelevers.css.MappedDocuments.ATTRIBUTE_LOCAL_NAME;
+import static com.threelevers.css.MappedDocuments.ATTRIBUTE_NAME;
+import static com.threelevers.css.MappedDocuments.ATTRIBUTE_NAMESPACE;
+import static com.threelevers.css.MappedDocuments.ATTRIBUTE_VALUE;
+import static com.threelevers.css.MappedDocuments.FIRST_CHILD;
+import static com.threelevers.css.MappedDocuments.KIND;
+import static com.threelevers.css.MappedDocuments.LAST_CHILD;
+import static com.threelevers.css.MappedDocuments.LOCAL_NAME;
+import static com.threelevers.css.MappedDocuments.MAGIC;
+import static com.threelevers.css.MappedDocuments.NAME;
+import static com.threelevers.css.MappedDocuments.NAMESPACE;
+import static com.threelevers.css.MappedDocuments.NEXT;
+import static com.threelevers.css.MappedDocuments.NODE_FIELDS;
+import static com.threelevers.css.MappedDocuments.PARENT;
+import static com.threelevers.css.MappedDocuments.PREVIOUS;
+import static com.threelevers.css.MappedDocuments.VERSION;
+import static com.threelevers.css.MappedDocuments.checkFormat;
+import static com.threelevers.css.Nodes.following;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.CDATASection;
+import org.w3c.dom.Comment;
+import org.w3c.dom.DOMConfiguration;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.DOMImplementation;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.DocumentType;
+import org.w3c.dom.Element;
+import org.w3c.dom.EntityReference;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.ProcessingInstruction;
+import org.w3c.dom.Text;
+import org.w3c.dom.TypeInfo;
+import org.w3c.dom.UserDataHandler;
+
+/**
+ * The read-only DOM nodes of a document in the format of {@link MappedDocuments}. A node is created the first time it
+ * is reached and kept by its tree, so that every node has a single instance, and it reads everything else from the
+ * buffer of its tree when asked. Attributes are created every time they are asked for.
+ */
+final class MappedNodes {
+    private MappedNodes() {}
+
+    static final class Tree {
+        private static final int HEADER = 20;
+
+        final ByteBuffer buffer;
+        final int nodeCount;
+        final int attributeCount;
+        private final int idCount;
+        private final String[] names;
+        private final int valueEnds;
+        private final int valueChars;
+        private final int nodes;
+        private final int attributes;
+        private final int ids;
+        private final Node[] cache;
+        private Map<String, Integer> idIndex;
+        private Map<Node, Map<String, Object>> userData;
+
+        Tree(ByteBuffer buffer) {
+            this.buffer = buffer;
+            checkFormat(buffer.limit() >= HEADER && buffer.getInt(0) == MAGIC, "wrong magic number");
+            checkFormat(buffer.getInt(4) == VERSION, "unsupported version " + buffer.getInt(4));
+            nodeCount = count(8);
+            attributeCount = count(12);
+            idCount = count(16);
+            checkFormat(nodeCount > 0, "no document node");
+            int nameCount = count(HEADER);
+            int nameEnds = HEADER + 4;
+            int nameChars = strings(nameEnds, nameCount);
+            names = new String[nameCount];
+            for (int i = 0; i < nameCount; i++) {
+                names[i] = string(nameEnds, nameChars, i).intern();
+            }
+            int values = offset(nameChars, 2L * end(nameEnds, nameCount));
+            int valueCount = count(values);
+            valueEnds = values + 4;
+            valueChars = strings(valueEnds, valueCount);
+            nodes = offset(valueChars, 2L * end(valueEnds, valueCount));
+            attributes = offset(nodes, 4L * NODE_FIELDS * nodeCount);
+            ids = offset(attributes, 4L * ATTRIBUTE_FIELDS * attributeCount);
+            offset(ids, 8L * idCount);
+            cache = new Node[nodeCount];
+        }
+
+        /**
+         * @return the offset some bytes after another, which must be within the buffer
+         */
+        private int offset(int offset, long bytes) {
+            long end = offset + bytes;
+            checkFormat(end <= buffer.limit(), "truncated");
+            return (int) end;
+        }
+
+        private int count(int offset) {
+            offset(offset, 4);
+            int count = buffer.getInt(offset);
+            checkFormat(count >= 0, "negative count " + count);
+            return count;
+        }
+
+        /**
+         * Checks that the ends of a table of strings are in order, and that the table and its characters are within
+         * the buffer.
+         *
+         * @return the offset of the characters of the strings
+         */
+        private int strings(int ends, int count) {
+            int chars = offset(ends, 4L * count);
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                int end = buffer.getInt(ends + 4 * i);
+                checkFormat(end >= previous, "strings out of order");
+                previous = end;
+            }
+            offset(chars, 2L * previous);
+            return chars;
+        }
+
+        Document document() {
+            return (Document) node(0);
+        }
+
+        Node node(int number) {
+            if (number < 0) {
+                return null;
+            }
+            Node node = cache[number];
+            if (node == null) {
+                switch (field(number, KIND)) {
+                case Node.DOCUMENT_NODE:
+                    node = new MappedDocument(this, number);
+                    break;
+                case Node.ELEMENT_NODE:
+                    node = new MappedElement(this, number);
+                    break;
+                default:
+                    node = new MappedText(this, number);
+                }
+                cache[number] = node;
+            }
+            return node;
+        }
+
+        int field(int node, int field) {
+            return buffer.getInt(nodes + 4 * (node * NODE_FIELDS + field));
+        }
+
+        int attribute(int attribute, int field) {
+            return buffer.getInt(attributes + 4 * (attribute * ATTRIBUTE_FIELDS + field));
+        }
+
+        String name(int index) {
+            return index < 0 ? null : names[index];
+        }
+
+        String value(int index) {
+            return string(valueEnds, valueChars, index);
+        }
+
+        Element elementById(String id) {
+            if (idIndex == null) {
+                idIndex = new HashMap<String, Integer>();
+                for (int i = 0; i < idCount; i++) {
+                    idIndex.put(value(buffer.getInt(ids + 8 * i)), buffer.getInt(ids + 8 * i + 4));
+                }
+            }
+            Integer number = idIndex.get(id);
+            return number == null ? null : (Element) node(number);
+        }
+
+        Object getUserData(Node node, String key) {
+            Map<String, Object> data = userData == null ? null : userData.get(node);
+            return data == null ? null : data.get(key);
+        }
+
+        Object setUserData(Node node, String key, Object value) {
+            if (userData == null) {
+                userData = new IdentityHashMap<Node, Map<String, Object>>();
+            }
+            Map<String, Object> data = userData.get(node);
+            if (data == null) {
+                data = new HashMap<String, Object>();
+                userData.put(node, data);
+            }
+            return value == null ? data.remove(key) : data.put(key, value);
+        }
+
+        private int end(int ends, int count) {
+            return count == 0 ? 0 : buffer.getInt(ends + 4 * (count - 1));
+        }
+
+        private String string(int ends, int chars, int index) {
+            int start = index == 0 ? 0 : buffer.getInt(ends + 4 * (index - 1));
+            char[] string = new char[buffer.getInt(ends + 4 * index) - start];
+            for (int i = 0; i < string.length; i++) {
+                string[i] = buffer.getChar(chars + 2 * (start + i));
+            }
+            return new String(string);
+        }
+    }
+
+    static DOMException readOnly() {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "mapped documents are read-only");
+    }
+
+    static DOMException notSupported() {
+        return new DOMException(DOMException.NOT_SUPPORTED_ERR, "not supported by mapped documents");
+    }
+
+    private static abstract class MappedNode implements Node {
+        final Tree tree;
+        final int number;
+
+        MappedNode(Tree tree, int number) {
+            this.tree = tree;
+            this.number = number;
+        }
+
+        int field(int field) {
+            return tree.field(number, field);
+        }
+
+        public String getNodeValue() {
+            return null;
+        }
+
+        public void setNodeValue(String nodeValue) {
+            throw readOnly();
+        }
+
+        public Node getParentNode() {
+            return tree.node(field(PARENT));
+        }
+
+        public NodeList getChildNodes() {
+            List<Node> children = new ArrayList<Node>();
+            for (Node child = getFirstChild(); child != null; child = child.getNextSibling()) {
+                children.add(child);
+            }
+            return new Listed(children);
+        }
+
+        public Node getFirstChild() {
+            return tree.node(field(FIRST_CHILD));
+        }
+
+        public Node getLastChild() {
+            return tree.node(field(LAST_CHILD));
+        }
+
+        public Node getPreviousSibling() {
+            return tree.node(field(PREVIOUS));
+        }
+
+        public Node getNextSibling() {
+            return tree.node(field(NEXT));
+        }
+
+        public NamedNodeMap getAttributes() {
+            return null;
+        }
+
+        public Document getOwnerDocument() {
+            return tree.document();
+        }
+
+        public Node insertBefore(Node newChild, Node refChild) {
+            throw readOnly();
+        }
+
+        public Node replaceChild(Node newChild, Node oldChild) {
+            throw readOnly();
+        }
+
+        public Node removeChild(Node oldChild) {
+            throw readOnly();
+        }
+
+        public Node appendChild(Node newChild) {
+            throw readOnly();
+        }
+
+        public boolean hasChildNodes() {
+            return field(FIRST_CHILD) >= 0;
+        }
+
+        public Node cloneNode(boolean deep) {
+            throw notSupported();
+        }
+
+        public void normalize() {}
+
+        public boolean isSupported(String feature, String version) {
+            return false;
+        }
+
+        public String getNamespaceURI() {
+            return null;
+        }
+
+        public String getPrefix() {
+            return null;
+        }
+
+        public void setPrefix(String prefix) {
+            throw readOnly();
+        }
+
+        public String getLocalName() {
+            return null;
+        }
+
+        public boolean hasAttributes() {
+            return false;
+        }
+
+        public String getBaseURI() {
+            return null;
+        }
+
+        public short compareDocumentPosition(Node other) {
+            throw notSupported();
+        }
+
+        public String getTextContent() {
+            StringBuilder text = new StringBuilder();
+            for (Node node = this; node != null; node = following(node, this)) {
+                if (node.getNodeType() == Node.TEXT_NODE) {
+                    text.append(node.getNodeValue());
+                }
+            }
+            return text.toString();
+        }
+
+        public void setTextContent(String textContent) {
+            throw readOnly();
+        }
+
+        public boolean isSameNode(Node other) {
+            return this == other;
+        }
+
+        public String lookupPrefix(String namespaceURI) {
+            return null;
+        }
+
+        public boolean isDefaultNamespace(String namespaceURI) {
+            return false;
+        }
+
+        public String lookupNamespaceURI(String prefix) {
+            return null;
+        }
+
+        public boolean isEqualNode(Node arg) {
+            return this == arg;
+        }
+
+        public Object getFeature(String feature, String version) {
+            return null;
+        }
+
+        public Object setUserData(String key, Object data, UserDataHandler handler) {
+            return tree.setUserData(this, key, data);
+        }
+
+        public Object getUserData(String key) {
+            return tree.getUserData(this, key);
+        }
+
+        /**
+         * @param namespace namespace of the elements, {@code ""} for none, {@code *} for any, or {@code null} to compare
+         *            qualified names instead of local names
+         * @return the elements of the subtree of this node with the name, or any name for {@code *}, in document order
+         */
+        NodeList elementsByTagName(String namespace, String name) {
+            List<Node> elements = new ArrayList<Node>();
+            for (Node node = getFirstChild(); node != null; node = following(node, this)) {
+                if (node.getNodeType() != Node.ELEMENT_NODE) {
+                    continue;
+                }
+                boolean named = "*".equals(name) || name.equals(namespace == null ? node.getNodeName() : node.getLocalName());
+                String actual = node.getNamespaceURI();
+                boolean namespaced = namespace == null || "*".equals(namespace)
+                        || (namespace.length() == 0 ? actual == null : namespace.equals(actual));
+                if (named && namespaced) {
+                    elements.add(node);
+                }
+            }
+            return new Listed(elements);
+        }
+    }
+
+    private static final class MappedDocument extends MappedNode implements Document {
+        MappedDocument(Tree tree, int number) {
+            super(tree, number);
+        }
+
+        public String getNodeName() {
+            return "#document";
+        }
+
+        public short getNodeType() {
+            return Node.DOCUMENT_NODE;
+        }
+
+        public Document getOwnerDocument() {
+            return null;
+        }
+
+        public String getTextContent() {
+            return null;
+        }
+
+        public DocumentType getDoctype() {
+            return null;
+        }
+
+        public DOMImplementation getImplementation() {
+            return null;
+        }
+
+        public Element getDocumentElement() {
+            for (Node child = getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    return (Element) child;
+                }
+            }
+            return null;
+        }
+
+        public Element createElement(String tagName) {
+            throw readOnly();
+        }
+
+        public DocumentFragment createDocumentFragment() {
+            throw readOnly();
+        }
+
+        public Text createTextNode(String data) {
+            throw readOnly();
+        }
+
+        public Comment createComment(String data) {
+            throw readOnly();
+        }
+
+        public CDATASection createCDATASection(String data) {
+            throw readOnly();
+        }
+
+        public ProcessingInstruction createProcessingInstruction(String target, String data) {
+            throw readOnly();
+        }
+
+        public Attr createAttribute(String name) {
+            throw readOnly();
+        }
+
+        public EntityReference createEntityReference(String name) {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagName(String tagname) {
+            return elementsByTagName(null, tagname);
+        }
+
+        public Node importNode(Node importedNode, boolean deep) {
+            throw readOnly();
+        }
+
+        public Element createElementNS(String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+
+        public Attr createAttributeNS(String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return elementsByTagName(namespaceURI == null ? "" : namespaceURI, localName);
+        }
+
+        public Element getElementById(String elementId) {
+            return tree.elementById(elementId);
+        }
+
+        public String getInputEncoding() {
+            return null;
+        }
+
+        public String getXmlEncoding() {
+            return null;
+        }
+
+        public boolean getXmlStandalone() {
+            return false;
+        }
+
+        public void setXmlStandalone(boolean xmlStandalone) {
+            throw readOnly();
+        }
+
+        public String getXmlVersion() {
+            return "1.0";
+        }
+
+        public void setXmlVersion(String xmlVersion) {
+            throw readOnly();
+        }
+
+        public boolean getStrictErrorChecking() {
+            return true;
+        }
+
+        public void setStrictErrorChecking(boolean strictErrorChecking) {}
+
+        public String getDocumentURI() {
+            return null;
+        }
+
+        public void setDocumentURI(String documentURI) {
+            throw readOnly();
+        }
+
+        public Node adoptNode(Node source) {
+            throw readOnly();
+        }
+
+        public DOMConfiguration getDomConfig() {
+            return null;
+        }
+
+        public void normalizeDocument() {}
+
+        public Node renameNode(Node n, String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+    }
+
+    private static final class MappedElement extends MappedNode implements Element {
+        MappedElement(Tree tree, int number) {
+            super(tree, number);
+        }
+
+        public String getNodeName() {
+            return tree.name(field(NAME));
+        }
+
+        public short getNodeType() {
+            return Node.ELEMENT_NODE;
+        }
+
+        public String getTagName() {
+            return getNodeName();
+        }
+
+        public String getLocalName() {
+            return tree.name(field(LOCAL_NAME));
+        }
+
+        public String getNamespaceURI() {
+            return tree.name(field(NAMESPACE));
+        }
+
+        public String getPrefix() {
+            String name = getNodeName();
+            return getLocalName() == null || name.indexOf(':') < 0 ? null : name.substring(0, name.indexOf(':'));
+        }
+
+        public NamedNodeMap getAttributes() {
+            return new AttributeMap(this);
+        }
+
+        public boolean hasAttributes() {
+            return field(ATTRIBUTE_COUNT) > 0;
+        }
+
+        public String getAttribute(String name) {
+            int attribute = attribute(name);
+            return attribute < 0 ? "" : tree.value(tree.attribute(attribute, ATTRIBUTE_VALUE));
+        }
+
+        public boolean hasAttribute(String name) {
+            return attribute(name) >= 0;
+        }
+
+        public Attr getAttributeNode(String name) {
+            int attribute = attribute(name);
+            return attribute < 0 ? null : new MappedAttr(tree, attribute, this);
+        }
+
+        public String getAttributeNS(String namespaceURI, String localName) {
+            int attribute = attribute(namespaceURI, localName);
+            return attribute < 0 ? "" : tree.value(tree.attribute(attribute, ATTRIBUTE_VALUE));
+        }
+
+        public boolean hasAttributeNS(String namespaceURI, String localName) {
+            return attribute(namespaceURI, localName) >= 0;
+        }
+
+        public Attr getAttributeNodeNS(String namespaceURI, String localName) {
+            int attribute = attribute(namespaceURI, localName);
+            return attribute < 0 ? null : new MappedAttr(tree, attribute, this);
+        }
+
+        public NodeList getElementsByTagName(String name) {
+            return elementsByTagName(null, name);
+        }
+
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return elementsByTagName(namespaceURI == null ? "" : namespaceURI, localName);
+        }
+
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        public void setAttribute(String name, String value) {
+            throw readOnly();
+        }
+
+        public void removeAttribute(String name) {
+            throw readOnly();
+        }
+
+        public Attr setAttributeNode(Attr newAttr) {
+            throw readOnly();
+        }
+
+        public Attr removeAttributeNode(Attr oldAttr) {
+            throw readOnly();
+        }
+
+        public void setAttributeNS(String namespaceURI, String qualifiedName, String value) {
+            throw readOnly();
+        }
+
+        public void removeAttributeNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+
+        public Attr setAttributeNodeNS(Attr newAttr) {
+            throw readOnly();
+        }
+
+        public void setIdAttribute(String name, boolean isId) {
+            throw readOnly();
+        }
+
+        public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) {
+            throw readOnly();
+        }
+
+        public void setIdAttributeNode(Attr idAttr, boolean isId) {
+            throw readOnly();
+        }
+
+        /**
+         * @return the index of the attribute with the qualified name, or -1 if the element doesn't have it
+         */
+        private int attribute(String name) {
+            int first = field(ATTRIBUTES);
+            for (int i = first; i < first + field(ATTRIBUTE_COUNT); i++) {
+                String actual = tree.name(tree.attribute(i, ATTRIBUTE_NAME));
+                if (actual == name || actual.equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the index of the attribute in the namespace with the local name, or -1 if the element doesn't have it;
+         *         attributes created without namespaces are in no namespace, with their name as local name
+         */
+        private int attribute(String namespace, String localName) {
+            if (namespace != null && namespace.length() == 0) {
+                namespace = null;
+            }
+            int first = field(ATTRIBUTES);
+            for (int i = first; i < first + field(ATTRIBUTE_COUNT); i++) {
+                String actualNamespace = tree.name(tree.attribute(i, ATTRIBUTE_NAMESPACE));
+                String actualName = tree.name(tree.attribute(i, ATTRIBUTE_LOCAL_NAME));
+                if (actualName == null) {
+                    actualName = tree.name(tree.attribute(i, ATTRIBUTE_NAME));
+                }
+                boolean inNamespace = namespace == null ? actualNamespace == null : namespace.equals(actualNamespace);
+                if (inNamespace && localName.equals(actualName)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static final class MappedText extends MappedNode implements Text {
+        MappedText(Tree tree, int number) {
+            super(tree, number);
+        }
+
+        public String getNodeName() {
+            return "#text";
+        }
+
+        public short getNodeType() {
+            return Node.TEXT_NODE;
+        }
+
+        public String getNodeValue() {
+            return getData();
+        }
+
+        public String getTextContent() {
+            return getData();
+        }
+
+        public String getData() {
+            return tree.value(field(NAME));
+        }
+
+        public void setData(String data) {
+            throw readOnly();
+        }
+
+        public int getLength() {
+            return getData().length();
+        }
+
+        public String substringData(int offset, int count) {
+            String data = getData();
+            return data.substring(offset, Math.min(data.length(), offset + count));
+        }
+
+        public void appendData(String arg) {
+            throw readOnly();
+        }
+
+        public void insertData(int offset, String arg) {
+            throw readOnly();
+        }
+
+        public void deleteData(int offset, int count) {
+            throw readOnly();
+        }
+
+        public void replaceData(int offset, int count, String arg) {
+            throw readOnly();
+        }
+
+        public Text splitText(int offset) {
+            throw readOnly();
+        }
+
+        public boolean isElementContentWhitespace() {
+            return false;
+        }
+
+        public String getWholeText() {
+            return getData();
+        }
+
+        public Text replaceWholeText(String content) {
+            throw readOnly();
+        }
+    }
+
+    private static final class MappedAttr extends MappedNode implements Attr {
+        private final MappedElement owner;
+
+        MappedAttr(Tree tree, int number, MappedElement owner) {
+            super(tree, number);
+            this.owner = owner;
+        }
+
+        public String getNodeName() {
+            return getName();
+        }
+
+        public short getNodeType() {
+            return Node.ATTRIBUTE_NODE;
+        }
+
+        public String getNodeValue() {
+            return getValue();
+        }
+
+        public String getTextContent() {
+            return getValue();
+        }
+
+        public String getLocalName() {
+            return tree.name(tree.attribute(number, ATTRIBUTE_LOCAL_NAME));
+        }
+
+        public String getNamespaceURI() {
+            return tree.name(tree.attribute(number, ATTRIBUTE_NAMESPACE));
+        }
+
+        public Node getParentNode() {
+            return null;
+        }
+
+        public Node getFirstChild() {
+            return null;
+        }
+
+        public Node getLastChild() {
+            return null;
+        }
+
+        public Node getPreviousSibling() {
+            return null;
+        }
+
+        public Node getNextSibling() {
+            return null;
+        }
+
+        public boolean hasChildNodes() {
+            return false;
+        }
+
+        public String getName() {
+            return tree.name(tree.attribute(number, ATTRIBUTE_NAME));
+        }
+
+        public boolean getSpecified() {
+            return true;
+        }
+
+        public String getValue() {
+            return tree.value(tree.attribute(number, ATTRIBUTE_VALUE));
+        }
+
+        public void setValue(String value) {
+            throw readOnly();
+        }
+
+        public Element getOwnerElement() {
+            return owner;
+        }
+
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        public boolean isId() {
+            return "id".equals(getName());
+        }
+    }
+
+    private static final class AttributeMap implements NamedNodeMap {
+        private final MappedElement element;
+
+        AttributeMap(MappedElement element) {
+            this.element = element;
+        }
+
+        public Node getNamedItem(String name) {
+            return element.getAttributeNode(name);
+        }
+
+        public Node getNamedItemNS(String namespaceURI, String localName) {
+            return element.getAttributeNodeNS(namespaceURI, localName);
+        }
+
+        public Node item(int index) {
+            if (index < 0 || index >= getLength()) {
+                return null;
+            }
+            return new MappedAttr(element.tree, element.field(ATTRIBUTES) + index, element);
+        }
+
+        public int getLength() {
+            return element.field(ATTRIBUTE_COUNT);
+        }
+
+        public Node setNamedItem(Node arg) {
+            throw readOnly();
+        }
+
+        public Node removeNamedItem(String name) {
+            throw readOnly();
+        }
+
+        public Node setNamedItemNS(Node arg) {
+            throw readOnly();
+        }
+
+        public Node removeNamedItemNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+    }
+
+    private static final class Listed implements NodeList {
+        private final List<Node> nodes;
+
+        Listed(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        public Node item(int index) {
+            return index < 0 || index >= nodes.size() ? null : nodes.get(index);
+        }
+
+        public int getLength() {
+            return nodes.size();
+        }
+    }
+}
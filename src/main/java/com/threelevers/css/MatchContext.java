@@ -0,0 +1,351 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.Elements.first;
+import static com.threelevers.css.Elements.next;
+import static com.threelevers.css.Elements.previous;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+
+/**
+ * Holds the state selectors share while matching elements of a document that doesn't change in the meantime, usually
+ * for the duration of one query. Selectors whose result for an element depends on other parts of the tree keep their
+ * per-element results here so that they are only worked out once.
+ */
+final class MatchContext {
+    private static final Object TYPE = new Object();
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+    
+    private Map<Object, Map<Element, Boolean>> memos;
+    private Map<Object, Positions> positions;
+    private Map<Object, Map<Element, Boolean>> preceded;
+    private Map<Element, String> languages;
+    private Map<Object, int[][]> subtrees;
+    private TextIndex text;
+    private DocumentNumbering numbering;
+    private QueryBudget.Meter meter;
+    
+    MatchContext() {}
+    
+    /**
+     * @param text index of the text of the document, shared with other contexts for the same document
+     */
+    MatchContext(TextIndex text) {
+        this.text = text;
+    }
+    
+    /**
+     * @param numbering numbering of the elements of the document, or {@code null} if it isn't numbered
+     */
+    MatchContext(TextIndex text, DocumentNumbering numbering) {
+        this.text = text;
+        this.numbering = numbering;
+    }
+    
+    /**
+     * @return the numbering of the elements of the document, or {@code null} if it isn't numbered
+     */
+    DocumentNumbering numbering() {
+        return numbering;
+    }
+    
+    /**
+     * Counts the work done in this context against the budget of the query, which then stops with a
+     * {@link QueryBudgetExceededException} as soon as it runs out.
+     */
+    void limit(QueryBudget.Meter meter) {
+        this.meter = meter;
+    }
+    
+    /**
+     * Records that the query visited another element.
+     */
+    void visited() {
+        if (meter != null) {
+            meter.visited();
+        }
+    }
+    
+    /**
+     * Records that a compound selector is about to be matched against an element.
+     */
+    void evaluated() {
+        if (meter != null) {
+            meter.evaluated();
+        }
+    }
+    
+    /**
+     * Finds whether an ancestor of the element matches a selector, using the numbering of the document. The first time
+     * a selector is asked for, the numbered elements are matched against it in document order, skipping the subtrees
+     * of those that match, which leaves the disjoint intervals of numbers the descendants of matching elements have.
+     * Every lookup after that is a binary search over them.
+     */
+    boolean descendsFrom(Element element, CssSelector selector) {
+        int number = numbering.number(element);
+        if (number < 0) {
+            for (Element e = Elements.parent(element); e != null; e = Elements.parent(e)) {
+                if (selector.matches(e, this)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        int[][] intervals = subtrees(selector);
+        int i = Arrays.binarySearch(intervals[0], number);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 2;
+        return i >= 0 && number <= intervals[1][i];
+    }
+    
+    private int[][] subtrees(CssSelector selector) {
+        if (subtrees == null) {
+            subtrees = new IdentityHashMap<Object, int[][]>();
+        }
+        int[][] intervals = subtrees.get(selector);
+        if (intervals == null) {
+            int[] starts = new int[16];
+            int[] ends = new int[16];
+            int count = 0;
+            int n = 0;
+            while (n < numbering.size()) {
+                if (selector.matches(numbering.element(n), this)) {
+                    if (count == starts.length) {
+                        starts = grow(starts, count);
+                        ends = grow(ends, count);
+                    }
+                    starts[count] = n;
+                    ends[count] = numbering.end(n);
+                    count++;
+                    n = numbering.end(n) + 1;
+                } else {
+                    n++;
+                }
+            }
+            intervals = new int[][] { trim(starts, count), trim(ends, count) };
+            subtrees.put(selector, intervals);
+        }
+        return intervals;
+    }
+    
+    private static int[] grow(int[] array, int count) {
+        int[] grown = new int[count * 2];
+        System.arraycopy(array, 0, grown, 0, count);
+        return grown;
+    }
+    
+    private static int[] trim(int[] array, int count) {
+        int[] trimmed = new int[count];
+        System.arraycopy(array, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    /**
+     * @param owner identifies the results, usually the selector (or part of one) computing them
+     * @return the results memoized so far for the owner, keyed by element identity
+     */
+    Map<Element, Boolean> memo(Object owner) {
+        if (memos == null) {
+            memos = new IdentityHashMap<Object, Map<Element, Boolean>>();
+        }
+        Map<Element, Boolean> memo = memos.get(owner);
+        if (memo == null) {
+            memo = new IdentityHashMap<Element, Boolean>();
+            memos.put(owner, memo);
+        }
+        return memo;
+    }
+    
+    /**
+     * Same as {@code selector.matches(element, context)}, but only worked out once per element and selector.
+     */
+    boolean matches(Element element, CssSelector selector) {
+        Map<Element, Boolean> memo = memo(selector);
+        Boolean matches = memo.get(element);
+        if (matches == null) {
+            matches = selector.matches(element, this);
+            memo.put(element, matches);
+        }
+        return matches;
+    }
+    
+    /**
+     * Finds whether an element sibling before the element matches a selector. Only the siblings after the nearest one
+     * already worked out are looked at, and they are all recorded on the way, so asking for every child of a parent
+     * takes a single walk over them.
+     */
+    boolean precededBy(Element element, CssSelector selector) {
+        if (preceded == null) {
+            preceded = new IdentityHashMap<Object, Map<Element, Boolean>>();
+        }
+        Map<Element, Boolean> memo = preceded.get(selector);
+        if (memo == null) {
+            memo = new IdentityHashMap<Element, Boolean>();
+            preceded.put(selector, memo);
+        }
+        Boolean known = memo.get(element);
+        if (known != null) {
+            return known;
+        }
+        Element start = element;
+        Element prev = previous(element);
+        while (prev != null && (known = memo.get(prev)) == null) {
+            start = prev;
+            prev = previous(prev);
+        }
+        boolean state = prev != null && (known || matches(prev, selector));
+        for (Element e = start; e != element; e = next(e)) {
+            memo.put(e, state);
+            state = state || matches(e, selector);
+        }
+        memo.put(element, state);
+        return state;
+    }
+    
+    /**
+     * Finds the position of an element among those of its siblings matching a selector. The positions of all the
+     * children of the parent are counted in one walk the first time one of them is asked for, and shared by every
+     * later lookup with the same selector.
+     * 
+     * @param element element with an element parent
+     * @param counted selector for the siblings to count
+     * @param fromEnd whether to count from the last sibling instead of from the first
+     * @return 1-based position of the element, or 0 if it doesn't match the selector itself
+     */
+    int position(Element element, CssSelector counted, boolean fromEnd) {
+        return positions(counted).of(element, counted, this, fromEnd);
+    }
+    
+    /**
+     * Same as {@link #position(Element, CssSelector, boolean)} for the siblings with the same tag name as the element.
+     */
+    int typePosition(Element element, boolean fromEnd) {
+        return positions(TYPE).of(element, null, this, fromEnd);
+    }
+
+    /**
+     * Finds the language of an element, given by its own {@code xml:lang} or {@code lang} attribute or else inherited
+     * from the nearest ancestor with one. The ancestors between the element and the nearest one already worked out
+     * are recorded on the way, so the language of every element is only looked up once.
+     * 
+     * @return the language, or the empty string if it isn't known
+     */
+    String language(Element element) {
+        if (languages == null) {
+            languages = new IdentityHashMap<Element, String>();
+        }
+        String language = languages.get(element);
+        if (language != null) {
+            return language;
+        }
+        List<Element> unresolved = new ArrayList<Element>();
+        Element e = element;
+        while (e != null && (language = languages.get(e)) == null) {
+            unresolved.add(e);
+            e = Elements.parent(e);
+        }
+        if (language == null) {
+            language = "";
+        }
+        for (int i = unresolved.size() - 1; i >= 0; i--) {
+            String own = ownLanguage(unresolved.get(i));
+            if (own != null) {
+                language = own;
+            }
+            languages.put(unresolved.get(i), language);
+        }
+        return language;
+    }
+
+    private static String ownLanguage(Element element) {
+        Attr xmlLang = element.getAttributeNodeNS(XML_NAMESPACE, "lang");
+        if (xmlLang != null) {
+            return xmlLang.getValue();
+        }
+        if (element.hasAttribute("xml:lang")) {
+            return element.getAttribute("xml:lang");
+        }
+        return element.hasAttribute("lang") ? element.getAttribute("lang") : null;
+    }
+
+    /**
+     * @return the normalized text of the elements, indexed the first time it is needed
+     */
+    TextIndex text() {
+        if (text == null) {
+            text = new TextIndex();
+        }
+        return text;
+    }
+
+    private Positions positions(Object key) {
+        if (positions == null) {
+            positions = new IdentityHashMap<Object, Positions>();
+        }
+        Positions p = positions.get(key);
+        if (p == null) {
+            p = new Positions();
+            positions.put(key, p);
+        }
+        return p;
+    }
+    
+    private static final class Positions {
+        private final Map<Element, Boolean> counted = new IdentityHashMap<Element, Boolean>();
+        private final Map<Element, Integer> fromStart = new IdentityHashMap<Element, Integer>();
+        private final Map<Element, Integer> fromEnd = new IdentityHashMap<Element, Integer>();
+        
+        int of(Element element, CssSelector selector, MatchContext context, boolean last) {
+            Element parent = (Element) element.getParentNode();
+            if (!counted.containsKey(parent)) {
+                if (selector == null) {
+                    countTypes(parent);
+                } else {
+                    count(parent, selector, context);
+                }
+                counted.put(parent, Boolean.TRUE);
+            }
+            Integer position = (last ? fromEnd : fromStart).get(element);
+            return position == null ? 0 : position;
+        }
+        
+        private void count(Element parent, CssSelector selector, MatchContext context) {
+            int total = 0;
+            for (Element child = first(parent); child != null; child = next(child)) {
+                if (selector.matches(child, context)) {
+                    fromStart.put(child, ++total);
+                }
+            }
+            for (Element child = first(parent); child != null; child = next(child)) {
+                Integer position = fromStart.get(child);
+                if (position != null) {
+                    fromEnd.put(child, total - position + 1);
+                }
+            }
+        }
+        
+        private void countTypes(Element parent) {
+            Map<String, Integer> totals = new HashMap<String, Integer>();
+            for (Element child = first(parent); child != null; child = next(child)) {
+                String type = child.getTagName().toLowerCase(Locale.ENGLISH);
+                Integer total = totals.get(type);
+                total = total == null ? 1 : total + 1;
+                totals.put(type, total);
+                fromStart.put(child, total);
+            }
+            for (Element child = first(parent); child != null; child = next(child)) {
+                fromEnd.put(child, totals.get(child.getTagName().toLowerCase(Locale.ENGLISH)) - fromStart.get(child) + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.threelevers.css.CssSelectors.any;
+import static com.threelevers.css.CssSelectors.checked;
+import static com.threelevers.css.CssSelectors.disabled;
+import static com.threelevers.css.CssSelectors.empty;
+import static com.threelevers.css.CssSelectors.enabled;
+import static com.threelevers.css.CssSelectors.firstChild;
+import static com.threelevers.css.CssSelectors.firstOfType;
+import static com.threelevers.css.CssSelectors.lastChild;
+import static com.threelevers.css.CssSelectors.lastOfType;
+import static com.threelevers.css.CssSelectors.onlyChild;
+import static com.threelevers.css.CssSelectors.onlyOfType;
+import static com.threelevers.css.CssSelectors.selected;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.BaseRecognizer;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+
+import com.threelevers.css.CssSelectors.AttributeComparedToAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.AttributeComparedToStringSelectorImpl;
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.GroupingSelector;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.HasAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.LangPseudoSelector;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.NotPseudoSelector;
+import com.threelevers.css.CssSelectors.NthChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthLastChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthLastOfPseudoSelector;
+import com.threelevers.css.CssSelectors.NthOfTypePseudoSelector;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Compiles selectors into plain Java matcher classes at build time. Each generated class has the tag names and
+ * attribute values of its selector inlined as constants and a specialized loop for every combinator, so nothing is
+ * parsed or interpreted at runtime.
+ * <p>
+ * Selectors are declared in properties files mapping the simple name of the class to generate to the selector it
+ * matches, e.g. {@code ProductLink = div.product > a[href]}. Invalid selectors abort generation, so running this
+ * from the build (see the {@code exec-maven-plugin} execution in this project's pom) fails the build on them.
+ * Usage:
+ * <pre>
+ *   MatcherGenerator &lt;output directory&gt; &lt;package&gt; &lt;selectors.properties&gt;...
+ * </pre>
+ */
+public final class MatcherGenerator {
+    private MatcherGenerator() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            throw new IllegalArgumentException("Usage: MatcherGenerator <output directory> <package> <selectors.properties>...");
+        }
+        File packageDir = new File(args[0], args[1].replace('.', File.separatorChar));
+        if (!packageDir.isDirectory() && !packageDir.mkdirs()) {
+            throw new IOException("Unable to create directory " + packageDir);
+        }
+        for (int i = 2; i < args.length; i++) {
+            for (Map.Entry<Object, Object> entry : load(new File(args[i])).entrySet()) {
+                String className = ((String) entry.getKey()).trim();
+                String selector = ((String) entry.getValue()).trim();
+                String source;
+                try {
+                    source = generate(args[1], className, selector);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(args[i] + ": " + className + ": " + e.getMessage(), e);
+                }
+                Writer out = new OutputStreamWriter(new FileOutputStream(new File(packageDir, className + ".java")), "UTF-8");
+                try {
+                    out.write(source);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Generates the source of a matcher class for a selector.
+     *
+     * @param packageName package of the generated class
+     * @param className simple name of the generated class
+     * @param selector selector the generated class will match
+     * @return Java source of the matcher class
+     * @throws IllegalArgumentException if the selector is not valid
+     */
+    public static String generate(String packageName, String className, String selector) {
+        checkNotNull(packageName, "packageName");
+        checkNotNull(className, "className");
+        checkNotNull(selector, "selector");
+        checkArgument(isJavaIdentifier(className), "'%s' is not a valid class name", className);
+        return new Generation(packageName, className, selector, parseStrictly(selector)).source();
+    }
+
+    /**
+     * Unlike the runtime parser, which reports errors and recovers, this refuses any selector with a syntax error or
+     * trailing input.
+     */
+    static GroupingSelector parseStrictly(final String selector) {
+        CssSelectorsLexer lex = new CssSelectorsLexer(new ANTLRStringStream(selector)) {
+            @Override
+            public void reportError(RecognitionException e) {
+                throw invalid(selector, this, e);
+            }
+        };
+        CommonTokenStream tokens = new CommonTokenStream(lex);
+        CssSelectorsParser parser = new CssSelectorsParser(tokens) {
+            @Override
+            public void reportError(RecognitionException e) {
+                throw invalid(selector, this, e);
+            }
+        };
+        GroupingSelector parsed;
+        try {
+            parsed = parser.selectors();
+        } catch (RecognitionException e) {
+            throw invalid(selector, parser, e);
+        }
+        if (tokens.LT(1).getType() != Token.EOF) {
+            throw new IllegalArgumentException("Invalid selector '" + selector + "', unexpected '" + tokens.LT(1).getText()
+                + "' at position " + tokens.LT(1).getCharPositionInLine());
+        }
+        return parsed;
+    }
+
+    private static IllegalArgumentException invalid(String selector, BaseRecognizer recognizer,
+            RecognitionException e) {
+        return new IllegalArgumentException("Invalid selector '" + selector + "', "
+            + recognizer.getErrorMessage(e, recognizer.getTokenNames()) + " at position " + e.charPositionInLine, e);
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties selectors = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            selectors.load(in);
+        } finally {
+            in.close();
+        }
+        return selectors;
+    }
+
+    private static boolean isJavaIdentifier(String name) {
+        if (name.length() == 0 || !Character.isJavaIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Generation {
+        private final String packageName;
+        private final String className;
+        private final String selectorText;
+        private final GroupingSelector selector;
+        private final StringBuilder methods = new StringBuilder();
+
+        Generation(String packageName, String className, String selectorText, GroupingSelector selector) {
+            this.packageName = packageName;
+            this.className = className;
+            this.selectorText = selectorText;
+            this.selector = selector;
+        }
+
+        String source() {
+            List<String> alternatives = new ArrayList<String>();
+            int alternative = 0;
+            for (CombinableSelector combinable : ((GroupingSelectorImpl) selector).selectors) {
+                alternatives.add(chain(alternative++, combinable) + "(element)");
+            }
+
+            StringBuilder sb = new StringBuilder();
+            if (packageName.length() > 0) {
+                sb.append("package ").append(packageName).append(";\n\n");
+            }
+            sb.append("import java.util.ArrayList;\n");
+            sb.append("import java.util.List;\n\n");
+            sb.append("import org.w3c.dom.Element;\n");
+            sb.append("import org.w3c.dom.Node;\n\n");
+            sb.append("import com.threelevers.css.MatcherSupport;\n\n");
+            sb.append("/**\n");
+            sb.append(" * Matches ").append(escapeComment(selector.toString())).append("\n");
+            sb.append(" * <p>\n");
+            sb.append(" * Generated by ").append(MatcherGenerator.class.getName()).append(", do not edit.\n");
+            sb.append(" */\n");
+            sb.append("public final class ").append(className).append(" {\n");
+            sb.append("    public static final String SELECTOR = ").append(literal(selectorText)).append(";\n\n");
+            sb.append("    private ").append(className).append("() {}\n\n");
+            sb.append("    public static boolean matches(Element element) {\n");
+            sb.append("        return ").append(join(alternatives, "\n            || ")).append(";\n");
+            sb.append("    }\n\n");
+            sb.append("    public static List<Element> select(Element root) {\n");
+            sb.append("        List<Element> matches = new ArrayList<Element>();\n");
+            sb.append("        for (Node node = root; node != null; node = MatcherSupport.following(node, root)) {\n");
+            sb.append("            if (node.getNodeType() == Node.ELEMENT_NODE && matches((Element) node)) {\n");
+            sb.append("                matches.add((Element) node);\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("        return matches;\n");
+            sb.append("    }\n");
+            sb.append(methods);
+            sb.append("}\n");
+            return sb.toString();
+        }
+
+        /**
+         * Writes one method per compound selector in the chain, each of which checks its compound and then walks
+         * to the elements the combinator allows and calls the method for the compound on its left.
+         *
+         * @return name of the method matching the whole chain
+         */
+        private String chain(int alternative, CombinableSelector combinable) {
+            LinkedList<CombinatorSelectorImpl> chain = new LinkedList<CombinatorSelectorImpl>();
+            CombinatorSelector current = ((CombinableSelectorImpl) combinable).selector;
+            while (current instanceof CombinatorSelectorImpl) {
+                chain.addFirst((CombinatorSelectorImpl) current);
+                current = ((CombinatorSelectorImpl) current).lhs;
+            }
+
+            String method = "matches" + alternative + "_0";
+            methods.append("\n    private static boolean ").append(method).append("(Element element) {\n");
+            methods.append("        return ").append(compound(((NoCombinatorSelectorImpl) current).selector)).append(";\n");
+            methods.append("    }\n");
+
+            int position = 1;
+            for (CombinatorSelectorImpl combinator : chain) {
+                String lhs = method;
+                method = "matches" + alternative + "_" + position++;
+                methods.append("\n    private static boolean ").append(method).append("(Element element) {\n");
+                methods.append("        if (!(").append(compound(combinator.rhs)).append(")) {\n");
+                methods.append("            return false;\n");
+                methods.append("        }\n");
+                switch (combinator.combinator) {
+                    case DESCENDANT:
+                        methods.append("        for (Element e = MatcherSupport.parent(element); e != null; e = MatcherSupport.parent(e)) {\n");
+                        methods.append("            if (").append(lhs).append("(e)) {\n");
+                        methods.append("                return true;\n");
+                        methods.append("            }\n");
+                        methods.append("        }\n");
+                        methods.append("        return false;\n");
+                        break;
+                    case CHILDOF:
+                        methods.append("        Element parent = MatcherSupport.parent(element);\n");
+                        methods.append("        return parent != null && ").append(lhs).append("(parent);\n");
+                        break;
+                    case ADJACENT:
+                        methods.append("        Element previous = MatcherSupport.previous(element);\n");
+                        methods.append("        return previous != null && ").append(lhs).append("(previous);\n");
+                        break;
+                    case SIBLING:
+                        methods.append("        for (Element e = MatcherSupport.previous(element); e != null; e = MatcherSupport.previous(e)) {\n");
+                        methods.append("            if (").append(lhs).append("(e)) {\n");
+                        methods.append("                return true;\n");
+                        methods.append("            }\n");
+                        methods.append("        }\n");
+                        methods.append("        return false;\n");
+                        break;
+                }
+                methods.append("    }\n");
+            }
+            return method;
+        }
+
+        private String compound(SimpleSelector selector) {
+            if (!(selector instanceof SimpleSelectorImpl)) {
+                return condition(selector);
+            }
+            List<String> conditions = new ArrayList<String>();
+            for (SimpleSelector s : ((SimpleSelectorImpl) selector).selectors) {
+                if (s != any()) {
+                    conditions.add(condition(s));
+                }
+            }
+            return conditions.isEmpty() ? "true" : join(conditions, " && ");
+        }
+
+        private String condition(SimpleSelector selector) {
+            if (selector == any()) {
+                return "true";
+            } else if (selector instanceof SimpleSelectorImpl) {
+                return "(" + compound(selector) + ")";
+            } else if (selector instanceof TypSelectorImpl) {
+                return literal(((TypSelectorImpl) selector).tagName) + ".equalsIgnoreCase(MatcherSupport.localName(element))";
+            } else if (selector instanceof IdSelector) {
+                return compare("id", AttributeComparator.EQ, literal(((IdSelector) selector).id));
+            } else if (selector instanceof ClassSelector) {
+                return compare("class", AttributeComparator.HAS, literal(((ClassSelector) selector).className));
+            } else if (selector instanceof HasAttributeSelectorImpl) {
+                return "element.hasAttribute(" + literal(((HasAttributeSelectorImpl) selector).attribName) + ")";
+            } else if (selector instanceof AttributeComparedToStringSelectorImpl) {
+                AttributeComparedToStringSelectorImpl s = (AttributeComparedToStringSelectorImpl) selector;
+                return compare(s.attribName, s.comparator, literal(s.value));
+            } else if (selector instanceof AttributeComparedToAttributeSelectorImpl) {
+                AttributeComparedToAttributeSelectorImpl s = (AttributeComparedToAttributeSelectorImpl) selector;
+                return "element.hasAttribute(" + literal(s.rhsAttribName) + ") && "
+                    + compare(s.lhsAttribName, s.comparator, "element.getAttribute(" + literal(s.rhsAttribName) + ")");
+            } else if (selector instanceof LangPseudoSelector) {
+                return "MatcherSupport.lang(element, " + literal(((LangPseudoSelector) selector).range) + ")";
+            } else if (selector instanceof NotPseudoSelector) {
+                return "!(" + condition(((NotPseudoSelector) selector).selector) + ")";
+            } else if (selector instanceof NthChildPseudoSelector && ((NthChildPseudoSelector) selector).of == null) {
+                return nth(((NthChildPseudoSelector) selector).expr, "childIndex");
+            } else if (selector instanceof NthLastChildPseudoSelector && ((NthLastChildPseudoSelector) selector).of == null) {
+                return nth(((NthLastChildPseudoSelector) selector).expr, "childIndexFromEnd");
+            } else if (selector instanceof NthOfTypePseudoSelector) {
+                return nth(((NthOfTypePseudoSelector) selector).expr, "typeIndex");
+            } else if (selector instanceof NthLastOfPseudoSelector) {
+                return nth(((NthLastOfPseudoSelector) selector).expr, "typeIndexFromEnd");
+            } else if (selector == firstChild()) {
+                return "MatcherSupport.parent(element) != null && MatcherSupport.previous(element) == null";
+            } else if (selector == lastChild()) {
+                return "MatcherSupport.parent(element) != null && MatcherSupport.next(element) == null";
+            } else if (selector == onlyChild()) {
+                return "MatcherSupport.parent(element) != null && MatcherSupport.previous(element) == null"
+                    + " && MatcherSupport.next(element) == null";
+            } else if (selector == firstOfType()) {
+                return "MatcherSupport.parent(element) != null && MatcherSupport.typeIndex(element) == 1";
+            } else if (selector == lastOfType()) {
+                return "MatcherSupport.parent(element) != null && MatcherSupport.typeIndexFromEnd(element) == 1";
+            } else if (selector == onlyOfType()) {
+                return "MatcherSupport.parent(element) != null && MatcherSupport.typeIndex(element) == 1"
+                    + " && MatcherSupport.typeIndexFromEnd(element) == 1";
+            } else if (selector == empty()) {
+                return "!element.hasChildNodes()";
+            } else if (selector == enabled()) {
+                return "(" + formControl() + ") && !element.hasAttribute(\"disabled\")";
+            } else if (selector == disabled()) {
+                return "(" + formControl() + ") && element.hasAttribute(\"disabled\")";
+            } else if (selector == checked()) {
+                return "element.hasAttribute(\"type\") && (\"checkbox\".equals(element.getAttribute(\"type\"))"
+                    + " || \"radio\".equals(element.getAttribute(\"type\"))) && element.hasAttribute(\"checked\")";
+            } else if (selector == selected()) {
+                return "\"option\".equalsIgnoreCase(element.getTagName()) && element.hasAttribute(\"selected\")";
+            }
+            throw new IllegalArgumentException("Don't know how to generate a matcher for '" + selector + "'");
+        }
+
+        private static String compare(String attribName, AttributeComparator comparator, String rhs) {
+            String lhs = "element.getAttribute(" + literal(attribName) + ")";
+            String hasAttrib = "element.hasAttribute(" + literal(attribName) + ") && ";
+            switch (comparator) {
+                case EQ:
+                    return hasAttrib + lhs + ".equals(" + rhs + ")";
+                case STARTS_WITH:
+                    return hasAttrib + lhs + ".startsWith(" + rhs + ")";
+                case ENDS_WITH:
+                    return hasAttrib + lhs + ".endsWith(" + rhs + ")";
+                case CONTAINS:
+                    return hasAttrib + lhs + ".contains(" + rhs + ")";
+                case HAS:
+                    return hasAttrib + "MatcherSupport.has(" + lhs + ", " + rhs + ")";
+                case EQUALS_LANG_SUBCODE:
+                    return hasAttrib + "MatcherSupport.equalsLangSubcode(" + lhs + ", " + rhs + ")";
+            }
+            throw new AssertionError(comparator);
+        }
+
+        private static String nth(NthExpression expr, String index) {
+            return "MatcherSupport.parent(element) != null && MatcherSupport.nth(" + expr.a + ", " + expr.b
+                + ", MatcherSupport." + index + "(element))";
+        }
+
+        private static String formControl() {
+            return "\"input\".equalsIgnoreCase(element.getTagName()) || \"textarea\".equalsIgnoreCase(element.getTagName())"
+                + " || \"select\".equalsIgnoreCase(element.getTagName()) || \"button\".equalsIgnoreCase(element.getTagName())";
+        }
+    }
+
+    static String literal(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c >= 0x20 && c < 0x7f) {
+                sb.append(c);
+            } else {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String escapeComment(String s) {
+        return s.replace("*/", "*&#47;").replace("<", "&lt;").replace(">", "&gt;").replace("\\u", "\\\\u");
+    }
+
+    private static String join(List<String> parts, String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : parts) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(part);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,109 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Helpers called from the matcher classes written by {@link MatcherGenerator}. They share their semantics with the
+ * runtime selectors so that a generated matcher always agrees with selecting by the same selector at runtime.
+ */
+public final class MatcherSupport {
+    private MatcherSupport() {}
+
+    /**
+     * @return the local name of the element, or its tag name if it wasn't created with namespaces
+     */
+    public static String localName(Element element) {
+        return CssSelectors.localName(element);
+    }
+
+    public static Element parent(Element element) {
+        return Elements.parent(element);
+    }
+
+    public static Element previous(Element element) {
+        return Elements.previous(element);
+    }
+
+    public static Element next(Element element) {
+        return Elements.next(element);
+    }
+
+    /**
+     * @return the 1-based position of the element among its element siblings
+     */
+    public static int childIndex(Element element) {
+        return Elements.indexOf(element) + 1;
+    }
+
+    /**
+     * @return the 1-based position of the element among its element siblings, counting from the last one
+     */
+    public static int childIndexFromEnd(Element element) {
+        int index = 1;
+        for (Element e = next(element); e != null; e = next(e)) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the 1-based position of the element among its element siblings with the same tag name
+     */
+    public static int typeIndex(Element element) {
+        int index = 1;
+        for (Element e = previous(element); e != null; e = previous(e)) {
+            if (e.getTagName().equalsIgnoreCase(element.getTagName())) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return the 1-based position of the element among its element siblings with the same tag name, counting from
+     *         the last one
+     */
+    public static int typeIndexFromEnd(Element element) {
+        int index = 1;
+        for (Element e = next(element); e != null; e = next(e)) {
+            if (e.getTagName().equalsIgnoreCase(element.getTagName())) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    public static boolean nth(int a, int b, int index) {
+        return NthExpression.matches(a, b, index);
+    }
+
+    public static boolean has(String value, String element) {
+        return AttributeComparator.HAS.compare(value, element);
+    }
+
+    public static boolean equalsLangSubcode(String value, String langSubcode) {
+        return AttributeComparator.EQUALS_LANG_SUBCODE.compare(value, langSubcode);
+    }
+
+    /**
+     * @return whether the language of the element, inherited from its ancestors if it has no lang attribute, is in
+     *         the language range
+     */
+    public static boolean lang(Element element, String range) {
+        checkNotNull(element, "element");
+        return CssSelectors.LangPseudoSelector.matchesRange(new MatchContext().language(element), range);
+    }
+
+    /**
+     * Finds the node after this one in document order without leaving the subtree rooted at {@code root}.
+     *
+     * @return the following node, or {@code null} once the whole subtree has been visited
+     */
+    public static Node following(Node node, Node root) {
+        checkNotNull(node, "node");
+        return Nodes.following(node, root);
+    }
+}
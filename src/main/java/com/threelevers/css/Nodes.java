@@ -15,6 +15,31 @@ public final class Nodes {
         return isElement.apply(node);
     }
     
+    /**
+     * Finds the node after this one in document order without leaving the subtree rooted at {@code root}.
+     *
+     * @return the following node, or {@code null} once the whole subtree has been visited
+     */
+    static Node following(Node node, Node root) {
+        if (node.getFirstChild() != null) {
+            return node.getFirstChild();
+        }
+        return followingSubtree(node, root);
+    }
+    
+    /**
+     * Same as {@link #following(Node, Node)}, but skips the descendants of the node.
+     */
+    static Node followingSubtree(Node node, Node root) {
+        while (node != root) {
+            if (node.getNextSibling() != null) {
+                return node.getNextSibling();
+            }
+            node = node.getParentNode();
+        }
+        return null;
+    }
+    
     static Iterable<Node> asIterable(final NodeList nodes) {
         return new Iterable<Node>() {
             public Iterator<Node> iterator() {
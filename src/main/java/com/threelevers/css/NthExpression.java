@@ -10,6 +10,10 @@ class NthExpression {
     }
 
     public boolean matches(int elementNo) {
+        return matches(a, b, elementNo);
+    }
+    
+    static boolean matches(int a, int b, int elementNo) {
         if (a == 0) {
             return elementNo == b;
         }
@@ -0,0 +1,129 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.threelevers.css.CssSelectors.selectors;
+import static java.util.Collections.unmodifiableList;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * A document prepared for running many queries against. Preparing it walks the document once to collect
+ * {@link DocumentStatistics statistics} that queries are then planned with, so that, for instance, a query for a class
+ * only a handful of elements have is narrowed to their subtrees, and one for a tag the document doesn't have at all
+ * doesn't walk it. The normalized text the text pseudo-classes look at is also shared by all the queries.
+ * <p>
+ * The document must not change once it is prepared. Like the DOM it wraps, a prepared document is not safe for use by
+ * several threads at once.
+ */
+public final class PreparedDocument {
+    private final Element root;
+    private final DocumentStatistics statistics;
+    private final TextIndex text;
+    private final DocumentNumbering numbering;
+    private final SetExecutor sets;
+
+    private PreparedDocument(Element root, DocumentStatistics statistics, TextIndex text, DocumentNumbering numbering) {
+        this.root = root;
+        this.statistics = statistics;
+        this.text = text;
+        this.numbering = numbering;
+        this.sets = numbering == null ? null : new SetExecutor(numbering, text);
+    }
+
+    public static PreparedDocument prepare(Document doc) {
+        checkNotNull(doc, "doc");
+        Element root = doc.getDocumentElement();
+        return new PreparedDocument(root, new DocumentStatistics(root), new TextIndex(), null);
+    }
+
+    /**
+     * Numbers the elements of the document in document order, along with the extent of their subtrees, so that
+     * descendant combinators whose left side is a single compound selector are answered by looking up the number of the
+     * element among the subtrees of the elements matching that side, instead of walking up its ancestors. It takes
+     * another walk over the document and memory for every element, which pays off on deep documents queried often.
+     * 
+     * @return a prepared document sharing the statistics and text of this one, with its elements numbered
+     */
+    public PreparedDocument numbered() {
+        if (numbering != null) {
+            return this;
+        }
+        return new PreparedDocument(root, statistics, text, new DocumentNumbering(root));
+    }
+
+    public Iterable<Element> select(String selector) {
+        return select(selector, new QueryStats());
+    }
+
+    /**
+     * Same as {@link #select(String)}, recording how the query was run in {@code stats}.
+     */
+    public Iterable<Element> select(String selector, QueryStats stats) {
+        checkNotNull(selector, "selector");
+        checkNotNull(stats, "stats");
+        return unmodifiableList(QueryExecutor.select(root, selector, selectors(selector), new MatchContext(text, numbering), stats, statistics));
+    }
+
+    /**
+     * Same as {@link #select(String)}, but evaluated a set of elements at a time: each compound of the selector is
+     * evaluated to the set of all the elements it matches, using indexes of the types, ids and classes of the document
+     * built on first use, and the sets are then joined according to the combinators between the compounds. This is
+     * several times faster for selectors matching many elements, such as those extracting every cell of a table, and
+     * only possible on a {@link #numbered()} document.
+     * 
+     * @throws IllegalStateException if the document isn't numbered
+     */
+    public Iterable<Element> selectAll(String selector) {
+        return selectAll(selector, new QueryStats());
+    }
+
+    /**
+     * Same as {@link #selectAll(String)}, recording how the query was run in {@code stats}.
+     */
+    public Iterable<Element> selectAll(String selector, QueryStats stats) {
+        checkNotNull(selector, "selector");
+        checkNotNull(stats, "stats");
+        checkState(sets != null, "the document must be numbered to select a set at a time");
+        return unmodifiableList(sets.select(selectors(selector), stats));
+    }
+
+    public int getElementCount() {
+        return statistics.elements();
+    }
+
+    public int getTagCount(String tagName) {
+        checkNotNull(tagName, "tagName");
+        return statistics.tags(tagName);
+    }
+
+    public int getIdCount(String id) {
+        checkNotNull(id, "id");
+        return statistics.ids(id);
+    }
+
+    public int getClassCount(String className) {
+        checkNotNull(className, "className");
+        return statistics.classes(className);
+    }
+
+    public int getAttributeCount(String attribName) {
+        checkNotNull(attribName, "attribName");
+        return statistics.attributes(attribName);
+    }
+
+    /**
+     * @return the depth of the deepest element, the root being at depth 0
+     */
+    public int getMaxDepth() {
+        return statistics.maxDepth();
+    }
+
+    /**
+     * @return the largest number of element children any one element has
+     */
+    public int getMaxFanOut() {
+        return statistics.maxFanOut();
+    }
+}
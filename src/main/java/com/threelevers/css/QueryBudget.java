@@ -0,0 +1,150 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits on the work one query may do, for selectors or documents that can't be trusted to be reasonable. A query
+ * going over its budget stops where it is with a {@link QueryBudgetExceededException}, which carries the statistics of
+ * the work done up to then. Budgets are immutable, and each method returns a budget with one more limit set:
+ * <pre>
+ *   QueryBudget budget = QueryBudget.unlimited().maxElementsVisited(100000).timeout(2, TimeUnit.SECONDS);
+ * </pre>
+ * Elements visited and predicate evaluations, that is the times a compound selector is matched against an element,
+ * including the ancestors and siblings combinators look at, are counted as they happen. The deadline, the
+ * {@link Cancellation} and the interrupt status of the thread running the query are only looked at every
+ * {@link #POLL_INTERVAL} of them, so checking a budget costs next to nothing.
+ */
+public final class QueryBudget {
+    static final int POLL_INTERVAL = 1024;
+
+    private static final QueryBudget UNLIMITED = new QueryBudget(Long.MAX_VALUE, Long.MAX_VALUE, 0, null);
+
+    public enum Limit {
+        ELEMENTS_VISITED, PREDICATE_EVALUATIONS, DEADLINE, CANCELLED, INTERRUPTED
+    }
+
+    private final long maxElementsVisited;
+    private final long maxPredicateEvaluations;
+    private final long timeoutNanos;
+    private final Cancellation cancellation;
+
+    private QueryBudget(long maxElementsVisited, long maxPredicateEvaluations, long timeoutNanos, Cancellation cancellation) {
+        this.maxElementsVisited = maxElementsVisited;
+        this.maxPredicateEvaluations = maxPredicateEvaluations;
+        this.timeoutNanos = timeoutNanos;
+        this.cancellation = cancellation;
+    }
+
+    /**
+     * @return a budget with no limits, other than the interrupt status of the thread running the query
+     */
+    public static QueryBudget unlimited() {
+        return UNLIMITED;
+    }
+
+    public QueryBudget maxElementsVisited(long max) {
+        checkArgument(max >= 0, "max must not be negative");
+        return new QueryBudget(max, maxPredicateEvaluations, timeoutNanos, cancellation);
+    }
+
+    public QueryBudget maxPredicateEvaluations(long max) {
+        checkArgument(max >= 0, "max must not be negative");
+        return new QueryBudget(maxElementsVisited, max, timeoutNanos, cancellation);
+    }
+
+    /**
+     * @param timeout how long the query may run for, from the time it starts
+     */
+    public QueryBudget timeout(long timeout, TimeUnit unit) {
+        checkArgument(timeout > 0, "timeout must be positive");
+        checkNotNull(unit, "unit");
+        return new QueryBudget(maxElementsVisited, maxPredicateEvaluations, unit.toNanos(timeout), cancellation);
+    }
+
+    public QueryBudget cancelledBy(Cancellation cancellation) {
+        checkNotNull(cancellation, "cancellation");
+        return new QueryBudget(maxElementsVisited, maxPredicateEvaluations, timeoutNanos, cancellation);
+    }
+
+    /**
+     * Lets another thread stop the queries run with a budget it was given to, and any started with it later.
+     */
+    public static final class Cancellation {
+        private volatile boolean cancelled;
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * @return the meter of a query starting now, reporting the statistics of the query when it runs out
+     */
+    Meter start(QueryStats stats) {
+        return new Meter(stats);
+    }
+
+    /**
+     * Counts the work of one query against the budget.
+     */
+    final class Meter {
+        private final QueryStats stats;
+        private final long deadline;
+        private long visited;
+        private long evaluations;
+        /** how many more elements or evaluations until the next poll, which the first one does right away */
+        private int countdown = 1;
+
+        private Meter(QueryStats stats) {
+            this.stats = stats;
+            this.deadline = timeoutNanos == 0 ? 0 : System.nanoTime() + timeoutNanos;
+        }
+
+        void visited() {
+            if (++visited > maxElementsVisited) {
+                exceeded(Limit.ELEMENTS_VISITED);
+            }
+            if (--countdown == 0) {
+                poll();
+            }
+        }
+
+        void evaluated() {
+            if (++evaluations > maxPredicateEvaluations) {
+                exceeded(Limit.PREDICATE_EVALUATIONS);
+            }
+            if (--countdown == 0) {
+                poll();
+            }
+        }
+
+        private void poll() {
+            countdown = POLL_INTERVAL;
+            if (cancellation != null && cancellation.isCancelled()) {
+                exceeded(Limit.CANCELLED);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                exceeded(Limit.INTERRUPTED);
+            }
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                exceeded(Limit.DEADLINE);
+            }
+        }
+
+        private void exceeded(Limit limit) {
+            throw new QueryBudgetExceededException(limit, stats, evaluations);
+        }
+    }
+
+    public String toString() {
+        return "QueryBudget[maxElementsVisited=" + maxElementsVisited + ", maxPredicateEvaluations="
+            + maxPredicateEvaluations + ", timeoutNanos=" + timeoutNanos + ", cancellable=" + (cancellation != null) + "]";
+    }
+}
@@ -0,0 +1,40 @@
+package com.threelevers.css;
+
+import com.threelevers.css.QueryBudget.Limit;
+
+/**
+ * Thrown by a query that went over its {@link QueryBudget}, or was cancelled or interrupted, before it was done.
+ */
+public final class QueryBudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final Limit limit;
+    private final transient QueryStats stats;
+    private final long predicateEvaluations;
+
+    QueryBudgetExceededException(Limit limit, QueryStats stats, long predicateEvaluations) {
+        super("query stopped by its budget (" + limit + ") after visiting " + stats.getElementsVisited()
+                + " elements and " + predicateEvaluations + " predicate evaluations");
+        this.limit = limit;
+        this.stats = stats;
+        this.predicateEvaluations = predicateEvaluations;
+    }
+
+    /**
+     * @return the limit the query ran into
+     */
+    public Limit getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return the statistics of the query up to the time it stopped
+     */
+    public QueryStats getStats() {
+        return stats;
+    }
+
+    public long getPredicateEvaluations() {
+        return predicateEvaluations;
+    }
+}
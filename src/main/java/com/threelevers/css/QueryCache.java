@@ -0,0 +1,216 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.threelevers.css.CssSelectors.selectors;
+import static java.util.Collections.unmodifiableList;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+/**
+ * Caches the elements queries select from whole documents, so that asking the same selector of the same unchanged
+ * document again doesn't walk it again. Results are kept per document and selector, and stamped with the version the
+ * document had when the query was run:
+ * <ul>
+ * <li>documents supporting DOM mutation events get a listener bumping their version whenever they change,</li>
+ * <li>the version of other documents has to be bumped by calling {@link #modified(Document)} after changing them.</li>
+ * </ul>
+ * A result stamped with an older version than the document has is run again on its next use.
+ * <p>
+ * The results of a document are attached to it as user data, so they are reachable from the document but don't keep
+ * it from being collected, and the cache itself only refers to documents weakly. The least recently used results are
+ * evicted once there are more than the maximum number of them, or their estimated size goes over the maximum number of
+ * bytes. Like the DOM, a cache is not safe for use by several threads at once.
+ */
+public final class QueryCache {
+    // estimated bytes for a result, on top of the selector and a reference to each element
+    static final long ENTRY_BYTES = 96;
+    static final long ELEMENT_BYTES = 8;
+
+    private static final String[] MUTATIONS = { "DOMSubtreeModified", "DOMNodeInserted", "DOMNodeRemoved",
+            "DOMAttrModified", "DOMCharacterDataModified" };
+    private static final AtomicLong caches = new AtomicLong();
+
+    private final int maximumEntries;
+    private final long maximumBytes;
+    /** the user data key of the results of this cache, unique to it, unlike identity hash codes */
+    private final String key = QueryCache.class.getName() + "@" + caches.incrementAndGet();
+    private final LinkedHashMap<Slot, Slot> slots = new LinkedHashMap<Slot, Slot>(16, 0.75f, true);
+    private final ReferenceQueue<Document> collected = new ReferenceQueue<Document>();
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    private QueryCache(int maximumEntries, long maximumBytes) {
+        this.maximumEntries = maximumEntries;
+        this.maximumBytes = maximumBytes;
+    }
+
+    /**
+     * @param maximumEntries how many results the cache holds at most
+     * @param maximumBytes how many bytes the results the cache holds are estimated to take at most
+     */
+    public static QueryCache create(int maximumEntries, long maximumBytes) {
+        checkArgument(maximumEntries >= 0, "maximumEntries must not be negative");
+        checkArgument(maximumBytes >= 0, "maximumBytes must not be negative");
+        return new QueryCache(maximumEntries, maximumBytes);
+    }
+
+    /**
+     * Same as selecting from the document with {@link Selector#select(String)}, returning the result of the last time
+     * the same selector was asked of the document if it hasn't changed since.
+     */
+    public Iterable<Element> select(Document doc, String selector) {
+        checkNotNull(doc, "doc");
+        checkNotNull(selector, "selector");
+        purge();
+        Results results = results(doc);
+        Entry entry = results.entries.get(selector);
+        if (entry != null && entry.version == results.version) {
+            slots.get(entry.slot);
+            hits++;
+            return entry.matches;
+        }
+        misses++;
+        List<Element> matches = unmodifiableList(QueryExecutor.select(doc.getDocumentElement(), selector, selectors(selector),
+                new MatchContext(), new QueryStats()));
+        if (entry != null) {
+            remove(entry.slot);
+        }
+        Slot slot = new Slot(doc, selector, ENTRY_BYTES + 2 * selector.length() + ELEMENT_BYTES * matches.size(), collected);
+        results.entries.put(selector, new Entry(results.version, matches, slot));
+        slots.put(slot, slot);
+        bytes += slot.bytes;
+        evict();
+        return matches;
+    }
+
+    /**
+     * Bumps the version of a document changed in a way the cache can't tell, so that the results of the queries run on
+     * it before are run again.
+     */
+    public void modified(Document doc) {
+        checkNotNull(doc, "doc");
+        Results results = (Results) doc.getUserData(key);
+        if (results != null) {
+            results.version++;
+        }
+    }
+
+    /**
+     * @return how many results the cache holds, including those of documents that have been collected since the last
+     *         query
+     */
+    public int getEntryCount() {
+        return slots.size();
+    }
+
+    /**
+     * @return how many bytes the results the cache holds are estimated to take
+     */
+    public long getEstimatedBytes() {
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    private Results results(Document doc) {
+        Results results = (Results) doc.getUserData(key);
+        if (results == null) {
+            results = new Results();
+            doc.setUserData(key, results, null);
+            if (doc instanceof EventTarget) {
+                for (String type : MUTATIONS) {
+                    ((EventTarget) doc).addEventListener(type, results, true);
+                }
+            }
+        }
+        return results;
+    }
+
+    private void evict() {
+        Iterator<Slot> eldest = slots.keySet().iterator();
+        while (eldest.hasNext() && (slots.size() > maximumEntries || bytes > maximumBytes)) {
+            Slot slot = eldest.next();
+            eldest.remove();
+            bytes -= slot.bytes;
+            Document doc = slot.get();
+            if (doc != null) {
+                ((Results) doc.getUserData(key)).entries.remove(slot.selector);
+            }
+        }
+    }
+
+    private void remove(Slot slot) {
+        if (slots.remove(slot) != null) {
+            bytes -= slot.bytes;
+        }
+    }
+
+    /**
+     * Drops the slots of the documents that have been collected, whose results went with them.
+     */
+    private void purge() {
+        for (Reference<? extends Document> ref = collected.poll(); ref != null; ref = collected.poll()) {
+            remove((Slot) ref);
+        }
+    }
+
+    /**
+     * The results of the queries run on a document, attached to it, along with its version.
+     */
+    private static final class Results implements EventListener {
+        final Map<String, Entry> entries = new HashMap<String, Entry>();
+        long version;
+
+        public void handleEvent(Event event) {
+            version++;
+        }
+    }
+
+    private static final class Entry {
+        final long version;
+        final List<Element> matches;
+        final Slot slot;
+
+        Entry(long version, List<Element> matches, Slot slot) {
+            this.version = version;
+            this.matches = matches;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * The place of a result in the order of use, referring to its document weakly. Slots are compared by identity.
+     */
+    private static final class Slot extends WeakReference<Document> {
+        final String selector;
+        final long bytes;
+
+        Slot(Document doc, String selector, long bytes, ReferenceQueue<Document> queue) {
+            super(doc, queue);
+            this.selector = selector;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,362 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.Nodes.following;
+import static com.threelevers.css.Nodes.isElement;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.GroupingSelector;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.QueryStats.Strategy;
+
+/**
+ * Runs a query over the scopes {@link ScopePlanner} finds for it. Each selector of a group gets its own plan, which is
+ * run either bottom-up, matching every element against the whole selector starting with its rightmost compound, or
+ * top-down, matching the compounds from left to right on the way down the tree so that a compound is only tried under
+ * elements matching the ones before it.
+ * <p>
+ * Top-down is only possible for selectors made of a single chain of child and descendant combinators. It is picked
+ * when the {@link CostModel} expects the leftmost compound of the chain to be more selective than the rightmost one.
+ * Both estimates are checked against the elements actually visited every {@link #CHECKPOINT} elements, and a plan
+ * switches strategy once if the compound it relies on turns out to match more elements than the other was expected
+ * to. Selectors with a compound the model knows can't match anything aren't run at all.
+ */
+final class QueryExecutor {
+    static final int CHECKPOINT = 256;
+
+    private final MatchContext context;
+    private final QueryStats stats;
+    private final CostModel model;
+    private final List<Plan> plans = new ArrayList<Plan>();
+
+    private QueryExecutor(CssSelector selector, MatchContext context, QueryStats stats, CostModel model) {
+        this.context = context;
+        this.stats = stats;
+        this.model = model;
+        CssSelector planned = CostPlanner.plan(selector, model);
+        if (planned instanceof GroupingSelectorImpl) {
+            for (CombinableSelector combinable : ((GroupingSelectorImpl) planned).selectors) {
+                plans.add(new Plan(plans.size(), combinable));
+            }
+        } else {
+            plans.add(new Plan(0, planned));
+        }
+    }
+
+    /**
+     * @param source the text the selector was parsed from, which the statistics of queries are kept by, or
+     *        {@code null} for selectors built otherwise
+     */
+    static List<Element> select(Element root, String source, CssSelector selector, MatchContext context, QueryStats stats) {
+        return select(root, source, selector, context, stats, ShapeCostModel.INSTANCE);
+    }
+
+    static List<Element> select(Element root, String source, CssSelector selector, MatchContext context, QueryStats stats,
+            CostModel model) {
+        final List<Element> matches = new ArrayList<Element>();
+        select(root, source, selector, context, stats, model, new Sink() {
+            public void matched(Element element) {
+                matches.add(element);
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Same as {@link #select(Element, String, CssSelector, MatchContext, QueryStats, CostModel)}, but hands every
+     * element to the sink as soon as it matches instead of collecting them.
+     */
+    static void select(Element root, String source, CssSelector selector, MatchContext context, QueryStats stats,
+            CostModel model, Sink sink) {
+        SelectorStatistics statistics = SelectorStatistics.current();
+        if (statistics == null) {
+            new QueryExecutor(selector, context, stats, model).select(root, sink);
+            return;
+        }
+        long start = System.nanoTime();
+        int visited = stats.getElementsVisited();
+        new QueryExecutor(selector, context, stats, model).select(root, sink);
+        statistics.queried(source != null ? source : selector.toString(), System.nanoTime() - start,
+                stats.getElementsVisited() - visited);
+    }
+
+    /**
+     * Takes the elements a query matches, in document order.
+     */
+    interface Sink {
+        void matched(Element element);
+    }
+
+    private void select(Element root, Sink sink) {
+        List<Plan> possible = new ArrayList<Plan>();
+        for (Plan plan : plans) {
+            if (plan.possible) {
+                possible.add(plan);
+            }
+        }
+        if (possible.isEmpty()) {
+            return;
+        }
+        for (Element scope : scopes(root, possible)) {
+            for (Plan plan : possible) {
+                plan.pathBuilt = false;
+            }
+            for (Node node = scope; node != null; node = following(node, scope)) {
+                if (!isElement(node)) {
+                    continue;
+                }
+                Element element = (Element) node;
+                stats.visited();
+                context.visited();
+                boolean matched = false;
+                for (int i = 0; i < possible.size(); i++) {
+                    matched |= possible.get(i).matches(element, matched);
+                }
+                if (matched) {
+                    stats.matched();
+                    sink.matched(element);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the scopes of the selectors that can match anything
+     */
+    private List<Element> scopes(Element root, List<Plan> possible) {
+        GroupingSelector selector = null;
+        for (Plan plan : possible) {
+            if (!(plan.selector instanceof CombinableSelector)) {
+                List<Element> scopes = new ArrayList<Element>();
+                scopes.add(root);
+                return scopes;
+            }
+            CombinableSelector s = (CombinableSelector) plan.selector;
+            selector = selector == null ? selectors(s) : selector.or(s);
+        }
+        return ScopePlanner.scopes(root, selector, context, model);
+    }
+
+    /**
+     * How one selector of the group is run.
+     */
+    private final class Plan {
+        final int index;
+        final CssSelector selector;
+        final boolean possible;
+        private SimpleSelector[] compounds;
+        private boolean[] childOf;
+        /** the step of the selector ending with the rightmost compound */
+        private CombinatorSelectorImpl last;
+        private double leftmost = 1;
+        private double rightmost = 1;
+        private Strategy strategy = Strategy.BOTTOM_UP;
+        private boolean switchable;
+        private int observed;
+        private int hits;
+
+        private Element[] path = new Element[16];
+        private long[] reached = new long[16];
+        private long[] inherited = new long[16];
+        private int depth;
+        boolean pathBuilt;
+
+        Plan(int index, CssSelector selector) {
+            this.index = index;
+            this.selector = selector;
+            List<SimpleSelector> chain = new LinkedList<SimpleSelector>();
+            List<Boolean> children = new LinkedList<Boolean>();
+            boolean descending = chain(selector, chain, children);
+            boolean possible = true;
+            for (SimpleSelector compound : chain) {
+                possible &= CostPlanner.selectivity(compound, model) > 0;
+            }
+            this.possible = possible;
+            if (descending && chain.size() >= 2 && chain.size() <= 64) {
+                compounds = chain.toArray(new SimpleSelector[chain.size()]);
+                last = (CombinatorSelectorImpl) ((CombinableSelectorImpl) selector).selector;
+                childOf = new boolean[compounds.length];
+                for (int i = 1; i < compounds.length; i++) {
+                    childOf[i] = children.get(i);
+                }
+                leftmost = CostPlanner.selectivity(compounds[0], model);
+                rightmost = CostPlanner.selectivity(compounds[compounds.length - 1], model);
+                strategy = leftmost < rightmost ? Strategy.TOP_DOWN : Strategy.BOTTOM_UP;
+                switchable = true;
+            }
+            stats.planned(index, strategy);
+        }
+
+        /**
+         * @param matched whether the element already matched the plan of another selector of the group, in which case
+         *        a bottom-up plan doesn't need to look at it
+         */
+        boolean matches(Element element, boolean matched) {
+            boolean matches;
+            if (strategy == Strategy.TOP_DOWN) {
+                matches = matchesTopDown(element);
+            } else if (!matched) {
+                matches = matchesBottomUp(element);
+            } else {
+                return false;
+            }
+            observed++;
+            if (switchable && observed % CHECKPOINT == 0) {
+                adapt();
+            }
+            return matches;
+        }
+
+        private void adapt() {
+            double rate = (double) hits / observed;
+            if (strategy == Strategy.TOP_DOWN && rate > rightmost) {
+                strategy = Strategy.BOTTOM_UP;
+            } else if (strategy == Strategy.BOTTOM_UP && rate > leftmost) {
+                strategy = Strategy.TOP_DOWN;
+                pathBuilt = false;
+            } else {
+                return;
+            }
+            stats.switched(index, strategy);
+            switchable = false;
+        }
+
+        /**
+         * Matches the rightmost compound first, charging it here rather than again in the combinator, so that a
+         * chain costs the budget the same evaluations as it would top-down.
+         */
+        private boolean matchesBottomUp(Element element) {
+            if (compounds != null) {
+                stats.checked();
+                context.evaluated();
+                if (!compounds[compounds.length - 1].matches(element, context)) {
+                    return false;
+                }
+                hits++;
+                return last.matchesLeft(element, context);
+            }
+            stats.checked();
+            return selector.matches(element, context);
+        }
+
+        private boolean matchesTopDown(Element element) {
+            if (!pathBuilt) {
+                buildPath(element);
+                pathBuilt = true;
+            } else {
+                while (depth > 0 && path[depth - 1] != element.getParentNode()) {
+                    depth--;
+                }
+            }
+            long parentReached = depth > 0 ? reached[depth - 1] : 0;
+            long parentInherited = depth > 0 ? inherited[depth - 1] : 0;
+            long reach = reach(element, parentReached, parentInherited);
+            if ((reach & 1) != 0) {
+                hits++;
+            }
+            push(element, reach, parentInherited | reach);
+            return (reach & (1L << (compounds.length - 1))) != 0;
+        }
+
+        /**
+         * Puts the ancestors of the element on the path, as though the walk had come down to it from the top of the
+         * tree.
+         */
+        private void buildPath(Element element) {
+            List<Element> ancestors = new ArrayList<Element>();
+            for (Element e = Elements.parent(element); e != null; e = Elements.parent(e)) {
+                ancestors.add(e);
+            }
+            depth = 0;
+            for (int i = ancestors.size() - 1; i >= 0; i--) {
+                long parentReached = depth > 0 ? reached[depth - 1] : 0;
+                long parentInherited = depth > 0 ? inherited[depth - 1] : 0;
+                long reach = reach(ancestors.get(i), parentReached, parentInherited);
+                push(ancestors.get(i), reach, parentInherited | reach);
+            }
+        }
+
+        /**
+         * @return the compounds the element is at the end of a matching chain for, bit {@code i} standing for the
+         *         chain ending with compound {@code i}
+         */
+        private long reach(Element element, long parentReached, long parentInherited) {
+            long reach = 0;
+            stats.checked();
+            context.evaluated();
+            if (compounds[0].matches(element, context)) {
+                reach = 1;
+            }
+            for (int i = 1; i < compounds.length; i++) {
+                long before = childOf[i] ? parentReached : parentInherited;
+                if ((before & (1L << (i - 1))) != 0) {
+                    stats.checked();
+                    context.evaluated();
+                    if (compounds[i].matches(element, context)) {
+                        reach |= 1L << i;
+                    }
+                }
+            }
+            return reach;
+        }
+
+        private void push(Element element, long reach, long inherit) {
+            if (depth == path.length) {
+                Element[] grownPath = new Element[depth * 2];
+                long[] grownReached = new long[depth * 2];
+                long[] grownInherited = new long[depth * 2];
+                System.arraycopy(path, 0, grownPath, 0, depth);
+                System.arraycopy(reached, 0, grownReached, 0, depth);
+                System.arraycopy(inherited, 0, grownInherited, 0, depth);
+                path = grownPath;
+                reached = grownReached;
+                inherited = grownInherited;
+            }
+            path[depth] = element;
+            reached[depth] = reach;
+            inherited[depth] = inherit;
+            depth++;
+        }
+    }
+
+    /**
+     * Breaks a selector into its compounds, from left to right, and whether each is joined to the one before it by a
+     * child combinator.
+     *
+     * @return whether the selector is a single chain of child and descendant combinators
+     */
+    private static boolean chain(CssSelector selector, List<SimpleSelector> compounds, List<Boolean> childOf) {
+        if (!(selector instanceof CombinableSelectorImpl)) {
+            return false;
+        }
+        boolean descending = true;
+        CombinatorSelector step = ((CombinableSelectorImpl) selector).selector;
+        while (step instanceof CombinatorSelectorImpl) {
+            CombinatorSelectorImpl s = (CombinatorSelectorImpl) step;
+            descending &= s.combinator == Combinator.DESCENDANT || s.combinator == Combinator.CHILDOF;
+            compounds.add(0, s.rhs);
+            childOf.add(0, s.combinator == Combinator.CHILDOF);
+            step = s.lhs;
+        }
+        if (!(step instanceof NoCombinatorSelectorImpl)) {
+            compounds.clear();
+            childOf.clear();
+            return false;
+        }
+        compounds.add(0, ((NoCombinatorSelectorImpl) step).selector);
+        childOf.add(0, Boolean.FALSE);
+        return descending;
+    }
+}
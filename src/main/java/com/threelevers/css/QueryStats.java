@@ -0,0 +1,128 @@
+package com.threelevers.css;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records how a query was run: which strategy each of its selectors started with, whether it switched to the other one
+ * on the way, and how much work the query did. Pass one to {@link Selector#select(String, QueryStats)} to have it
+ * filled in.
+ */
+public final class QueryStats {
+    public enum Strategy {
+        /**
+         * Every element is matched against the rightmost compound first, then its ancestors and siblings against the
+         * compounds to the left.
+         */
+        BOTTOM_UP,
+
+        /**
+         * The leftmost compound is matched on the way down the tree, and the compounds to the right of it are only
+         * tried on elements under an element matching the compounds before them.
+         */
+        TOP_DOWN
+    }
+
+    private final List<Strategy> initialStrategies = new ArrayList<Strategy>();
+    private final List<Strategy> strategies = new ArrayList<Strategy>();
+    private final List<Integer> switchedAfter = new ArrayList<Integer>();
+    private int elementsVisited;
+    private int selectorChecks;
+    private int matches;
+
+    /**
+     * @return the number of selectors in the group the query was run for, each planned on its own
+     */
+    public int getSelectorCount() {
+        return strategies.size();
+    }
+
+    /**
+     * @return the strategy the first selector of the query was planned with
+     */
+    public Strategy getInitialStrategy() {
+        return getInitialStrategy(0);
+    }
+
+    /**
+     * @return the strategy the selector at {@code index} in the group was planned with
+     */
+    public Strategy getInitialStrategy(int index) {
+        return initialStrategies.get(index);
+    }
+
+    /**
+     * @return the strategy the first selector of the query finished with
+     */
+    public Strategy getStrategy() {
+        return getStrategy(0);
+    }
+
+    /**
+     * @return the strategy the selector at {@code index} in the group finished with
+     */
+    public Strategy getStrategy(int index) {
+        return strategies.get(index);
+    }
+
+    /**
+     * @return the number of elements visited before the first selector of the query switched strategy, or -1 if it
+     *         never did
+     */
+    public int getSwitchedAfter() {
+        return getSwitchedAfter(0);
+    }
+
+    /**
+     * @return the number of elements visited before the selector at {@code index} in the group switched strategy, or
+     *         -1 if it never did
+     */
+    public int getSwitchedAfter(int index) {
+        return switchedAfter.get(index);
+    }
+
+    public int getElementsVisited() {
+        return elementsVisited;
+    }
+
+    /**
+     * @return the number of times a compound or a whole selector was matched against an element by the query itself,
+     *         not counting the ancestors and siblings the selectors look at
+     */
+    public int getSelectorChecks() {
+        return selectorChecks;
+    }
+
+    public int getMatches() {
+        return matches;
+    }
+
+    void planned(int index, Strategy strategy) {
+        initialStrategies.add(index, strategy);
+        strategies.add(index, strategy);
+        switchedAfter.add(index, -1);
+    }
+
+    void switched(int index, Strategy strategy) {
+        strategies.set(index, strategy);
+        switchedAfter.set(index, elementsVisited);
+    }
+
+    void visited() {
+        elementsVisited++;
+    }
+
+    void checked() {
+        selectorChecks++;
+    }
+
+    void matched() {
+        matches++;
+    }
+
+    public String toString() {
+        return "QueryStats[initialStrategies=" + initialStrategies + ", strategies=" + strategies + ", switchedAfter="
+            + switchedAfter + ", elementsVisited=" + elementsVisited + ", selectorChecks=" + selectorChecks
+            + ", matches=" + matches + "]";
+    }
+}
@@ -0,0 +1,142 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.CssSelectors.selector;
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.Nodes.following;
+import static com.threelevers.css.Nodes.isElement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.ElementSelector;
+import com.threelevers.css.CssSelectors.GroupingSelector;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Narrows the part of the tree a query has to look at. When a compound of a selector is selective, such as one with an
+ * id or the tag of an element there is only one of, and only child and descendant combinators follow it, every element
+ * the selector matches is inside (or is) an element matching that compound. Those elements are the anchors of the
+ * query, and only the subtrees under them need to be matched against the whole selector. Which compounds are selective
+ * enough is up to the {@link CostModel}.
+ */
+final class ScopePlanner {
+    private ScopePlanner() {}
+
+    /**
+     * @return a cheap selector matching the anchors of the query, or {@code null} if there is no selective compound to
+     *         anchor every part of the selector at
+     */
+    static CssSelector anchor(CssSelector selector) {
+        return anchor(selector, ShapeCostModel.INSTANCE);
+    }
+
+    static CssSelector anchor(CssSelector selector, CostModel model) {
+        if (selector instanceof GroupingSelectorImpl) {
+            GroupingSelector anchors = null;
+            for (CombinableSelector combinable : ((GroupingSelectorImpl) selector).selectors) {
+                ElementSelector anchor = anchor(combinable, model);
+                if (anchor == null) {
+                    return null;
+                }
+                anchors = anchors == null ? selectors(selector(anchor)) : anchors.or(selector(anchor));
+            }
+            return anchors;
+        }
+        if (selector instanceof CombinableSelector) {
+            return anchor((CombinableSelector) selector, model);
+        }
+        return null;
+    }
+
+    /**
+     * Finds the subtrees the elements matching the selector are in, among the root and its descendants.
+     * 
+     * @return the anchors of the selector, in document order and without any nested in another, or just the root when
+     *         the selector has no anchors or one of the ancestors of the root is one
+     */
+    static List<Element> scopes(Element root, CssSelector selector, MatchContext context, CostModel model) {
+        List<Element> scopes = new ArrayList<Element>();
+        CssSelector anchor = anchor(selector, model);
+        if (anchor == null || anchoredAbove(root, anchor, context)) {
+            scopes.add(root);
+            return scopes;
+        }
+        Node node = root;
+        while (node != null) {
+            if (isElement(node) && anchor.matches((Element) node, context)) {
+                scopes.add((Element) node);
+                node = Nodes.followingSubtree(node, root);
+            } else {
+                node = following(node, root);
+            }
+        }
+        return scopes;
+    }
+
+    /**
+     * @return the most selective part of the compounds followed only by child and descendant combinators, the
+     *         rightmost one if several are as selective, as long as it is cheap to match and selective enough
+     */
+    private static ElementSelector anchor(CombinableSelector selector, CostModel model) {
+        if (!(selector instanceof CombinableSelectorImpl)) {
+            return null;
+        }
+        ElementSelector anchor = null;
+        double selectivity = model.anchorLimit();
+        CombinatorSelector step = ((CombinableSelectorImpl) selector).selector;
+        while (step != null) {
+            SimpleSelector compound;
+            CombinatorSelector next;
+            if (step instanceof CombinatorSelectorImpl) {
+                CombinatorSelectorImpl combinator = (CombinatorSelectorImpl) step;
+                compound = combinator.rhs;
+                next = combinator.combinator == Combinator.DESCENDANT || combinator.combinator == Combinator.CHILDOF ? combinator.lhs : null;
+            } else if (step instanceof NoCombinatorSelectorImpl) {
+                compound = ((NoCombinatorSelectorImpl) step).selector;
+                next = null;
+            } else {
+                return null;
+            }
+            for (SimpleSelector s : parts(compound)) {
+                boolean cheap = s instanceof IdSelector || s instanceof ClassSelector
+                    || (s instanceof TypSelectorImpl && s != CssSelectors.any());
+                if (cheap && (anchor == null ? model.selectivity(s) <= selectivity : model.selectivity(s) < selectivity)) {
+                    anchor = (ElementSelector) s;
+                    selectivity = model.selectivity(s);
+                }
+            }
+            step = next;
+        }
+        return anchor;
+    }
+
+    static Iterable<SimpleSelector> parts(SimpleSelector compound) {
+        if (compound instanceof SimpleSelectorImpl) {
+            return ((SimpleSelectorImpl) compound).selectors;
+        }
+        return Arrays.asList(compound);
+    }
+
+    private static boolean anchoredAbove(Element root, CssSelector anchor, MatchContext context) {
+        for (Element e = Elements.parent(root); e != null; e = Elements.parent(e)) {
+            if (anchor.matches(e, context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,47 +1,131 @@
 package com.threelevers.css;
 
-import static com.google.common.collect.Iterables.concat;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.threelevers.css.CssSelectors.selectors;
-import static com.threelevers.css.Nodes.isElement;
+import static java.util.Collections.unmodifiableList;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 
-import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableMap;
 
 public final class Selector {
     private final Element element;
+    private final Map<String, String> namespaces;
     
-    private Selector(Element element) {
+    private Selector(Element element, Map<String, String> namespaces) {
         this.element = element;
+        this.namespaces = namespaces;
     }
     
     public static Selector from(Element element) {
-        return new Selector(element);
+        return new Selector(element, ImmutableMap.<String, String>of());
     }
     
     public static Selector from(Document doc) {
-        return new Selector(doc.getDocumentElement());
+        return from(doc.getDocumentElement());
+    }
+    
+    /**
+     * Binds a namespace prefix for the selectors passed to {@link #select(String)}, as in {@code atom|entry} or
+     * {@code [xlink|href]}. Type and attribute selectors with a prefix compare the namespace URI and local name of
+     * elements and attributes case-sensitively. {@code *|name} matches a name in any namespace and {@code |name} one
+     * in no namespace.
+     * 
+     * @param uri URI of the namespace, or the empty string for no namespace
+     * @return a selector for the same element with the prefix bound as well
+     */
+    public Selector namespace(String prefix, String uri) {
+        checkNotNull(prefix, "prefix");
+        checkNotNull(uri, "uri");
+        Map<String, String> bound = new HashMap<String, String>(namespaces);
+        bound.put(prefix, uri);
+        return new Selector(element, ImmutableMap.copyOf(bound));
     }
 
     public Iterable<Element> select(String selector) {
-        return select(element, selectors(selector));
+        return select(selector, new QueryStats());
     }
     
-    static Iterable<Element> select(Element element, CssSelector matcher) {
-        Iterable<Element> matches = ImmutableSet.of();
-        if (matcher.matches(element)) {
-            matches = concat(matches, Collections.singletonList(element));
+    /**
+     * Same as {@link #select(String)}, recording how the query was run in {@code stats}.
+     */
+    public Iterable<Element> select(String selector, QueryStats stats) {
+        checkNotNull(stats, "stats");
+        return unmodifiableList(QueryExecutor.select(element, selector, selectors(selector, namespaces), new MatchContext(), stats));
+    }
+    
+    /**
+     * Same as {@link #select(String, QueryStats)}, but stops as soon as the query goes over the budget.
+     * 
+     * @throws QueryBudgetExceededException if the query runs out of budget, or is cancelled or interrupted, before it
+     *         is done
+     */
+    public Iterable<Element> select(String selector, QueryStats stats, QueryBudget budget) {
+        checkNotNull(stats, "stats");
+        checkNotNull(budget, "budget");
+        MatchContext context = new MatchContext();
+        context.limit(budget.start(stats));
+        return unmodifiableList(QueryExecutor.select(element, selector, selectors(selector, namespaces), context, stats));
+    }
+    
+    /**
+     * Same as {@link #select(String)}, but the elements are sent to subscribers of the publisher as they are found,
+     * instead of all being collected first. The walk over the tree only goes on as far as subscribers ask for elements.
+     */
+    public ElementPublisher publish(String selector) {
+        return new ElementPublisher(element, selectors(selector, namespaces));
+    }
+    
+    /**
+     * Same as {@link #select(String)}, but reads values of the elements into columns as they are found, instead of
+     * collecting the elements, for queries that only want an attribute or the text of each element.
+     * 
+     * @return an extraction with no columns yet, to add them to
+     */
+    public Extraction extract(String selector) {
+        return new Extraction(element, selector, selectors(selector, namespaces));
+    }
+    
+    /**
+     * Selects the elements matching each of several selectors, all in one walk down the tree with a
+     * {@link SelectorAutomaton}, which carries what has matched so far from every element to its descendants and
+     * following siblings instead of looking back from every element at its ancestors and previous siblings. It pays
+     * off for selectors with several combinators, and for many selectors to run over the same tree.
+     * 
+     * @return the elements matching every selector, in the order of the selectors
+     */
+    public List<Iterable<Element>> selectEach(String... selectors) {
+        return selectEach(selectors, new QueryStats());
+    }
+
+    /**
+     * Same as {@link #selectEach(String...)}, recording how the query was run in {@code stats}.
+     */
+    public List<Iterable<Element>> selectEach(String[] selectors, QueryStats stats) {
+        checkNotNull(selectors, "selectors");
+        checkNotNull(stats, "stats");
+        List<CssSelector> parsed = new ArrayList<CssSelector>(selectors.length);
+        for (String selector : selectors) {
+            parsed.add(selectors(checkNotNull(selector, "selector"), namespaces));
         }
-        NodeList children = element.getChildNodes();
-        for (int i = 0; i < children.getLength(); i++) {
-            if (isElement(children.item(i))) {
-                matches = concat(matches, select((Element) children.item(i), matcher));
-            }
+        List<Iterable<Element>> selected = new ArrayList<Iterable<Element>>(selectors.length);
+        for (List<Element> elements : new SelectorAutomaton(parsed).select(element, new MatchContext(), stats)) {
+            selected.add(unmodifiableList(elements));
         }
-        return matches;
+        return unmodifiableList(selected);
+    }
+
+    static Iterable<Element> select(Element element, CssSelector matcher) {
+        return select(element, matcher, new QueryStats());
+    }
+    
+    static Iterable<Element> select(Element element, CssSelector matcher, QueryStats stats) {
+        return unmodifiableList(QueryExecutor.select(element, null, matcher, new MatchContext(), stats));
     }
 }
@@ -0,0 +1,294 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.threelevers.css.Elements.first;
+import static com.threelevers.css.Elements.next;
+import static com.threelevers.css.Elements.parent;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.w3c.dom.Element;
+
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+
+/**
+ * Matches several selectors at once in a single walk down the tree, without ever looking back from an element at its
+ * ancestors or previous siblings the way {@link Combinator#matches} does. Every selector of every group is split into
+ * its compounds, and each compound becomes a state of the automaton, which is reached at an element when the compound
+ * and all those before it in the selector match there. A state is kept for as long as the combinator after its
+ * compound lets a later element carry on from it:
+ * <ul>
+ * <li>for the whole subtree of the element after a descendant combinator,</li>
+ * <li>for the children of the element after a child combinator,</li>
+ * <li>for the rest of the siblings of the element after a sibling combinator,</li>
+ * <li>for the next sibling of the element only after an adjacent combinator.</li>
+ * </ul>
+ * An element matches a selector when the state of its last compound is reached there. The states are kept in one
+ * frame per open element, reused from one subtree to the next, so a walk takes memory for the depth of the tree and
+ * not its size, and matching an element only tries the compounds following the states its frame holds.
+ * <p>
+ * The automaton is driven by {@link Run#start} and {@link Run#end} calls in document order, so it works the same over
+ * a DOM tree as over a stream of parser events. The compounds themselves are matched against the element as it is at
+ * the start call, so with streamed input they can only look at what has been read by then.
+ */
+final class SelectorAutomaton {
+    private final int selectors;
+    private final SimpleSelector[] compounds;
+    /** the selector each state belongs to */
+    private final int[] selector;
+    private final BitSet initial = new BitSet();
+    private final BitSet accepting = new BitSet();
+    private final BitSet descendant = new BitSet();
+    private final BitSet child = new BitSet();
+    private final BitSet sibling = new BitSet();
+    private final BitSet adjacent = new BitSet();
+
+    /**
+     * @param selectors the selectors to match, which are told apart by their position in the list in what a run
+     *        reports
+     */
+    SelectorAutomaton(List<? extends CssSelector> selectors) {
+        checkNotNull(selectors, "selectors");
+        this.selectors = selectors.size();
+        List<SimpleSelector> compounds = new ArrayList<SimpleSelector>();
+        List<Integer> owners = new ArrayList<Integer>();
+        for (int i = 0; i < selectors.size(); i++) {
+            for (LinkedList<Object> chain : chains(checkNotNull(selectors.get(i), "selector"))) {
+                initial.set(compounds.size());
+                while (!chain.isEmpty()) {
+                    int state = compounds.size();
+                    compounds.add((SimpleSelector) chain.removeFirst());
+                    owners.add(i);
+                    if (chain.isEmpty()) {
+                        accepting.set(state);
+                    } else {
+                        states((Combinator) chain.removeFirst()).set(state);
+                    }
+                }
+            }
+        }
+        this.compounds = compounds.toArray(new SimpleSelector[compounds.size()]);
+        this.selector = new int[owners.size()];
+        for (int i = 0; i < this.selector.length; i++) {
+            this.selector[i] = owners.get(i);
+        }
+    }
+
+    /**
+     * @return the compounds and combinators of every selector of the group, from left to right
+     */
+    private static List<LinkedList<Object>> chains(CssSelector selector) {
+        List<LinkedList<Object>> chains = new ArrayList<LinkedList<Object>>();
+        if (selector instanceof GroupingSelectorImpl) {
+            for (CombinableSelector combinable : ((GroupingSelectorImpl) selector).selectors) {
+                chains.addAll(chains(combinable));
+            }
+        } else if (selector instanceof CombinableSelectorImpl) {
+            LinkedList<Object> chain = new LinkedList<Object>();
+            for (CombinatorSelector part = ((CombinableSelectorImpl) selector).selector; ; ) {
+                if (part instanceof CombinatorSelectorImpl) {
+                    CombinatorSelectorImpl combinator = (CombinatorSelectorImpl) part;
+                    chain.addFirst(combinator.rhs);
+                    chain.addFirst(combinator.combinator);
+                    part = combinator.lhs;
+                } else {
+                    chain.addFirst(((NoCombinatorSelectorImpl) part).selector);
+                    break;
+                }
+            }
+            chains.add(chain);
+        } else {
+            throw new IllegalArgumentException("not a selector of compounds and combinators: " + selector);
+        }
+        return chains;
+    }
+
+    private BitSet states(Combinator combinator) {
+        switch (combinator) {
+        case DESCENDANT:
+            return descendant;
+        case CHILDOF:
+            return child;
+        case SIBLING:
+            return sibling;
+        case ADJACENT:
+            return adjacent;
+        default:
+            throw new IllegalArgumentException(combinator.name());
+        }
+    }
+
+    int selectorCount() {
+        return selectors;
+    }
+
+    /**
+     * @return the compounds of every selector
+     */
+    SimpleSelector[] compounds() {
+        return compounds.clone();
+    }
+
+    /**
+     * Walks the subtree of the element and collects, for every selector, the elements in it matching that selector, in
+     * document order. Its ancestors and their previous siblings are gone through first, without being collected, so
+     * that the selectors also match elements whose ancestors or siblings outside the subtree are part of the match.
+     */
+    List<List<Element>> select(Element root, MatchContext context, QueryStats stats) {
+        List<List<Element>> matches = new ArrayList<List<Element>>(selectors);
+        for (int i = 0; i < selectors; i++) {
+            matches.add(new ArrayList<Element>());
+        }
+        Run run = new Run();
+        List<Element> ancestors = new ArrayList<Element>();
+        for (Element ancestor = parent(root); ancestor != null; ancestor = parent(ancestor)) {
+            ancestors.add(0, ancestor);
+        }
+        ancestors.add(root);
+        for (Element ancestor : ancestors) {
+            Element parent = parent(ancestor);
+            if (parent != null) {
+                for (Element sibling = first(parent); sibling != ancestor; sibling = next(sibling)) {
+                    run.start(sibling, context);
+                    run.end();
+                }
+            }
+            if (ancestor != root) {
+                run.start(ancestor, context);
+            }
+        }
+        Element element = root;
+        while (element != null) {
+            stats.visited();
+            BitSet matched = run.start(element, context);
+            for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+                matches.get(i).add(element);
+                stats.matched();
+            }
+            Element child = first(element);
+            if (child != null) {
+                element = child;
+                continue;
+            }
+            for (; ; element = parent(element)) {
+                run.end();
+                if (element == root) {
+                    element = null;
+                    break;
+                }
+                Element next = next(element);
+                if (next != null) {
+                    element = next;
+                    break;
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * The states of one walk, which takes calls for the elements in document order: a start call when an element
+     * begins and an end call when it ends, after those of all its descendants.
+     */
+    final class Run {
+        private final List<Frame> frames = new ArrayList<Frame>();
+        private final BitSet targets = new BitSet(compounds.length);
+        private final BitSet reached = new BitSet(compounds.length);
+        private final BitSet masked = new BitSet(compounds.length);
+        private final BitSet matched = new BitSet(selectors);
+        private int depth;
+
+        Run() {
+            frames.add(new Frame());
+        }
+
+        /**
+         * Moves into an element, working out the states reached there from those carried to it by its ancestors and
+         * previous siblings.
+         *
+         * @return the selectors the element matches, as a set that is reused by the next call
+         */
+        BitSet start(Element element, MatchContext context) {
+            Frame parent = frames.get(depth);
+            targets.clear();
+            targets.or(initial);
+            follow(parent.descendant);
+            follow(parent.child);
+            follow(parent.sibling);
+            follow(parent.adjacent);
+            reached.clear();
+            for (int state = targets.nextSetBit(0); state >= 0; state = targets.nextSetBit(state + 1)) {
+                if (compounds[state].matches(element, context)) {
+                    reached.set(state);
+                }
+            }
+            matched.clear();
+            for (int state = reached.nextSetBit(0); state >= 0; state = reached.nextSetBit(state + 1)) {
+                if (accepting.get(state)) {
+                    matched.set(selector[state]);
+                }
+            }
+            parent.adjacent.clear();
+            parent.adjacent.or(reached);
+            parent.adjacent.and(adjacent);
+            masked.clear();
+            masked.or(reached);
+            masked.and(sibling);
+            parent.sibling.or(masked);
+
+            depth++;
+            if (frames.size() == depth) {
+                frames.add(new Frame());
+            }
+            Frame frame = frames.get(depth);
+            frame.descendant.clear();
+            frame.descendant.or(reached);
+            frame.descendant.and(descendant);
+            frame.descendant.or(parent.descendant);
+            frame.child.clear();
+            frame.child.or(reached);
+            frame.child.and(child);
+            frame.sibling.clear();
+            frame.adjacent.clear();
+            return matched;
+        }
+
+        /**
+         * Moves out of the element of the last start call that hasn't ended yet.
+         */
+        void end() {
+            checkState(depth > 0, "no element to end");
+            depth--;
+        }
+
+        /**
+         * Adds the states following those given to the states to try.
+         */
+        private void follow(BitSet states) {
+            for (int state = states.nextSetBit(0); state >= 0; state = states.nextSetBit(state + 1)) {
+                targets.set(state + 1);
+            }
+        }
+    }
+
+    /**
+     * The states carried to the children of an element: those kept for its whole subtree and those kept for its
+     * children, and, as the children go by, those kept for the rest of them and for the next one.
+     */
+    private static final class Frame {
+        final BitSet descendant = new BitSet();
+        final BitSet child = new BitSet();
+        final BitSet sibling = new BitSet();
+        final BitSet adjacent = new BitSet();
+    }
+}
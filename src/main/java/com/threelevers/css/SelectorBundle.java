@@ -0,0 +1,540 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.size;
+import static com.threelevers.css.CssSelectors.any;
+import static com.threelevers.css.CssSelectors.attrib;
+import static com.threelevers.css.CssSelectors.checked;
+import static com.threelevers.css.CssSelectors.contains;
+import static com.threelevers.css.CssSelectors.cssClass;
+import static com.threelevers.css.CssSelectors.disabled;
+import static com.threelevers.css.CssSelectors.empty;
+import static com.threelevers.css.CssSelectors.enabled;
+import static com.threelevers.css.CssSelectors.firstChild;
+import static com.threelevers.css.CssSelectors.firstOfType;
+import static com.threelevers.css.CssSelectors.has;
+import static com.threelevers.css.CssSelectors.id;
+import static com.threelevers.css.CssSelectors.lang;
+import static com.threelevers.css.CssSelectors.lastChild;
+import static com.threelevers.css.CssSelectors.lastOfType;
+import static com.threelevers.css.CssSelectors.not;
+import static com.threelevers.css.CssSelectors.nthChild;
+import static com.threelevers.css.CssSelectors.nthLastChild;
+import static com.threelevers.css.CssSelectors.nthLastOfType;
+import static com.threelevers.css.CssSelectors.nthOfType;
+import static com.threelevers.css.CssSelectors.onlyChild;
+import static com.threelevers.css.CssSelectors.onlyOfType;
+import static com.threelevers.css.CssSelectors.relative;
+import static com.threelevers.css.CssSelectors.selected;
+import static com.threelevers.css.CssSelectors.selector;
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.CssSelectors.tag;
+import static com.threelevers.css.CssSelectors.textMatches;
+import static com.threelevers.css.NthExpressions.even;
+import static com.threelevers.css.NthExpressions.odd;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import com.threelevers.css.CssSelectors.AttributeComparedToAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.AttributeComparedToStringSelectorImpl;
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelector;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.ElementSelector;
+import com.threelevers.css.CssSelectors.GroupingSelector;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.HasAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.ContainsPseudoSelector;
+import com.threelevers.css.CssSelectors.HasPseudoSelector;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.LangPseudoSelector;
+import com.threelevers.css.CssSelectors.NamespacedAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.NamespacedTypeSelector;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.NotPseudoSelector;
+import com.threelevers.css.CssSelectors.NthChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthLastChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthLastOfPseudoSelector;
+import com.threelevers.css.CssSelectors.NthOfTypePseudoSelector;
+import com.threelevers.css.CssSelectors.RelativeSelector;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+import com.threelevers.css.CssSelectors.TextMatchesPseudoSelector;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Reads and writes bundles of compiled selectors in a compact binary form. Loading a bundle rebuilds the selectors
+ * directly from their encoded structure, so none of them go through the lexer and parser again, and registers them
+ * so that {@link Selector#select(String)} picks them up by their source text.
+ */
+public final class SelectorBundle {
+    static final int MAGIC = 0x43535342; // "CSSB"
+
+    /**
+     * Bump whenever the encoding below changes. Bundles written with any other version are rejected when loaded.
+     */
+    static final int VERSION = 6;
+
+    private static final byte TYPE = 1;
+    private static final byte ANY = 2;
+    private static final byte ID = 3;
+    private static final byte CLASS = 4;
+    private static final byte ATTRIB = 5;
+    private static final byte ATTRIB_COMPARED_TO_STRING = 6;
+    private static final byte ATTRIB_COMPARED_TO_ATTRIB = 7;
+    private static final byte NOT = 8;
+    private static final byte NTH_CHILD = 9;
+    private static final byte NTH_LAST_CHILD = 10;
+    private static final byte NTH_OF_TYPE = 11;
+    private static final byte NTH_LAST_OF_TYPE = 12;
+    private static final byte FIRST_CHILD = 13;
+    private static final byte LAST_CHILD = 14;
+    private static final byte ONLY_CHILD = 15;
+    private static final byte FIRST_OF_TYPE = 16;
+    private static final byte LAST_OF_TYPE = 17;
+    private static final byte ONLY_OF_TYPE = 18;
+    private static final byte EMPTY = 19;
+    private static final byte ENABLED = 20;
+    private static final byte DISABLED = 21;
+    private static final byte CHECKED = 22;
+    private static final byte SELECTED = 23;
+    private static final byte COMPOUND = 24;
+    private static final byte HAS = 25;
+    private static final byte CONTAINS = 26;
+    private static final byte TEXT_MATCHES = 27;
+    private static final byte NAMESPACED_TYPE = 28;
+    private static final byte NAMESPACED_ATTRIB = 29;
+    private static final byte LANG = 30;
+
+    private static final byte NTH_EXPR = 0;
+    private static final byte NTH_ODD = 1;
+    private static final byte NTH_EVEN = 2;
+
+    private SelectorBundle() {}
+
+    /**
+     * Compiles each of the selectors and writes them to the stream as a bundle. The stream is flushed but not closed.
+     *
+     * @param selectors source text of the selectors to include in the bundle
+     * @param out stream to write the bundle to
+     * @throws IOException if writing to the stream fails
+     */
+    public static void write(Iterable<String> selectors, OutputStream out) throws IOException {
+        checkNotNull(selectors, "selectors");
+        checkNotNull(out, "out");
+        Map<String, GroupingSelector> compiled = new LinkedHashMap<String, GroupingSelector>();
+        for (String selector : selectors) {
+            compiled.put(selector, CssSelectors.parse(selector));
+        }
+        write(compiled, out);
+    }
+
+    /**
+     * Reads a bundle and registers all of its selectors so that selecting with their source text no longer parses it.
+     *
+     * @param in stream to read the bundle from
+     * @return number of selectors loaded
+     * @throws IOException if the stream can't be read, is not a bundle or was written by an incompatible version
+     */
+    public static int load(InputStream in) throws IOException {
+        Map<String, GroupingSelector> selectors = read(in);
+        for (Map.Entry<String, GroupingSelector> entry : selectors.entrySet()) {
+            CssSelectors.precompiled(entry.getKey(), entry.getValue());
+        }
+        return selectors.size();
+    }
+
+    static void write(Map<String, GroupingSelector> selectors, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(selectors.size());
+        for (Map.Entry<String, GroupingSelector> entry : selectors.entrySet()) {
+            data.writeUTF(entry.getKey());
+            writeGrouping(entry.getValue(), data);
+        }
+        data.flush();
+    }
+
+    static Map<String, GroupingSelector> read(InputStream in) throws IOException {
+        checkNotNull(in, "in");
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a selector bundle");
+        }
+        int version = data.readInt();
+        if (version != VERSION) {
+            throw new IOException("Selector bundle version " + version + " is not supported, expected version "
+                + VERSION + "; the bundle needs to be rebuilt");
+        }
+        int count = data.readInt();
+        Map<String, GroupingSelector> selectors = new LinkedHashMap<String, GroupingSelector>();
+        for (int i = 0; i < count; i++) {
+            String source = data.readUTF();
+            selectors.put(source, readGrouping(data));
+        }
+        return selectors;
+    }
+
+    private static void writeGrouping(GroupingSelector selector, DataOutputStream out) throws IOException {
+        Iterable<CombinableSelector> combinables = ((GroupingSelectorImpl) selector).selectors;
+        out.writeInt(size(combinables));
+        for (CombinableSelector combinable : combinables) {
+            writeCombinable(combinable, out);
+        }
+    }
+
+    private static GroupingSelector readGrouping(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 1) {
+            throw new IOException("Corrupt selector bundle, grouping selector with " + count + " selectors");
+        }
+        GroupingSelector selector = selectors(readCombinable(in));
+        for (int i = 1; i < count; i++) {
+            selector = selector.or(readCombinable(in));
+        }
+        return selector;
+    }
+
+    private static void writeOptionalGrouping(GroupingSelector selector, DataOutputStream out) throws IOException {
+        out.writeBoolean(selector != null);
+        if (selector != null) {
+            writeGrouping(selector, out);
+        }
+    }
+
+    private static GroupingSelector readOptionalGrouping(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readGrouping(in) : null;
+    }
+
+    private static void writeCombinable(CombinableSelector selector, DataOutputStream out) throws IOException {
+        // the combinators nest to the left, so unwind them to write the chain out left to right
+        LinkedList<CombinatorSelectorImpl> chain = new LinkedList<CombinatorSelectorImpl>();
+        CombinatorSelector current = ((CombinableSelectorImpl) selector).selector;
+        while (current instanceof CombinatorSelectorImpl) {
+            chain.addFirst((CombinatorSelectorImpl) current);
+            current = ((CombinatorSelectorImpl) current).lhs;
+        }
+        out.writeInt(chain.size());
+        writeSimple(((NoCombinatorSelectorImpl) current).selector, out);
+        for (CombinatorSelectorImpl combinator : chain) {
+            out.writeByte(combinator.combinator.ordinal());
+            writeSimple(combinator.rhs, out);
+        }
+    }
+
+    private static CombinableSelector readCombinable(DataInputStream in) throws IOException {
+        int combinators = in.readInt();
+        CombinableSelector selector = selector(readSimple(in));
+        for (int i = 0; i < combinators; i++) {
+            Combinator combinator = readEnum(Combinator.values(), in);
+            SimpleSelector rhs = readSimple(in);
+            switch (combinator) {
+                case DESCENDANT:
+                    selector = selector.ancestorOf(rhs);
+                    break;
+                case ADJACENT:
+                    selector = selector.adjacentTo(rhs);
+                    break;
+                case CHILDOF:
+                    selector = selector.parentOf(rhs);
+                    break;
+                case SIBLING:
+                    selector = selector.siblingOf(rhs);
+                    break;
+            }
+        }
+        return selector;
+    }
+
+    private static void writeSimple(SimpleSelector selector, DataOutputStream out) throws IOException {
+        if (selector instanceof SimpleSelectorImpl) {
+            Iterable<SimpleSelector> selectors = ((SimpleSelectorImpl) selector).selectors;
+            out.writeByte(COMPOUND);
+            out.writeInt(size(selectors));
+            for (SimpleSelector s : selectors) {
+                writeSimple(s, out);
+            }
+        } else if (selector == any()) {
+            out.writeByte(ANY);
+        } else if (selector instanceof TypSelectorImpl) {
+            out.writeByte(TYPE);
+            out.writeUTF(((TypSelectorImpl) selector).tagName);
+        } else if (selector instanceof IdSelector) {
+            out.writeByte(ID);
+            out.writeUTF(((IdSelector) selector).id);
+        } else if (selector instanceof ClassSelector) {
+            out.writeByte(CLASS);
+            out.writeUTF(((ClassSelector) selector).className);
+        } else if (selector instanceof HasAttributeSelectorImpl) {
+            out.writeByte(ATTRIB);
+            out.writeUTF(((HasAttributeSelectorImpl) selector).attribName);
+        } else if (selector instanceof AttributeComparedToStringSelectorImpl) {
+            AttributeComparedToStringSelectorImpl s = (AttributeComparedToStringSelectorImpl) selector;
+            out.writeByte(ATTRIB_COMPARED_TO_STRING);
+            out.writeUTF(s.attribName);
+            out.writeByte(s.comparator.ordinal());
+            out.writeUTF(s.value);
+        } else if (selector instanceof AttributeComparedToAttributeSelectorImpl) {
+            AttributeComparedToAttributeSelectorImpl s = (AttributeComparedToAttributeSelectorImpl) selector;
+            out.writeByte(ATTRIB_COMPARED_TO_ATTRIB);
+            out.writeUTF(s.lhsAttribName);
+            out.writeByte(s.comparator.ordinal());
+            out.writeUTF(s.rhsAttribName);
+        } else if (selector instanceof NotPseudoSelector) {
+            out.writeByte(NOT);
+            writeSimple(((NotPseudoSelector) selector).selector, out);
+        } else if (selector instanceof HasPseudoSelector) {
+            Iterable<RelativeSelector> selectors = ((HasPseudoSelector) selector).selectors;
+            out.writeByte(HAS);
+            out.writeInt(size(selectors));
+            for (RelativeSelector s : selectors) {
+                out.writeByte(s.combinator.ordinal());
+                writeCombinable(s.selector, out);
+            }
+        } else if (selector instanceof NamespacedTypeSelector) {
+            NamespacedTypeSelector s = (NamespacedTypeSelector) selector;
+            out.writeByte(NAMESPACED_TYPE);
+            writeName(s.prefix, s.namespace, s.localName, out);
+        } else if (selector instanceof NamespacedAttributeSelectorImpl) {
+            NamespacedAttributeSelectorImpl s = (NamespacedAttributeSelectorImpl) selector;
+            out.writeByte(NAMESPACED_ATTRIB);
+            writeName(s.prefix, s.namespace, s.localName, out);
+            out.writeBoolean(s.comparator != null);
+            if (s.comparator != null) {
+                out.writeByte(s.comparator.ordinal());
+                out.writeUTF(s.value);
+            }
+        } else if (selector instanceof LangPseudoSelector) {
+            out.writeByte(LANG);
+            out.writeUTF(((LangPseudoSelector) selector).range);
+        } else if (selector instanceof ContainsPseudoSelector) {
+            out.writeByte(CONTAINS);
+            out.writeUTF(((ContainsPseudoSelector) selector).text);
+            out.writeBoolean(((ContainsPseudoSelector) selector).ignoreCase);
+        } else if (selector instanceof TextMatchesPseudoSelector) {
+            out.writeByte(TEXT_MATCHES);
+            out.writeUTF(((TextMatchesPseudoSelector) selector).regex);
+            out.writeBoolean(((TextMatchesPseudoSelector) selector).ignoreCase);
+        } else if (selector instanceof NthChildPseudoSelector) {
+            out.writeByte(NTH_CHILD);
+            writeNthExpression(((NthChildPseudoSelector) selector).expr, out);
+            writeOptionalGrouping(((NthChildPseudoSelector) selector).of, out);
+        } else if (selector instanceof NthLastChildPseudoSelector) {
+            out.writeByte(NTH_LAST_CHILD);
+            writeNthExpression(((NthLastChildPseudoSelector) selector).expr, out);
+            writeOptionalGrouping(((NthLastChildPseudoSelector) selector).of, out);
+        } else if (selector instanceof NthOfTypePseudoSelector) {
+            out.writeByte(NTH_OF_TYPE);
+            writeNthExpression(((NthOfTypePseudoSelector) selector).expr, out);
+        } else if (selector instanceof NthLastOfPseudoSelector) {
+            out.writeByte(NTH_LAST_OF_TYPE);
+            writeNthExpression(((NthLastOfPseudoSelector) selector).expr, out);
+        } else if (selector == firstChild()) {
+            out.writeByte(FIRST_CHILD);
+        } else if (selector == lastChild()) {
+            out.writeByte(LAST_CHILD);
+        } else if (selector == onlyChild()) {
+            out.writeByte(ONLY_CHILD);
+        } else if (selector == firstOfType()) {
+            out.writeByte(FIRST_OF_TYPE);
+        } else if (selector == lastOfType()) {
+            out.writeByte(LAST_OF_TYPE);
+        } else if (selector == onlyOfType()) {
+            out.writeByte(ONLY_OF_TYPE);
+        } else if (selector == empty()) {
+            out.writeByte(EMPTY);
+        } else if (selector == enabled()) {
+            out.writeByte(ENABLED);
+        } else if (selector == disabled()) {
+            out.writeByte(DISABLED);
+        } else if (selector == checked()) {
+            out.writeByte(CHECKED);
+        } else if (selector == selected()) {
+            out.writeByte(SELECTED);
+        } else {
+            throw new IllegalArgumentException("Don't know how to write selector '" + selector + "' of type "
+                + selector.getClass().getName());
+        }
+    }
+
+    private static SimpleSelector readSimple(DataInputStream in) throws IOException {
+        byte code = in.readByte();
+        switch (code) {
+            case COMPOUND:
+                int count = in.readInt();
+                if (count < 1) {
+                    throw new IOException("Corrupt selector bundle, compound selector with " + count + " selectors");
+                }
+                SimpleSelector selector = new SimpleSelectorImpl(readSimple(in));
+                for (int i = 1; i < count; i++) {
+                    selector = selector.and(readElement(in));
+                }
+                return selector;
+            case ANY:
+                return any();
+            case TYPE:
+                return tag(in.readUTF());
+            case ID:
+                return id(in.readUTF());
+            case CLASS:
+                return cssClass(in.readUTF());
+            case ATTRIB:
+                return attrib(in.readUTF());
+            case ATTRIB_COMPARED_TO_STRING: {
+                String attribName = in.readUTF();
+                AttributeComparator comparator = readEnum(AttributeComparator.values(), in);
+                return new AttributeComparedToStringSelectorImpl(attribName, comparator, in.readUTF());
+            }
+            case ATTRIB_COMPARED_TO_ATTRIB: {
+                String lhsAttribName = in.readUTF();
+                AttributeComparator comparator = readEnum(AttributeComparator.values(), in);
+                return new AttributeComparedToAttributeSelectorImpl(lhsAttribName, comparator, in.readUTF());
+            }
+            case NOT:
+                return not(readElement(in));
+            case HAS: {
+                int relatives = in.readInt();
+                List<RelativeSelector> selectors = new ArrayList<RelativeSelector>();
+                for (int i = 0; i < relatives; i++) {
+                    Combinator combinator = readEnum(Combinator.values(), in);
+                    selectors.add(relative(combinator, readCombinable(in)));
+                }
+                if (selectors.isEmpty()) {
+                    throw new IOException("Corrupt selector bundle, :has() without any selectors");
+                }
+                return has(selectors);
+            }
+            case CONTAINS: {
+                String text = in.readUTF();
+                return contains(text, in.readBoolean());
+            }
+            case TEXT_MATCHES: {
+                String regex = in.readUTF();
+                return textMatches(regex, in.readBoolean());
+            }
+            case LANG:
+                return lang(in.readUTF());
+            case NAMESPACED_TYPE: {
+                String prefix = in.readUTF();
+                String namespace = in.readBoolean() ? in.readUTF() : null;
+                return tag(prefix, namespace, in.readUTF());
+            }
+            case NAMESPACED_ATTRIB: {
+                String prefix = in.readUTF();
+                String namespace = in.readBoolean() ? in.readUTF() : null;
+                String localName = in.readUTF();
+                if (!in.readBoolean()) {
+                    return attrib(prefix, namespace, localName);
+                }
+                AttributeComparator comparator = readEnum(AttributeComparator.values(), in);
+                return attrib(prefix, namespace, localName, comparator, in.readUTF());
+            }
+            case NTH_CHILD: {
+                NthExpression expr = readNthExpression(in);
+                GroupingSelector of = readOptionalGrouping(in);
+                return of == null ? nthChild(expr) : nthChild(expr, of);
+            }
+            case NTH_LAST_CHILD: {
+                NthExpression expr = readNthExpression(in);
+                GroupingSelector of = readOptionalGrouping(in);
+                return of == null ? nthLastChild(expr) : nthLastChild(expr, of);
+            }
+            case NTH_OF_TYPE:
+                return nthOfType(readNthExpression(in));
+            case NTH_LAST_OF_TYPE:
+                return nthLastOfType(readNthExpression(in));
+            case FIRST_CHILD:
+                return firstChild();
+            case LAST_CHILD:
+                return lastChild();
+            case ONLY_CHILD:
+                return onlyChild();
+            case FIRST_OF_TYPE:
+                return firstOfType();
+            case LAST_OF_TYPE:
+                return lastOfType();
+            case ONLY_OF_TYPE:
+                return onlyOfType();
+            case EMPTY:
+                return empty();
+            case ENABLED:
+                return enabled();
+            case DISABLED:
+                return disabled();
+            case CHECKED:
+                return checked();
+            case SELECTED:
+                return selected();
+            default:
+                throw new IOException("Corrupt selector bundle, unknown selector code " + code);
+        }
+    }
+
+    private static ElementSelector readElement(DataInputStream in) throws IOException {
+        SimpleSelector selector = readSimple(in);
+        if (!(selector instanceof ElementSelector)) {
+            throw new IOException("Corrupt selector bundle, expected an element selector but found '" + selector + "'");
+        }
+        return (ElementSelector) selector;
+    }
+
+    private static void writeNthExpression(NthExpression expr, DataOutputStream out) throws IOException {
+        if (expr == odd) {
+            out.writeByte(NTH_ODD);
+        } else if (expr == even) {
+            out.writeByte(NTH_EVEN);
+        } else {
+            out.writeByte(NTH_EXPR);
+            out.writeInt(expr.a);
+            out.writeInt(expr.b);
+        }
+    }
+
+    private static NthExpression readNthExpression(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case NTH_ODD:
+                return odd;
+            case NTH_EVEN:
+                return even;
+            case NTH_EXPR:
+                int a = in.readInt();
+                return new NthExpression(a, in.readInt());
+            default:
+                throw new IOException("Corrupt selector bundle, unknown nth expression kind " + kind);
+        }
+    }
+
+    /**
+     * Writes a namespace prefix, the URI it was bound to, which is {@code null} for any namespace, and a local name.
+     */
+    private static void writeName(String prefix, String namespace, String localName, DataOutputStream out) throws IOException {
+        out.writeUTF(prefix);
+        out.writeBoolean(namespace != null);
+        if (namespace != null) {
+            out.writeUTF(namespace);
+        }
+        out.writeUTF(localName);
+    }
+
+    private static <E extends Enum<E>> E readEnum(E[] values, DataInputStream in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if (ordinal >= values.length) {
+            throw new IOException("Corrupt selector bundle, no " + values[0].getDeclaringClass().getSimpleName()
+                + " with ordinal " + ordinal);
+        }
+        return values[ordinal];
+    }
+}
@@ -0,0 +1,298 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.threelevers.css.CssSelectors.selectors;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.threelevers.css.CssSelectors.AttributeComparedToAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.ContainsPseudoSelector;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.HasPseudoSelector;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.NotPseudoSelector;
+import com.threelevers.css.CssSelectors.NthChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthLastChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthLastOfPseudoSelector;
+import com.threelevers.css.CssSelectors.NthOfTypePseudoSelector;
+import com.threelevers.css.CssSelectors.RelativeSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+import com.threelevers.css.CssSelectors.TextMatchesPseudoSelector;
+
+/**
+ * Works out, from a parsed selector alone, how the work of a query grows with the number of elements {@code n} and the
+ * depth {@code d} of the document in the worst case, so that a selector can be turned down before it is ever run. The
+ * estimate follows what {@link Selector#select} actually does for every element the query visits:
+ * <ul>
+ * <li>a descendant combinator walks up the ancestors of the element, and the selector on its left is matched from each
+ * of them, so every descendant combinator multiplies the work of the selector on its left by {@code d},</li>
+ * <li>child and adjacent combinators look at one element, and sibling combinators, positions among siblings, the
+ * language and {@code :has} keep what they work out for the whole query, which spreads their work over the elements,
+ * </li>
+ * <li>{@code :contains} and {@code :-text-matches} look at the text of the whole subtree, which puts every piece of
+ * text in the work of each of its {@code d} ancestors.</li>
+ * </ul>
+ * The work is then {@code n} times a polynomial in {@code d}, summed over the selectors of a group and the compounds
+ * of each selector. Parts that are cheap in those terms but costly in practice are reported as {@link Feature
+ * features}, with a warning naming the part of the selector, which callers can reject or rewrite.
+ */
+public final class SelectorComplexity {
+    public enum Feature {
+        /** more than one descendant combinator in a selector, each matching its left side again from every ancestor */
+        DESCENDANT_CHAIN,
+        /** a sibling combinator, which keeps what it finds for every sibling before the element */
+        SIBLING_COMBINATOR,
+        /** a pseudo-class counting from the last sibling or among siblings of the same type */
+        SIBLING_COUNTING,
+        /** {@code :not} around a part that is expensive to match, which is then matched against most elements */
+        NEGATED_EXPENSIVE,
+        /** an attribute compared to another attribute, of any length on both sides */
+        ATTRIBUTE_COMPARISON,
+        /** {@code :has}, matching selectors in the subtree or following siblings of the element */
+        RELATIONAL,
+        /** a pseudo-class looking at the text of the subtree of the element */
+        TEXT
+    }
+
+    private final String selector;
+    /** coefficient of every power of the depth, by exponent */
+    private final long[] work;
+    private final Set<Feature> features;
+    private final List<String> warnings;
+
+    private SelectorComplexity(String selector, long[] work, Set<Feature> features, List<String> warnings) {
+        this.selector = selector;
+        this.work = work;
+        this.features = unmodifiableSet(features);
+        this.warnings = unmodifiableList(warnings);
+    }
+
+    public static SelectorComplexity analyze(String selector) {
+        return analyze(selector, ImmutableMap.<String, String>of());
+    }
+
+    /**
+     * @param namespaces URIs of the namespace prefixes the selector uses, as bound by
+     *        {@link Selector#namespace(String, String)}
+     */
+    public static SelectorComplexity analyze(String selector, Map<String, String> namespaces) {
+        checkNotNull(selector, "selector");
+        checkNotNull(namespaces, "namespaces");
+        return analyze(selector, selectors(selector, namespaces));
+    }
+
+    static SelectorComplexity analyze(String source, CssSelector selector) {
+        Analysis analysis = new Analysis(false);
+        long[] work = analysis.cost(selector);
+        return new SelectorComplexity(source, work, analysis.features, analysis.warnings);
+    }
+
+    /**
+     * @return the exponent of the depth in the work done for every element
+     */
+    public int getDepthExponent() {
+        return work.length - 1;
+    }
+
+    public Set<Feature> getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return a description of every expensive part of the selector
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return the number of compounds the query may match against elements in the worst case, for a document of the
+     *         given size, such as those of a {@link PreparedDocument}
+     */
+    public double estimate(long elements, int depth) {
+        checkArgument(elements >= 0, "elements must not be negative");
+        checkArgument(depth >= 0, "depth must not be negative");
+        double perElement = 0;
+        for (int i = work.length - 1; i >= 0; i--) {
+            perElement = perElement * Math.max(depth, 1) + work[i];
+        }
+        return elements * perElement;
+    }
+
+    /**
+     * Turns down selectors that may do more work than a caller is willing to have done on a document of the given
+     * size.
+     *
+     * @return this analysis, if the estimate is within the limit
+     * @throws IllegalArgumentException if the estimate is over the limit, with the warnings in its message
+     */
+    public SelectorComplexity requireAtMost(double maxEstimate, long elements, int depth) {
+        double estimate = estimate(elements, depth);
+        checkArgument(estimate <= maxEstimate, "%s may match up to %s compounds, more than %s, in %s: %s", selector,
+                (long) estimate, (long) maxEstimate, this, warnings);
+        return this;
+    }
+
+    /**
+     * @return the growth of the work in big-O notation, such as {@code O(n*d^2)}
+     */
+    public String toString() {
+        int exponent = getDepthExponent();
+        return "O(n" + (exponent == 0 ? "" : exponent == 1 ? "*d" : "*d^" + exponent) + ")";
+    }
+
+    /**
+     * Works out the work of the parts of a selector, as polynomials in the depth, and what they are made of.
+     */
+    private static final class Analysis {
+        final Set<Feature> features = EnumSet.noneOf(Feature.class);
+        final List<String> warnings = new ArrayList<String>();
+        /** whether the selector is inside {@code :has}, whose combinators keep what they find */
+        private final boolean relative;
+
+        Analysis(boolean relative) {
+            this.relative = relative;
+        }
+
+        long[] cost(CssSelector selector) {
+            if (selector instanceof GroupingSelectorImpl) {
+                long[] work = {};
+                for (CombinableSelector combinable : ((GroupingSelectorImpl) selector).selectors) {
+                    work = plus(work, cost(combinable));
+                }
+                return work;
+            }
+            if (selector instanceof CombinableSelectorImpl) {
+                CssSelector chain = ((CombinableSelectorImpl) selector).selector;
+                if (!relative && descendants(chain) > 1) {
+                    flag(Feature.DESCENDANT_CHAIN, selector, "every ancestor matching a compound before the last "
+                            + "descendant combinator is walked up from again; child combinators avoid it");
+                }
+                return cost(chain);
+            }
+            if (selector instanceof NoCombinatorSelectorImpl) {
+                return cost(((NoCombinatorSelectorImpl) selector).selector);
+            }
+            if (selector instanceof CombinatorSelectorImpl) {
+                CombinatorSelectorImpl combinator = (CombinatorSelectorImpl) selector;
+                long[] left = cost(combinator.lhs);
+                if (combinator.combinator == Combinator.DESCENDANT) {
+                    left = timesDepth(left);
+                } else if (combinator.combinator == Combinator.SIBLING) {
+                    flag(Feature.SIBLING_COMBINATOR, selector, "the siblings before every element are matched");
+                }
+                return plus(cost(combinator.rhs), left);
+            }
+            if (selector instanceof SimpleSelectorImpl) {
+                long[] work = {};
+                for (CssSelector part : ((SimpleSelectorImpl) selector).selectors) {
+                    work = plus(work, cost(part));
+                }
+                return work;
+            }
+            if (selector instanceof NotPseudoSelector) {
+                Analysis negated = new Analysis(relative);
+                long[] work = negated.cost(((NotPseudoSelector) selector).selector);
+                features.addAll(negated.features);
+                warnings.addAll(negated.warnings);
+                if (work.length > 1 || negated.features.contains(Feature.RELATIONAL)
+                        || negated.features.contains(Feature.SIBLING_COUNTING)
+                        || negated.features.contains(Feature.ATTRIBUTE_COMPARISON)) {
+                    flag(Feature.NEGATED_EXPENSIVE, selector, "the negated part can't narrow down the elements "
+                            + "to match and is worked out for nearly all of them");
+                }
+                return work;
+            }
+            if (selector instanceof NthChildPseudoSelector || selector instanceof NthLastChildPseudoSelector) {
+                CssSelector of = selector instanceof NthChildPseudoSelector ? ((NthChildPseudoSelector) selector).of
+                        : ((NthLastChildPseudoSelector) selector).of;
+                if (selector instanceof NthLastChildPseudoSelector) {
+                    flag(Feature.SIBLING_COUNTING, selector, "all the siblings are counted before any is matched");
+                }
+                return of == null ? constant() : plus(constant(), cost(of));
+            }
+            if (selector instanceof NthOfTypePseudoSelector || selector instanceof NthLastOfPseudoSelector
+                    || selector == CssSelectors.firstOfType() || selector == CssSelectors.lastOfType()
+                    || selector == CssSelectors.onlyOfType()) {
+                flag(Feature.SIBLING_COUNTING, selector, "all the siblings are counted by type before any is matched");
+                return constant();
+            }
+            if (selector instanceof HasPseudoSelector) {
+                flag(Feature.RELATIONAL, selector, "the subtree or following siblings of elements are matched");
+                long[] work = constant();
+                Analysis inside = new Analysis(true);
+                for (RelativeSelector relative : ((HasPseudoSelector) selector).selectors) {
+                    // what is found for every element is kept, so the combinators inside don't repeat the walk
+                    work = plus(work, flatten(inside.cost(relative.selector)));
+                }
+                features.addAll(inside.features);
+                warnings.addAll(inside.warnings);
+                return work;
+            }
+            if (selector instanceof ContainsPseudoSelector || selector instanceof TextMatchesPseudoSelector) {
+                flag(Feature.TEXT, selector, "the text of the whole subtree of elements is looked at");
+                return timesDepth(constant());
+            }
+            if (selector instanceof AttributeComparedToAttributeSelectorImpl) {
+                flag(Feature.ATTRIBUTE_COMPARISON, selector, "two attribute values of any length are compared");
+            }
+            return constant();
+        }
+
+        private static int descendants(CssSelector chain) {
+            int count = 0;
+            while (chain instanceof CombinatorSelectorImpl) {
+                if (((CombinatorSelectorImpl) chain).combinator == Combinator.DESCENDANT) {
+                    count++;
+                }
+                chain = ((CombinatorSelectorImpl) chain).lhs;
+            }
+            return count;
+        }
+
+        private void flag(Feature feature, CssSelector part, String warning) {
+            features.add(feature);
+            warnings.add(part + ": " + warning);
+        }
+
+        private static long[] constant() {
+            return new long[] { 1 };
+        }
+
+        private static long[] plus(long[] a, long[] b) {
+            long[] sum = new long[Math.max(a.length, b.length)];
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] = (i < a.length ? a[i] : 0) + (i < b.length ? b[i] : 0);
+            }
+            return sum;
+        }
+
+        private static long[] timesDepth(long[] work) {
+            long[] times = new long[work.length + 1];
+            System.arraycopy(work, 0, times, 1, work.length);
+            return times;
+        }
+
+        /**
+         * @return the work with every power of the depth counted as a constant, for parts whose results are kept
+         */
+        private static long[] flatten(long[] work) {
+            long total = 0;
+            for (long w : work) {
+                total += w;
+            }
+            return new long[] { total };
+        }
+    }
+}
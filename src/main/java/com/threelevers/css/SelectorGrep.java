@@ -0,0 +1,347 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.CssSelectors.selectors;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.cyberneko.html.parsers.DOMParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * Finds the files among a list of files and directories that have elements matching a selector, the same way grep
+ * finds lines matching a pattern. Directories are searched recursively for HTML ({@code .html}, {@code .htm}), XML
+ * ({@code .xml}, {@code .xhtml}) and {@link MappedDocuments mapped} ({@code .cssd}) files. Files are memory-mapped and
+ * queried in parallel, one per thread at a time, and what is found is printed as soon as a file is done, so files are
+ * listed in the order they finish in. HTML is parsed with NekoHTML, which has to be on the class path for HTML files;
+ * without it they fail like files that can't be read.
+ * Usage:
+ * <pre>
+ *   SelectorGrep [-l | -c | -o] [-j &lt;threads&gt;] &lt;selector&gt; &lt;file or directory&gt;...
+ * </pre>
+ * <ul>
+ * <li>{@code -l} prints the path of every file with a match, which is the default,</li>
+ * <li>{@code -c} prints the path of every file with a match along with the number of elements matched,</li>
+ * <li>{@code -o} prints every element matched, serialized, after the path of its file,</li>
+ * <li>{@code -j} sets the number of threads, which defaults to the number of processors.</li>
+ * </ul>
+ * The number of files and bytes read, and how many of them were read per second, are printed to the error stream at
+ * the end. As with grep, the exit status is 0 if a file matched, even if others couldn't be read, 1 if none did, and 2
+ * if none did and a file couldn't be read, or if the arguments are wrong.
+ */
+public final class SelectorGrep {
+    static final String USAGE = "Usage: SelectorGrep [-l | -c | -o] [-j <threads>] <selector> <file or directory>...";
+
+    private static final List<String> HTML = Arrays.asList(".html", ".htm");
+    private static final List<String> XML = Arrays.asList(".xml", ".xhtml");
+    private static final String MAPPED = ".cssd";
+
+    enum Output {
+        FILES, COUNTS, ELEMENTS
+    }
+
+    private final String source;
+    private final CssSelector selector;
+    private final Output output;
+    private final PrintStream out;
+    private final PrintStream err;
+    private final AtomicInteger files = new AtomicInteger();
+    private final AtomicInteger matchedFiles = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong elements = new AtomicLong();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private SelectorGrep(String source, Output output, PrintStream out, PrintStream err) {
+        this.source = source;
+        this.selector = parse(source);
+        this.output = output;
+        this.out = out;
+        this.err = err;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * @return the exit status
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) throws InterruptedException {
+        Output output = Output.FILES;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                if (args[i].equals("-l")) {
+                    output = Output.FILES;
+                } else if (args[i].equals("-c")) {
+                    output = Output.COUNTS;
+                } else if (args[i].equals("-o")) {
+                    output = Output.ELEMENTS;
+                } else if (args[i].equals("-j") && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+            if (args.length - i < 2 || threads < 1) {
+                throw new IllegalArgumentException("a selector and at least one file are needed");
+            }
+            SelectorGrep grep = new SelectorGrep(args[i], output, out, err);
+            return grep.search(Arrays.asList(args).subList(i + 1, args.length), threads);
+        } catch (IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.println(USAGE);
+            return 2;
+        }
+    }
+
+    private static CssSelector parse(String selector) {
+        try {
+            return selectors(selector);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid selector " + selector);
+        }
+    }
+
+    private int search(List<String> paths, int threads) throws InterruptedException {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // keeps the files waiting for a thread from piling up while large directories are listed
+        Semaphore queued = new Semaphore(threads * 4);
+        try {
+            for (String path : paths) {
+                submit(new File(path), true, executor, queued);
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        double megabytes = bytes.get() / (1024.0 * 1024.0);
+        err.println(String.format("%d files, %.1f MB in %.2f s: %.0f files/s, %.1f MB/s, %d elements in %d files",
+                files.get(), megabytes, seconds, files.get() / seconds, megabytes / seconds, elements.get(), matchedFiles.get()));
+        return matchedFiles.get() > 0 ? 0 : failures.get() > 0 ? 2 : 1;
+    }
+
+    private void submit(final File file, boolean named, ExecutorService executor, final Semaphore queued)
+            throws InterruptedException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                fail(file, "unable to list directory");
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                submit(child, false, executor, queued);
+            }
+            return;
+        }
+        if (!named && kind(file) == null) {
+            return;
+        }
+        queued.acquire();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    grep(file);
+                } catch (Throwable e) {
+                    // errors too, such as NekoHTML missing from the class path or a page too deep to parse
+                    fail(file, message(e));
+                    if (e instanceof VirtualMachineError && !(e instanceof StackOverflowError)) {
+                        throw (Error) e;
+                    }
+                } finally {
+                    queued.release();
+                }
+            }
+        });
+    }
+
+    private void grep(File file) throws Exception {
+        ByteBuffer buffer = map(file);
+        files.incrementAndGet();
+        bytes.addAndGet(buffer.remaining());
+        Document doc = parse(file, buffer);
+        List<Element> matches = QueryExecutor.select(doc.getDocumentElement(), source, selector, new MatchContext(),
+                new QueryStats());
+        if (matches.isEmpty()) {
+            return;
+        }
+        matchedFiles.incrementAndGet();
+        elements.addAndGet(matches.size());
+        StringBuilder lines = new StringBuilder();
+        switch (output) {
+        case FILES:
+            lines.append(file.getPath()).append('\n');
+            break;
+        case COUNTS:
+            lines.append(file.getPath()).append(':').append(matches.size()).append('\n');
+            break;
+        case ELEMENTS:
+            for (Element element : matches) {
+                lines.append(file.getPath()).append(':').append(serialize(element)).append('\n');
+            }
+            break;
+        }
+        synchronized (out) {
+            out.print(lines);
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the message of the exception, or its class as well for errors, whose message is seldom clear on its own,
+     *         and for exceptions without one
+     */
+    static String message(Throwable e) {
+        return e.getMessage() != null && !(e instanceof Error) ? e.getMessage() : e.toString();
+    }
+
+    private void fail(File file, String message) {
+        failures.incrementAndGet();
+        synchronized (err) {
+            err.println(file.getPath() + ": " + message);
+        }
+    }
+
+    private static String kind(File file) {
+        String name = file.getName().toLowerCase(Locale.ENGLISH);
+        int dot = name.lastIndexOf('.');
+        String extension = dot < 0 ? "" : name.substring(dot);
+        if (HTML.contains(extension)) {
+            return ".html";
+        }
+        if (XML.contains(extension)) {
+            return ".xml";
+        }
+        return extension.equals(MAPPED) ? MAPPED : null;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses HTML with NekoHTML, XML with the namespace aware parser of the platform, which loads no external DTDs or
+     * entities, and reads mapped documents in place. Files named explicitly with an extension of none of them are parsed as HTML.
+     */
+    private static Document parse(File file, ByteBuffer buffer) throws Exception {
+        String kind = kind(file);
+        if (MAPPED.equals(kind)) {
+            return MappedDocuments.read(buffer);
+        }
+        InputSource source = new InputSource(new BufferInputStream(buffer));
+        source.setSystemId(file.toURI().toString());
+        if (".xml".equals(kind)) {
+            return XML_PARSERS.get().parse(source);
+        }
+        DOMParser parser = HTML_PARSERS.get();
+        parser.parse(source);
+        return parser.getDocument();
+    }
+
+    private static String serialize(Element element) throws Exception {
+        StringWriter serialized = new StringWriter();
+        SERIALIZERS.get().transform(new DOMSource(element), new StreamResult(serialized));
+        return serialized.toString();
+    }
+
+    private static final ThreadLocal<DOMParser> HTML_PARSERS = new ThreadLocal<DOMParser>() {
+        protected DOMParser initialValue() {
+            return new DOMParser();
+        }
+    };
+
+    private static final ThreadLocal<DocumentBuilder> XML_PARSERS = new ThreadLocal<DocumentBuilder>() {
+        protected DocumentBuilder initialValue() {
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true);
+                // saved pages often have a doctype, whose DTD would be fetched over the network for every file, and
+                // archived files can't be trusted not to refer to other files through external entities
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+                factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+                factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+                factory.setExpandEntityReferences(false);
+                return factory.newDocumentBuilder();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Transformer> SERIALIZERS = new ThreadLocal<Transformer>() {
+        protected Transformer initialValue() {
+            try {
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                return transformer;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Reads a mapped file without copying it onto the heap first.
+     */
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
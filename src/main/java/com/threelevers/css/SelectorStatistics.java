@@ -0,0 +1,261 @@
+package com.threelevers.css;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of the selectors parsed and the queries run in this JVM, published as an MBean named
+ * {@value #OBJECT_NAME}. Collecting them is off until {@link #enable()} is called, and costs a single volatile read
+ * per parse and query until then. Once on, every parse and query adds to {@link StripedCounters striped counters},
+ * and the latency of queries to a histogram with four buckets per power of two nanoseconds, so percentiles are within
+ * an eighth of the actual latency. The cost of each selector is kept for up to {@link #TRACKED} distinct selectors,
+ * keyed on the text they were parsed from. Once that many are kept, the cheaper half is dropped to make
+ * room for new ones, so selectors that only get hot later on still make it to the top while memory stays bounded.
+ * <p>
+ * Only queries planned by {@code QueryExecutor}, such as those of {@link Selector#select}, are counted; those of
+ * {@link PreparedDocument#selectAll}, {@link Selector#selectEach}, {@link StreamingSelector} and
+ * {@link ElementPublisher} are not.
+ */
+public final class SelectorStatistics implements SelectorStatisticsMBean {
+    public static final String OBJECT_NAME = "com.threelevers.css:type=SelectorStatistics";
+    static final int TOP = 10;
+    static final int TRACKED = 1000;
+
+    private static final int PARSES = 0;
+    private static final int PARSE_NANOS = 1;
+    private static final int CACHE_HITS = 2;
+    private static final int CACHE_MISSES = 3;
+    private static final int QUERIES = 4;
+    private static final int ELEMENTS = 5;
+    private static final int COUNTERS = 6;
+    private static final int BUCKETS = 256;
+
+    private static volatile SelectorStatistics current;
+
+    private final StripedCounters counters = new StripedCounters(COUNTERS);
+    private final StripedCounters latencies = new StripedCounters(BUCKETS);
+    private final ConcurrentMap<String, Cost> costs = new ConcurrentHashMap<String, Cost>();
+
+    private SelectorStatistics() {}
+
+    /**
+     * Starts collecting statistics and registers the MBean publishing them with the platform MBean server.
+     *
+     * @return the statistics collected from now on, the same as before if they were already being collected
+     */
+    public static synchronized SelectorStatistics enable() {
+        if (current == null) {
+            SelectorStatistics statistics = new SelectorStatistics();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(statistics, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                throw new IllegalStateException("Unable to register " + OBJECT_NAME, e);
+            }
+            current = statistics;
+        }
+        return current;
+    }
+
+    /**
+     * Stops collecting statistics and unregisters the MBean.
+     */
+    public static synchronized void disable() {
+        if (current != null) {
+            current = null;
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName name = new ObjectName(OBJECT_NAME);
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (JMException e) {
+                throw new IllegalStateException("Unable to unregister " + OBJECT_NAME, e);
+            }
+        }
+    }
+
+    /**
+     * @return the statistics being collected, or {@code null} if collecting them is off
+     */
+    static SelectorStatistics current() {
+        return current;
+    }
+
+    void parsed(long nanos) {
+        counters.add(PARSES, 1);
+        counters.add(PARSE_NANOS, nanos);
+    }
+
+    void looked(boolean found) {
+        counters.add(found ? CACHE_HITS : CACHE_MISSES, 1);
+    }
+
+    /**
+     * @param source the text of the selector queried with
+     */
+    void queried(String source, long nanos, int elements) {
+        counters.add(QUERIES, 1);
+        counters.add(ELEMENTS, elements);
+        latencies.add(bucket(nanos), 1);
+        Cost cost = costs.get(source);
+        if (cost == null) {
+            if (costs.size() >= TRACKED) {
+                prune();
+            }
+            costs.putIfAbsent(source, new Cost(source));
+            cost = costs.get(source);
+        }
+        if (cost != null) {
+            cost.queries.incrementAndGet();
+            cost.nanos.addAndGet(nanos);
+        }
+    }
+
+    public long getParseCount() {
+        return counters.sum(PARSES);
+    }
+
+    public double getMeanParseMicros() {
+        long parses = counters.sum(PARSES);
+        return parses == 0 ? 0 : counters.sum(PARSE_NANOS) / 1000.0 / parses;
+    }
+
+    public int getCacheSize() {
+        return CssSelectors.precompiledCount();
+    }
+
+    public long getCacheHits() {
+        return counters.sum(CACHE_HITS);
+    }
+
+    public long getCacheMisses() {
+        return counters.sum(CACHE_MISSES);
+    }
+
+    public double getCacheHitRatio() {
+        long hits = getCacheHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public long getQueryCount() {
+        return counters.sum(QUERIES);
+    }
+
+    public long getElementsVisited() {
+        return counters.sum(ELEMENTS);
+    }
+
+    public double getQueryLatencyP50Micros() {
+        return percentile(0.5) / 1000.0;
+    }
+
+    public double getQueryLatencyP99Micros() {
+        return percentile(0.99) / 1000.0;
+    }
+
+    /**
+     * Drops the cheaper half of the selectors kept, which is only done once every {@code TRACKED / 2} new selectors.
+     */
+    private synchronized void prune() {
+        if (costs.size() < TRACKED) {
+            return;
+        }
+        List<Cost> sorted = mostExpensiveFirst();
+        for (Cost cost : sorted.subList(TRACKED / 2, sorted.size())) {
+            costs.remove(cost.selector, cost);
+        }
+    }
+
+    private List<Cost> mostExpensiveFirst() {
+        List<Cost> sorted = new ArrayList<Cost>(costs.values());
+        Collections.sort(sorted, new Comparator<Cost>() {
+            public int compare(Cost a, Cost b) {
+                long x = a.nanos.get();
+                long y = b.nanos.get();
+                return x < y ? 1 : x > y ? -1 : 0;
+            }
+        });
+        return sorted;
+    }
+
+    public String[] getMostExpensiveSelectors() {
+        List<Cost> sorted = mostExpensiveFirst();
+        String[] top = new String[Math.min(TOP, sorted.size())];
+        for (int i = 0; i < top.length; i++) {
+            Cost cost = sorted.get(i);
+            top[i] = String.format("%s: %d queries, %.3f ms", cost.selector, cost.queries.get(), cost.nanos.get() / 1e6);
+        }
+        return top;
+    }
+
+    public void reset() {
+        counters.reset();
+        latencies.reset();
+        costs.clear();
+    }
+
+    /**
+     * @return the latency, in nanoseconds, that the fraction {@code p} of the queries took at most, taken as the middle
+     *         of the bucket it falls in
+     */
+    double percentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latencies.sum(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (lowerBound(i) + lowerBound(i + 1)) / 2.0;
+            }
+        }
+        return lowerBound(BUCKETS);
+    }
+
+    /**
+     * @return the bucket of a latency: the latencies below 4 have one each, and every power of two above is split in
+     *         four buckets by the two bits after its highest
+     */
+    static int bucket(long nanos) {
+        if (nanos < 4) {
+            return (int) Math.max(nanos, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - 1) * 4 + (int) ((nanos >>> (exponent - 2)) & 3);
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        return (4L + bucket % 4) << (bucket / 4 - 1);
+    }
+
+    private static final class Cost {
+        final String selector;
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+
+        Cost(String selector) {
+            this.selector = selector;
+        }
+    }
+}
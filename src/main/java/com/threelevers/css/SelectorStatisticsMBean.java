@@ -0,0 +1,40 @@
+package com.threelevers.css;
+
+/**
+ * What {@link SelectorStatistics} publishes over JMX. Latencies are in microseconds. The query counts, latencies and
+ * costs only cover queries planned by {@code QueryExecutor}, such as those of {@link Selector#select}; those of
+ * {@link PreparedDocument#selectAll}, {@link Selector#selectEach}, {@link StreamingSelector} and
+ * {@link ElementPublisher} are not counted.
+ */
+public interface SelectorStatisticsMBean {
+    long getParseCount();
+
+    double getMeanParseMicros();
+
+    /**
+     * @return the number of selectors compiled ahead of time that parsing is skipped for
+     */
+    int getCacheSize();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getQueryCount();
+
+    long getElementsVisited();
+
+    double getQueryLatencyP50Micros();
+
+    double getQueryLatencyP99Micros();
+
+    /**
+     * @return the selectors the most time was spent querying with, the most expensive first, each along with the
+     *         number of queries and the time they took
+     */
+    String[] getMostExpensiveSelectors();
+
+    void reset();
+}
@@ -0,0 +1,223 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.CssSelectors.localName;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.w3c.dom.Element;
+
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.CombinableSelector;
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.NoCombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Runs queries a set of elements at a time over a {@link DocumentNumbering numbered} document, instead of matching the
+ * whole selector against one element after another. Every compound of a selector is evaluated to the set of numbers of
+ * the elements it matches, starting from the elements indexed under its type, id or class when it has one, and the
+ * combinators between compounds become joins between those sets:
+ * <ul>
+ * <li>a descendant join keeps the elements inside the subtree intervals of the elements on its left,</li>
+ * <li>child and adjacent joins look up the parent or previous sibling of each element on its right,</li>
+ * <li>a sibling join keeps the elements that come after the first element on its left under the same parent.</li>
+ * </ul>
+ * The selectors of a group are evaluated one after the other and their sets merged. No element is matched against a
+ * compound more than once, so selectors matching a large part of the document cost about as much as a walk over it.
+ * <p>
+ * The indexes are built on first use and kept for later queries, so an executor is tied to a document that doesn't
+ * change, like the {@link PreparedDocument} holding it.
+ */
+final class SetExecutor {
+    private final DocumentNumbering numbering;
+    private final TextIndex text;
+    private Map<String, BitSet> tags;
+    private Map<String, BitSet> ids;
+    private Map<String, BitSet> classes;
+
+    SetExecutor(DocumentNumbering numbering, TextIndex text) {
+        this.numbering = numbering;
+        this.text = text;
+    }
+
+    /**
+     * @return the elements of the document matching the selector, in document order
+     */
+    List<Element> select(CssSelector selector, QueryStats stats) {
+        MatchContext context = new MatchContext(text, numbering);
+        BitSet matched = evaluate(selector, context, stats);
+        List<Element> matches = new ArrayList<Element>(matched.cardinality());
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            matches.add(numbering.element(i));
+            stats.matched();
+        }
+        return matches;
+    }
+
+    private BitSet evaluate(CssSelector selector, MatchContext context, QueryStats stats) {
+        if (selector instanceof GroupingSelectorImpl) {
+            BitSet union = new BitSet(numbering.size());
+            for (CombinableSelector combinable : ((GroupingSelectorImpl) selector).selectors) {
+                union.or(evaluate(combinable, context, stats));
+            }
+            return union;
+        }
+        if (selector instanceof CombinableSelectorImpl) {
+            return evaluate(((CombinableSelectorImpl) selector).selector, context, stats);
+        }
+        if (selector instanceof CombinatorSelectorImpl) {
+            CombinatorSelectorImpl combinator = (CombinatorSelectorImpl) selector;
+            BitSet lhs = evaluate(combinator.lhs, context, stats);
+            if (lhs.isEmpty()) {
+                return lhs;
+            }
+            return join(lhs, combinator.combinator, compound(combinator.rhs, context, stats));
+        }
+        if (selector instanceof NoCombinatorSelectorImpl) {
+            return compound(((NoCombinatorSelectorImpl) selector).selector, context, stats);
+        }
+        return filter(all(), selector, context, stats);
+    }
+
+    /**
+     * @return the elements matching the compound, found among those indexed under its most selective part
+     */
+    private BitSet compound(SimpleSelector compound, MatchContext context, QueryStats stats) {
+        BitSet candidates = null;
+        for (SimpleSelector part : ScopePlanner.parts(compound)) {
+            BitSet indexed = indexed(part);
+            if (indexed != null && (candidates == null || indexed.cardinality() < candidates.cardinality())) {
+                candidates = indexed;
+            }
+        }
+        return filter(candidates == null ? all() : (BitSet) candidates.clone(), compound, context, stats);
+    }
+
+    private BitSet filter(BitSet candidates, CssSelector selector, MatchContext context, QueryStats stats) {
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            stats.visited();
+            if (!selector.matches(numbering.element(i), context)) {
+                candidates.clear(i);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return the elements of {@code rhs} related to one of {@code lhs} by the combinator, reusing {@code rhs}
+     */
+    private BitSet join(BitSet lhs, Combinator combinator, BitSet rhs) {
+        switch (combinator) {
+        case DESCENDANT:
+            BitSet inside = new BitSet(numbering.size());
+            for (int i = lhs.nextSetBit(0); i >= 0; i = lhs.nextSetBit(numbering.end(i) + 1)) {
+                inside.set(i + 1, numbering.end(i) + 1);
+            }
+            rhs.and(inside);
+            return rhs;
+        case CHILDOF:
+            for (int i = rhs.nextSetBit(0); i >= 0; i = rhs.nextSetBit(i + 1)) {
+                int parent = numbering.parent(i);
+                if (parent < 0 || !lhs.get(parent)) {
+                    rhs.clear(i);
+                }
+            }
+            return rhs;
+        case ADJACENT:
+            for (int i = rhs.nextSetBit(0); i >= 0; i = rhs.nextSetBit(i + 1)) {
+                int previous = numbering.previous(i);
+                if (previous < 0 || !lhs.get(previous)) {
+                    rhs.clear(i);
+                }
+            }
+            return rhs;
+        case SIBLING:
+            // the first element of the left side under each parent
+            Map<Integer, Integer> first = new HashMap<Integer, Integer>();
+            for (int i = lhs.nextSetBit(0); i >= 0; i = lhs.nextSetBit(i + 1)) {
+                if (!first.containsKey(numbering.parent(i))) {
+                    first.put(numbering.parent(i), i);
+                }
+            }
+            for (int i = rhs.nextSetBit(0); i >= 0; i = rhs.nextSetBit(i + 1)) {
+                Integer earliest = first.get(numbering.parent(i));
+                if (earliest == null || earliest >= i) {
+                    rhs.clear(i);
+                }
+            }
+            return rhs;
+        default:
+            throw new IllegalArgumentException(combinator.name());
+        }
+    }
+
+    private BitSet all() {
+        BitSet all = new BitSet(numbering.size());
+        all.set(0, numbering.size());
+        return all;
+    }
+
+    /**
+     * @return the elements indexed under a type, id or class selector, or {@code null} for other selectors
+     */
+    private BitSet indexed(SimpleSelector part) {
+        if (part instanceof TypSelectorImpl && part != CssSelectors.any()) {
+            index();
+            return orEmpty(tags.get(((TypSelectorImpl) part).tagName.toLowerCase(Locale.ENGLISH)));
+        }
+        if (part instanceof IdSelector) {
+            index();
+            return orEmpty(ids.get(((IdSelector) part).id));
+        }
+        if (part instanceof ClassSelector) {
+            index();
+            return orEmpty(classes.get(((ClassSelector) part).className));
+        }
+        return null;
+    }
+
+    private static BitSet orEmpty(BitSet set) {
+        return set == null ? new BitSet() : set;
+    }
+
+    private void index() {
+        if (tags != null) {
+            return;
+        }
+        tags = new HashMap<String, BitSet>();
+        ids = new HashMap<String, BitSet>();
+        classes = new HashMap<String, BitSet>();
+        for (int i = 0; i < numbering.size(); i++) {
+            Element element = numbering.element(i);
+            add(tags, localName(element).toLowerCase(Locale.ENGLISH), i);
+            if (element.hasAttribute("id")) {
+                add(ids, element.getAttribute("id"), i);
+            }
+            if (element.hasAttribute("class")) {
+                for (String name : element.getAttribute("class").split("\\s+")) {
+                    if (name.length() > 0) {
+                        add(classes, name, i);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void add(Map<String, BitSet> index, String key, int number) {
+        BitSet set = index.get(key);
+        if (set == null) {
+            set = new BitSet();
+            index.put(key, set);
+        }
+        set.set(number);
+    }
+}
@@ -0,0 +1,43 @@
+package com.threelevers.css;
+
+import java.util.Locale;
+
+import com.google.common.collect.ImmutableSet;
+import com.threelevers.css.CssSelectors.AttributeComparedToAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.AttributeComparedToStringSelectorImpl;
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.HasAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Guesses selectivity from the kind of selector alone, for when nothing is known about the document: ids are assumed
+ * to match one element, the tags there is only one of in an HTML document nearly as few, and classes fewer elements
+ * than attributes, attributes fewer than other tags.
+ */
+final class ShapeCostModel implements CostModel {
+    static final CostModel INSTANCE = new ShapeCostModel();
+
+    static final ImmutableSet<String> UNIQUE_TAGS = ImmutableSet.of("html", "head", "body", "main");
+
+    private ShapeCostModel() {}
+
+    public double selectivity(SimpleSelector part) {
+        if (part instanceof IdSelector) {
+            return 0.0001;
+        } else if (part instanceof ClassSelector) {
+            return 0.05;
+        } else if (part instanceof HasAttributeSelectorImpl || part instanceof AttributeComparedToStringSelectorImpl
+                || part instanceof AttributeComparedToAttributeSelectorImpl) {
+            return 0.1;
+        } else if (part instanceof TypSelectorImpl && part != CssSelectors.any()) {
+            return UNIQUE_TAGS.contains(((TypSelectorImpl) part).tagName.toLowerCase(Locale.ENGLISH)) ? 0.001 : 0.2;
+        }
+        return 1;
+    }
+
+    public double anchorLimit() {
+        return 0.01;
+    }
+}
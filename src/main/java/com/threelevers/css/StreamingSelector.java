@@ -0,0 +1,231 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.threelevers.css.CssSelectors.selectors;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.threelevers.css.CssSelectors.AttributeComparedToAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.AttributeComparedToStringSelectorImpl;
+import com.threelevers.css.CssSelectors.ClassSelector;
+import com.threelevers.css.CssSelectors.GroupingSelector;
+import com.threelevers.css.CssSelectors.HasAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.IdSelector;
+import com.threelevers.css.CssSelectors.LangPseudoSelector;
+import com.threelevers.css.CssSelectors.NamespacedAttributeSelectorImpl;
+import com.threelevers.css.CssSelectors.NamespacedTypeSelector;
+import com.threelevers.css.CssSelectors.NotPseudoSelector;
+import com.threelevers.css.CssSelectors.NthChildPseudoSelector;
+import com.threelevers.css.CssSelectors.NthOfTypePseudoSelector;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+import com.threelevers.css.CssSelectors.TypSelectorImpl;
+
+/**
+ * Matches selectors against a document as it is parsed, without building the whole tree, by handing the
+ * {@link ContentHandler} it creates to a SAX parser. The selectors run on the same {@link SelectorAutomaton} as
+ * {@link Selector#selectEach(String...)}, fed with the start and end of every element as the parser reports them.
+ * <p>
+ * Only the open elements are kept, along with their previous siblings when a selector has a pseudo-class counting
+ * them, such as {@code :nth-child} or {@code :first-of-type}, and the content of the elements matched until they end.
+ * Whether an element matches is decided when it starts, which rules out the pseudo-classes that depend on what comes
+ * after it: {@code :last-child}, {@code :only-child}, {@code :nth-last-child}, {@code :last-of-type},
+ * {@code :only-of-type}, {@code :nth-last-of-type}, {@code :empty}, {@code :has}, {@code :contains} and
+ * {@code :-text-matches}.
+ */
+public final class StreamingSelector {
+    private StreamingSelector() {}
+
+    public interface Listener {
+        /**
+         * Called once a matching element has ended, with all of its content. Unless it is inside another element
+         * being matched, the element has been taken out of the partial tree and may be kept.
+         *
+         * @param selector position of the selector matched among those the handler was created with, the element being
+         *        passed once for every one of them that it matches
+         */
+        void matched(int selector, Element element);
+    }
+
+    /**
+     * @throws IllegalArgumentException if a selector is invalid or has a pseudo-class that depends on what follows
+     *         the start of an element
+     */
+    public static ContentHandler handler(Listener listener, String... selectors) {
+        return handler(ImmutableMap.<String, String>of(), listener, selectors);
+    }
+
+    /**
+     * Same as {@link #handler(Listener, String...)}, with namespace prefixes bound for the selectors as by
+     * {@link Selector#namespace(String, String)}. Elements and attributes only have namespaces if the parser is
+     * namespace aware.
+     *
+     * @param namespaces URIs of the namespaces by prefix
+     */
+    public static ContentHandler handler(Map<String, String> namespaces, Listener listener, String... selectors) {
+        checkNotNull(namespaces, "namespaces");
+        checkNotNull(listener, "listener");
+        checkNotNull(selectors, "selectors");
+        List<CssSelector> parsed = new ArrayList<CssSelector>(selectors.length);
+        for (String selector : selectors) {
+            parsed.add(selectors(checkNotNull(selector, "selector"), namespaces));
+        }
+        SelectorAutomaton automaton = new SelectorAutomaton(parsed);
+        boolean siblings = false;
+        for (SimpleSelector compound : automaton.compounds()) {
+            siblings |= countsSiblings(compound);
+        }
+        return new Handler(automaton, listener, siblings);
+    }
+
+    /**
+     * @return whether the selector needs the previous siblings of elements
+     * @throws IllegalArgumentException if the selector needs what follows the start of an element
+     */
+    private static boolean countsSiblings(CssSelector selector) {
+        if (selector instanceof SimpleSelectorImpl) {
+            boolean siblings = false;
+            for (SimpleSelector part : ((SimpleSelectorImpl) selector).selectors) {
+                siblings |= countsSiblings(part);
+            }
+            return siblings;
+        }
+        if (selector instanceof NotPseudoSelector) {
+            return countsSiblings(((NotPseudoSelector) selector).selector);
+        }
+        if (selector instanceof NthChildPseudoSelector) {
+            GroupingSelector of = ((NthChildPseudoSelector) selector).of;
+            if (of != null) {
+                for (SimpleSelector compound : new SelectorAutomaton(ImmutableList.of(of)).compounds()) {
+                    countsSiblings(compound);
+                }
+            }
+            return true;
+        }
+        if (selector instanceof NthOfTypePseudoSelector || selector == CssSelectors.firstChild()
+                || selector == CssSelectors.firstOfType()) {
+            return true;
+        }
+        checkArgument(selector instanceof TypSelectorImpl || selector instanceof NamespacedTypeSelector
+                || selector instanceof IdSelector || selector instanceof ClassSelector
+                || selector instanceof HasAttributeSelectorImpl || selector instanceof AttributeComparedToStringSelectorImpl
+                || selector instanceof NamespacedAttributeSelectorImpl
+                || selector instanceof AttributeComparedToAttributeSelectorImpl || selector instanceof LangPseudoSelector
+                || selector == CssSelectors.enabled() || selector == CssSelectors.disabled()
+                || selector == CssSelectors.checked() || selector == CssSelectors.selected(),
+                "%s can't be matched before the end of an element", selector);
+        return false;
+    }
+
+    private static final class Handler extends DefaultHandler {
+        private final SelectorAutomaton.Run run;
+        private final Listener listener;
+        private final boolean siblings;
+        private final Document doc;
+        private final List<BitSet> matches = new ArrayList<BitSet>();
+        private Node current;
+        /** how many of the open elements are being matched, and so keep their content */
+        private int matching;
+
+        Handler(SelectorAutomaton automaton, Listener listener, boolean siblings) {
+            this.run = automaton.new Run();
+            this.listener = listener;
+            this.siblings = siblings;
+            try {
+                this.doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            }
+            this.current = doc;
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            Element element = localName.length() == 0 ? doc.createElement(qName)
+                    : doc.createElementNS(uri.length() == 0 ? null : uri, qName);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                String name = attributes.getQName(i);
+                if (attributes.getLocalName(i).length() == 0 && !name.startsWith("xmlns")) {
+                    element.setAttribute(name, attributes.getValue(i));
+                } else {
+                    String namespace = attributes.getURI(i);
+                    if (name.equals("xmlns") || name.startsWith("xmlns:")) {
+                        namespace = XMLConstants.XMLNS_ATTRIBUTE_NS_URI;
+                    }
+                    element.setAttributeNS(namespace.length() == 0 ? null : namespace, name, attributes.getValue(i));
+                }
+            }
+            current.appendChild(element);
+            current = element;
+            // positions and languages are worked out again for every element, since the tree changes in between
+            BitSet matched = run.start(element, new MatchContext());
+            if (matched.isEmpty()) {
+                matches.add(null);
+            } else {
+                matches.add((BitSet) matched.clone());
+                matching++;
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (matching == 0) {
+                return;
+            }
+            Node last = current.getLastChild();
+            if (last instanceof Text) {
+                ((Text) last).appendData(new String(ch, start, length));
+            } else {
+                current.appendChild(doc.createTextNode(new String(ch, start, length)));
+            }
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            characters(ch, start, length);
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            run.end();
+            Element element = (Element) current;
+            Node parent = element.getParentNode();
+            current = parent;
+            BitSet matched = matches.remove(matches.size() - 1);
+            if (matched != null) {
+                matching--;
+                if (matching == 0) {
+                    // the element goes to the listener as it is, and a copy without content stands in for it
+                    parent.removeChild(element);
+                    if (siblings) {
+                        parent.appendChild(element.cloneNode(false));
+                    }
+                }
+                for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+                    listener.matched(i, element);
+                }
+            } else if (matching == 0) {
+                while (element.hasChildNodes()) {
+                    element.removeChild(element.getFirstChild());
+                }
+                if (!siblings) {
+                    parent.removeChild(element);
+                }
+            }
+        }
+    }
+}
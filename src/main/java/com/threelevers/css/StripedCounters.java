@@ -0,0 +1,47 @@
+package com.threelevers.css;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed number of counters that many threads add to at once. Every counter is split into stripes, and a thread only
+ * adds to the stripe its id hashes to, so threads on different stripes don't contend for the same cache line. Adding
+ * is a single atomic increment, and reading a counter sums its stripes, which may miss additions made meanwhile.
+ */
+final class StripedCounters {
+    // longs between the starts of two stripes, so that no two stripes share a cache line
+    private static final int PADDING = 8;
+
+    private final int stride;
+    private final int mask;
+    private final AtomicLongArray cells;
+
+    StripedCounters(int counters) {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        this.stride = counters + PADDING;
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * stride);
+    }
+
+    void add(int counter, long delta) {
+        long id = Thread.currentThread().getId();
+        int stripe = (int) ((id * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+        cells.getAndAdd(stripe * stride + counter, delta);
+    }
+
+    long sum(int counter) {
+        long sum = 0;
+        for (int i = counter; i < cells.length(); i += stride) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < cells.length(); i++) {
+            cells.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.threelevers.css;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * The normalized text of every element of a tree, for the pseudo-classes matching elements by their text. The text
+ * nodes of the whole tree are appended to a single buffer in one walk, with each run of white space collapsed into one
+ * space, and every element keeps the range of the buffer its descendants wrote. The text of an element is that range
+ * without its leading and trailing space, so no element's text is ever concatenated on its own.
+ * <p>
+ * Trees are indexed the first time one of their elements is looked up. The index assumes they don't change afterwards.
+ */
+final class TextIndex {
+    private final StringBuilder buffer = new StringBuilder();
+    private final Map<Element, int[]> ranges = new IdentityHashMap<Element, int[]>();
+    private final Map<String, int[]> occurrences = new HashMap<String, int[]>();
+    private final Map<String, int[]> foldedOccurrences = new HashMap<String, int[]>();
+    private String text;
+    private String folded;
+
+    /**
+     * @return the text content of the element with its white space normalized
+     */
+    String text(Element element) {
+        int[] range = range(element);
+        return text().substring(range[0], range[1]);
+    }
+
+    /**
+     * @param needle text to look for, already normalized, and {@link #fold(String) folded} when ignoring case
+     * @param ignoreCase whether to compare the text after folding it to lower case
+     * @return whether the normalized text of the element contains the needle
+     */
+    boolean contains(Element element, String needle, boolean ignoreCase) {
+        checkNotNull(needle, "needle");
+        int[] range = range(element);
+        if (needle.length() == 0) {
+            return true;
+        }
+        int[] starts = ignoreCase ? occurrences(foldedOccurrences, folded(), needle) : occurrences(occurrences, text(), needle);
+        int i = Arrays.binarySearch(starts, range[0]);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return i < starts.length && starts[i] + needle.length() <= range[1];
+    }
+
+    /**
+     * @return whether the pattern is found in the normalized text of the element, with {@code ^} and {@code $} anchored
+     *         to the start and end of that text
+     */
+    boolean find(Element element, Pattern pattern) {
+        checkNotNull(pattern, "pattern");
+        int[] range = range(element);
+        Matcher matcher = pattern.matcher(text());
+        matcher.region(range[0], range[1]);
+        return matcher.find();
+    }
+
+    static String fold(String s) {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    static String normalize(String s) {
+        StringBuilder normalized = new StringBuilder(s.length());
+        append(normalized, s);
+        int end = normalized.length();
+        if (end > 0 && normalized.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return normalized.substring(0, end);
+    }
+
+    private int[] range(Element element) {
+        checkNotNull(element, "element");
+        int[] range = ranges.get(element);
+        if (range == null) {
+            Node root = element;
+            while (root.getParentNode() != null) {
+                root = root.getParentNode();
+            }
+            index(root);
+            range = ranges.get(element);
+        }
+        return range;
+    }
+
+    private String text() {
+        if (text == null) {
+            text = buffer.toString();
+        }
+        return text;
+    }
+
+    private String folded() {
+        if (folded == null) {
+            folded = fold(text());
+        }
+        return folded;
+    }
+
+    private static int[] occurrences(Map<String, int[]> cache, String haystack, String needle) {
+        int[] starts = cache.get(needle);
+        if (starts == null) {
+            starts = new int[4];
+            int count = 0;
+            for (int i = haystack.indexOf(needle); i >= 0; i = haystack.indexOf(needle, i + 1)) {
+                if (count == starts.length) {
+                    int[] grown = new int[count * 2];
+                    System.arraycopy(starts, 0, grown, 0, count);
+                    starts = grown;
+                }
+                starts[count++] = i;
+            }
+            int[] trimmed = new int[count];
+            System.arraycopy(starts, 0, trimmed, 0, count);
+            starts = trimmed;
+            cache.put(needle, starts);
+        }
+        return starts;
+    }
+
+    private void index(Node root) {
+        Node node = root;
+        while (node != null) {
+            enter(node);
+            if (node.getFirstChild() != null) {
+                node = node.getFirstChild();
+                continue;
+            }
+            while (node != root && node.getNextSibling() == null) {
+                exit(node);
+                node = node.getParentNode();
+            }
+            exit(node);
+            node = node == root ? null : node.getNextSibling();
+        }
+        text = null;
+        folded = null;
+        occurrences.clear();
+        foldedOccurrences.clear();
+    }
+
+    private void enter(Node node) {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                ranges.put((Element) node, new int[] { buffer.length(), buffer.length() });
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                append(buffer, node.getNodeValue());
+                break;
+        }
+    }
+
+    private void exit(Node node) {
+        if (node.getNodeType() == Node.ELEMENT_NODE) {
+            int[] range = ranges.get(node);
+            int start = range[0];
+            int end = buffer.length();
+            if (end > start && buffer.charAt(start) == ' ') {
+                start++;
+            }
+            if (end > start && buffer.charAt(end - 1) == ' ') {
+                end--;
+            }
+            range[0] = start;
+            range[1] = end;
+        }
+    }
+
+    private static void append(StringBuilder buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (buffer.length() > 0 && buffer.charAt(buffer.length() - 1) != ' ') {
+                    buffer.append(' ');
+                }
+            } else {
+                buffer.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.CssSelectors.attrib;
+import static com.threelevers.css.CssSelectors.cssClass;
+import static com.threelevers.css.CssSelectors.id;
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.CssSelectors.tag;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Checks how much memory matching allocates, using the count of bytes the JVM allocated on the running thread. The core
+ * predicates are expected to allocate nothing at all, and a query only a few bytes per element it visits.
+ */
+public class AllocationTest {
+    static final int CALLS = 10000;
+    // the list of matches grows by about a dozen bytes for every element it ends up holding
+    static final long BYTES_PER_ELEMENT = 32;
+
+    static final Document doc = Corpus.classHeavy(1000, 8);
+    static final Element element = (Element) doc.getElementsByTagName("div").item(500);
+
+    com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void enableAllocationCounting() {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        element.setAttribute("id", "middle");
+        element.setAttribute("lang", "en-US");
+    }
+
+    @Test
+    public void assertThatIdSelectorsDontAllocate() {
+        assertThat(bytesPerCall(id("middle")), is(0L));
+        assertThat(bytesPerCall(id("nowhere")), is(0L));
+    }
+
+    @Test
+    public void assertThatClassSelectorsDontAllocate() {
+        String[] classes = element.getAttribute("class").split(" ");
+        assertThat(bytesPerCall(cssClass(classes[classes.length - 1])), is(0L));
+        assertThat(bytesPerCall(cssClass("nowhere")), is(0L));
+    }
+
+    @Test
+    public void assertThatAttributeSelectorsDontAllocate() {
+        assertThat(bytesPerCall(attrib("class").has("c1")), is(0L));
+        assertThat(bytesPerCall(attrib("lang").equalsLangSubcode("en")), is(0L));
+        assertThat(bytesPerCall(attrib("lang").equalTo("en-US")), is(0L));
+        assertThat(bytesPerCall(attrib("title")), is(0L));
+    }
+
+    @Test
+    public void assertThatLangDoesntAllocateOnceTheLanguageIsKnown() {
+        assertThat(bytesPerCall(CssSelectors.lang("en")), is(0L));
+        assertThat(bytesPerCall(CssSelectors.lang("fr")), is(0L));
+    }
+
+    @Test
+    public void assertThatCompoundsAndGroupsDontAllocate() {
+        assertThat(bytesPerCall(tag("div").and(cssClass("c1")).and(id("middle"))), is(0L));
+        assertThat(bytesPerCall(selectors("div.c1, #middle, [lang|=\"en\"]")), is(0L));
+    }
+
+    @Test
+    public void assertThatQueriesAllocateAFewBytesPerVisitedElement() {
+        Document larger = Corpus.classHeavy(2000, 8);
+        String[] queries = { ".c1", "div.c1.c2", "body > div", "div + div.c7", "[class~=\"c3\"]" };
+        for (String query : queries) {
+            CssSelector selector = selectors(query);
+            QueryStats small = new QueryStats();
+            QueryStats large = new QueryStats();
+            long bytes = bytesPerQuery(larger, selector, large) - bytesPerQuery(doc, selector, small);
+            long elements = large.getElementsVisited() - small.getElementsVisited();
+            assertThat(query, bytes / elements, is(lessThanOrEqualTo(BYTES_PER_ELEMENT)));
+        }
+    }
+
+    /**
+     * @return the bytes allocated by a query, which only differs between documents of different sizes by what is
+     *         allocated for each element visited
+     */
+    long bytesPerQuery(Document doc, CssSelector selector, QueryStats stats) {
+        for (int i = 0; i < 100; i++) {
+            Selector.select(doc.getDocumentElement(), selector);
+        }
+        long before = allocated();
+        Selector.select(doc.getDocumentElement(), selector, stats);
+        return allocated() - before - overhead();
+    }
+
+    /**
+     * @return the bytes allocated by a call to {@code matches}, averaged over many calls after warming the selector up
+     */
+    long bytesPerCall(CssSelector selector) {
+        MatchContext context = new MatchContext();
+        for (int i = 0; i < CALLS; i++) {
+            selector.matches(element, context);
+        }
+        long before = allocated();
+        for (int i = 0; i < CALLS; i++) {
+            selector.matches(element, context);
+        }
+        long bytes = allocated() - before - overhead();
+        return Math.max(0, bytes) / CALLS;
+    }
+
+    /**
+     * @return the bytes allocated by reading the counter itself
+     */
+    long overhead() {
+        long before = allocated();
+        return allocated() - before;
+    }
+
+    long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,55 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.AttributeComparator.HAS;
+import static com.threelevers.css.AttributeComparator.LONG_VALUE;
+import static com.threelevers.css.AttributeComparator.containsWord;
+import static com.threelevers.css.AttributeComparator.findWord;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AttributeComparatorTest {
+    @Test
+    public void assertThatWordsAreFoundTheSameWayTheyAreScannedFor() {
+        String[] lists = { "", " ", "c1", "c10 c1", "c10 c11", "c1\tc2\nc3", " c1 ", "xc1 c1x", "c1c1 c1", "a  b" };
+        String[] words = { "", "c1", "c2", "c3", "c10", "c", "1", "a b", "b", "c1c1" };
+        for (String list : lists) {
+            for (String word : words) {
+                assertThat("[" + list + "] ~= [" + word + "]", findWord(list, word), is(containsWord(list, word)));
+            }
+        }
+        Random random = new Random(46);
+        char[] alphabet = { 'a', 'b', ' ', '\t', '\n' };
+        for (int n = 0; n < 2000; n++) {
+            String list = random(random, alphabet, random.nextInt(200));
+            String word = random(random, alphabet, 1 + random.nextInt(3));
+            assertThat("[" + list + "] ~= [" + word + "]", findWord(list, word), is(containsWord(list, word)));
+        }
+    }
+
+    @Test
+    public void assertThatLongListsAreSearched() {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; list.length() < LONG_VALUE * 4; i++) {
+            list.append("image-").append(i).append(".jpg ").append(i * 10).append("w,\n");
+        }
+        assertThat(HAS.compare(list.toString(), "image-0.jpg"), is(true));
+        assertThat(HAS.compare(list.toString(), "image-1.jpg"), is(true));
+        assertThat(HAS.compare(list.toString(), "image-1"), is(false));
+        assertThat(HAS.compare(list.toString(), "0w,"), is(true));
+        assertThat(HAS.compare(list.toString(), "0w"), is(false));
+        assertThat(HAS.compare(list.toString(), "image-0.jpg 0w,"), is(false));
+        assertThat(HAS.compare("image-0.jpg 0w,", "0w,"), is(true));
+    }
+
+    static String random(Random random, char[] alphabet, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = alphabet[random.nextInt(alphabet.length)];
+        }
+        return new String(chars);
+    }
+}
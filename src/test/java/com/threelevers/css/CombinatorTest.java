@@ -0,0 +1,56 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.size;
+import static com.threelevers.css.CssSelectors.selector;
+import static com.threelevers.css.CssSelectors.tag;
+import static com.threelevers.css.DocumentBuilder.doc;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.CssSelectors.AbstractElementSelector;
+
+public class CombinatorTest {
+    static final int PARAGRAPHS = 2000;
+    static final Document doc = article(PARAGRAPHS);
+
+    @Test
+    public void assertThatSiblingCombinatorMatchesEachPreviousSiblingOnlyOnce() {
+        CountingSelector h2 = new CountingSelector("h2");
+        assertThat(size(Selector.select(doc.getDocumentElement(), selector(h2).siblingOf(tag("p")))), is(PARAGRAPHS));
+        assertThat(h2.count, is(lessThanOrEqualTo(PARAGRAPHS + 1)));
+    }
+
+    @Test
+    public void assertThatAdjacentCombinatorMatchesEachPreviousSiblingOnlyOnce() {
+        CountingSelector p = new CountingSelector("p");
+        assertThat(size(Selector.select(doc.getDocumentElement(), selector(p).adjacentTo(tag("p")))), is(PARAGRAPHS - 1));
+        assertThat(p.count, is(lessThanOrEqualTo(PARAGRAPHS + 1)));
+    }
+
+    static Document article(int paragraphs) {
+        StringBuilder html = new StringBuilder("<html><body><div id=\"article\"><h2>Heading</h2>");
+        for (int i = 0; i < paragraphs; i++) {
+            html.append("<p>Paragraph ").append(i).append("</p>\n");
+        }
+        return doc(html.append("</div></body></html>").toString());
+    }
+
+    static final class CountingSelector extends AbstractElementSelector {
+        final String tagName;
+        int count;
+
+        CountingSelector(String tagName) {
+            this.tagName = tagName;
+        }
+
+        public boolean matches(Element element) {
+            count++;
+            return element.getTagName().equalsIgnoreCase(tagName);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.size;
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Runs selectors against documents of growing size and checks that the work they do, counted in calls made to the
+ * DOM, doesn't grow faster than the bound declared for them.
+ */
+public class ComplexityTest {
+    static final int SIZE = 1000;
+    static final double TOLERANCE = 0.25;
+
+    enum Bound {
+        LINEAR(1), QUADRATIC(2);
+
+        final double exponent;
+
+        private Bound(double exponent) {
+            this.exponent = exponent;
+        }
+    }
+
+    interface Shape {
+        Document build(int size);
+    }
+
+    interface Query {
+        void run(Document doc);
+    }
+
+    static final Shape WIDE = new Shape() {
+        public Document build(int size) {
+            return Corpus.wide(size);
+        }
+    };
+
+    static final Shape DEEP = new Shape() {
+        public Document build(int size) {
+            return Corpus.deep(size);
+        }
+    };
+
+    static final Shape CLASSES = new Shape() {
+        public Document build(int size) {
+            return Corpus.classHeavy(size, 8);
+        }
+    };
+
+    static final Shape TABLES = new Shape() {
+        public Document build(int size) {
+            return Corpus.tables(4, size / 40, 10);
+        }
+    };
+
+    @Test
+    public void assertThatStructuralPseudoClassesAreLinearInTheNumberOfSiblings() {
+        String[] selectors = { ":nth-child(3n+1)", ":nth-last-child(2)", ":nth-of-type(odd)", ":nth-last-of-type(1)",
+                ":nth-child(odd of .mark)", ":first-child", ":last-child", ":only-of-type" };
+        for (String selector : selectors) {
+            assertThatGrowthOf(selector, WIDE, Bound.LINEAR);
+        }
+    }
+
+    @Test
+    public void assertThatSiblingCombinatorsAreLinearInTheNumberOfSiblings() {
+        String[] selectors = { "span ~ a", "p + span", ".mark ~ .mark", "p ~ span + a", "#wide > .mark ~ *" };
+        for (String selector : selectors) {
+            assertThatGrowthOf(selector, WIDE, Bound.LINEAR);
+        }
+    }
+
+    @Test
+    public void assertThatDescendantCombinatorsAreLinearInTheDepthOfTheTree() {
+        String[] selectors = { "div div", "section span", "section > div span", ".level .level", "body span", "div > div",
+                "section div section", "article div", "div:has(span)", ":has(> span)", ":lang(en)" };
+        for (String selector : selectors) {
+            assertThatGrowthOf(selector, DEEP, Bound.LINEAR);
+        }
+    }
+
+    @Test
+    public void assertThatClassSelectorsAreLinearInTheNumberOfElements() {
+        String[] selectors = { ".c1", ".c1.c2", "div.c50", "body > .c99:nth-child(even)" };
+        for (String selector : selectors) {
+            assertThatGrowthOf(selector, CLASSES, Bound.LINEAR);
+        }
+    }
+
+    @Test
+    public void assertThatTableQueriesAreLinearInTheNumberOfRows() {
+        String[] selectors = { "tr:nth-child(even) td:nth-child(2)", "tbody tr.odd-row > td + td", "td:contains(\"42\")",
+                "table tr:last-child td:last-of-type", "tr:has(td:contains(\"7\"))" };
+        for (String selector : selectors) {
+            assertThatGrowthOf(selector, TABLES, Bound.LINEAR);
+        }
+    }
+
+    @Test
+    public void assertThatLargeDocumentsCanBeQueried() {
+        assertThat(size(from(Corpus.wide(100000)).select(":nth-last-child(3n) ~ .mark")), is(19999));
+        assertThat(size(from(Corpus.deep(10000)).select("section div span")), is(1));
+    }
+
+    @Test
+    public void assertThatQuadraticGrowthIsDetected() {
+        // without a shared context the positions of the siblings are counted again for every child
+        Query matchEachChild = new Query() {
+            public void run(Document doc) {
+                CssSelector selector = CssSelectors.selectors(":nth-child(odd)");
+                for (Element child : Elements.children(doc.getElementById("wide"))) {
+                    selector.matches(child);
+                }
+            }
+        };
+        assertThat(exponent(WIDE, matchEachChild, 200), is(greaterThan(Bound.QUADRATIC.exponent - TOLERANCE)));
+    }
+
+    static void assertThatGrowthOf(final String selector, Shape shape, Bound bound) {
+        double exponent = exponent(shape, new Query() {
+            public void run(Document doc) {
+                from(doc).select(selector);
+            }
+        }, SIZE);
+        assertThat(selector + " grew with exponent " + exponent, exponent, lessThanOrEqualTo(bound.exponent + TOLERANCE));
+    }
+
+    /**
+     * Counts the operations the query does on documents of three sizes, each twice the one before, and works out the
+     * exponent of the fastest growth between two of them.
+     */
+    static double exponent(Shape shape, Query query, int smallest) {
+        double exponent = 0;
+        long previous = 0;
+        for (int size = smallest; size <= smallest * 4; size *= 2) {
+            DomOperations operations = new DomOperations();
+            query.run(operations.wrap(shape.build(size)));
+            if (previous > 0) {
+                exponent = Math.max(exponent, Math.log((double) operations.count() / previous) / Math.log(2));
+            }
+            previous = operations.count();
+        }
+        return exponent;
+    }
+}
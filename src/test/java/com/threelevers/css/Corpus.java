@@ -0,0 +1,124 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.DocumentBuilder.doc;
+
+import java.util.Random;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Builds large documents of a given shape for tests that need more than a few elements. The documents only depend on
+ * their size, so a test gets the same tree every time it runs.
+ */
+public class Corpus {
+    static final long SEED = 0x3ECAFEL;
+
+    /**
+     * @return a document with {@code count} sibling elements under {@code div#wide}, cycling through {@code p},
+     *         {@code span} and {@code a} elements, every fifth of them with class {@code mark}
+     */
+    public static Document wide(int count) {
+        Document doc = empty();
+        Element wide = element(doc, "div", "wide");
+        body(doc).appendChild(wide);
+        String[] tags = { "p", "span", "a" };
+        for (int i = 0; i < count; i++) {
+            Element e = element(doc, tags[i % tags.length], null);
+            if (i % 5 == 0) {
+                e.setAttribute("class", "mark");
+            }
+            wide.appendChild(e);
+        }
+        return doc;
+    }
+
+    /**
+     * @return a document with {@code depth} {@code div} elements nested in each other under {@code body}, every tenth
+     *         one a {@code section} instead, and a {@code span} in the innermost one
+     */
+    public static Document deep(int depth) {
+        Document doc = empty();
+        Element parent = body(doc);
+        for (int i = 0; i < depth; i++) {
+            Element e = element(doc, i % 10 == 9 ? "section" : "div", null);
+            e.setAttribute("class", "level");
+            parent.appendChild(e);
+            parent = e;
+        }
+        parent.appendChild(element(doc, "span", "bottom"));
+        return doc;
+    }
+
+    /**
+     * @return a document with {@code count} {@code div} elements under {@code body}, each with {@code classes} classes
+     *         picked at random out of a hundred
+     */
+    public static Document classHeavy(int count, int classes) {
+        Document doc = empty();
+        Random random = new Random(SEED);
+        Element body = body(doc);
+        for (int i = 0; i < count; i++) {
+            StringBuilder names = new StringBuilder();
+            for (int j = 0; j < classes; j++) {
+                names.append(j == 0 ? "" : " ").append("c").append(random.nextInt(100));
+            }
+            Element e = element(doc, "div", null);
+            e.setAttribute("class", names.toString());
+            body.appendChild(e);
+        }
+        return doc;
+    }
+
+    /**
+     * @return a document with {@code tables} tables under {@code body}, each with a header row and {@code rows} rows
+     *         of {@code columns} cells, every cell holding a number
+     */
+    public static Document tables(int tables, int rows, int columns) {
+        Document doc = empty();
+        Random random = new Random(SEED);
+        Element body = body(doc);
+        for (int t = 0; t < tables; t++) {
+            Element table = element(doc, "table", "table-" + t);
+            Element thead = element(doc, "thead", null);
+            Element header = element(doc, "tr", null);
+            for (int c = 0; c < columns; c++) {
+                Element th = element(doc, "th", null);
+                th.appendChild(doc.createTextNode("column " + c));
+                header.appendChild(th);
+            }
+            thead.appendChild(header);
+            table.appendChild(thead);
+            Element tbody = element(doc, "tbody", null);
+            for (int r = 0; r < rows; r++) {
+                Element tr = element(doc, "tr", null);
+                tr.setAttribute("class", r % 2 == 0 ? "even-row" : "odd-row");
+                for (int c = 0; c < columns; c++) {
+                    Element td = element(doc, "td", null);
+                    td.appendChild(doc.createTextNode(String.valueOf(random.nextInt(1000))));
+                    tr.appendChild(td);
+                }
+                tbody.appendChild(tr);
+            }
+            table.appendChild(tbody);
+            body.appendChild(table);
+        }
+        return doc;
+    }
+
+    private static Document empty() {
+        return doc("<html><body></body></html>");
+    }
+
+    private static Element body(Document doc) {
+        return (Element) doc.getElementsByTagName("body").item(0);
+    }
+
+    private static Element element(Document doc, String tag, String id) {
+        Element e = doc.createElement(tag);
+        if (id != null) {
+            e.setAttribute("id", id);
+        }
+        return e;
+    }
+}
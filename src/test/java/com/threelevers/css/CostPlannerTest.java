@@ -0,0 +1,49 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.threelevers.css.CssSelectors.cssClass;
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.CssSelectors.tag;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasToString;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.threelevers.css.CssSelectors.CombinableSelectorImpl;
+import com.threelevers.css.CssSelectors.CombinatorSelectorImpl;
+import com.threelevers.css.CssSelectors.GroupingSelectorImpl;
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.CssSelectors.SimpleSelectorImpl;
+
+public class CostPlannerTest {
+    static final DocumentStatistics statistics = new DocumentStatistics(SelectorTest.doc.getDocumentElement());
+
+    @Test
+    public void assertThatTheMostSelectivePartsOfACompoundAreMatchedFirst() {
+        CssSelector planned = CostPlanner.plan(selectors("form input[type=\"radio\"].radio:checked"), statistics);
+        assertThat(parts(planned).toString(), is(equalTo("[.radio, input, [type=\"radio\"], :checked]")));
+    }
+
+    @Test
+    public void assertThatPlannedSelectorsPrintTheWayTheyWereWritten() {
+        assertThat(CostPlanner.plan(selectors("form input[type=\"radio\"].radio:checked, div.section"), statistics),
+                hasToString("form input[type=\"radio\"].radio:checked, div.section"));
+    }
+
+    @Test
+    public void assertThatSelectivityIsTheShareOfElementsMatchingEveryPart() {
+        double elements = statistics.elements();
+        assertThat(CostPlanner.selectivity(tag("input").and(cssClass("radio")), statistics), is(closeTo(7 / elements * 3 / elements, 1e-9)));
+    }
+
+    static List<SimpleSelector> parts(CssSelector planned) {
+        CombinableSelectorImpl combinable = (CombinableSelectorImpl) getOnlyElement(((GroupingSelectorImpl) planned).selectors);
+        return newArrayList(((SimpleSelectorImpl) ((CombinatorSelectorImpl) combinable.selector).rhs).selectors);
+    }
+}
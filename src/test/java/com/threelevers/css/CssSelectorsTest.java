@@ -395,4 +395,22 @@ public class CssSelectorsTest {
     public void assertThatSelectedPseudoSelectorDoesNotMatchNonSelectedElements() {
         assertThat(selected(), not(matchesAll(elements("option-0", "option-3").from(doc))));
     }
+
+    @Test
+    public void assertThatHasSelectorMatchesElementWithMatchingDescendant() {
+        assertThat(has(selector(tag("h2"))), matches(element("section1").from(doc)));
+    }
+
+    @Test
+    public void assertThatHasSelectorDoesNotMatchElementWithoutMatchingDescendant() {
+        assertThat(has(selector(tag("h2"))), not(matches(element("info-form").from(doc))));
+    }
+
+    @Test
+    public void assertThatHasSelectorWithChildCombinatorOnlyMatchesChildren() {
+        assertThat(has(relative(Combinator.CHILDOF, selector(tag("input")))), allOf(
+            matches(element("info-form-fieldset1").from(doc)),
+            not(matches(element("info-form").from(doc)))
+        ));
+    }
 }
@@ -0,0 +1,96 @@
+package com.threelevers.css;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Counts the calls made to a DOM tree. The tree is wrapped in proxies implementing the same DOM interfaces as its
+ * nodes, with one proxy per node so that identity comparisons still hold, and every call made through them is counted.
+ * The count is a measure of the work done on the tree that doesn't depend on how fast the machine running it is.
+ */
+public class DomOperations {
+    private final Map<Object, Object> proxies = new IdentityHashMap<Object, Object>();
+    private long count;
+
+    public Document wrap(Document doc) {
+        return (Document) wrap((Object) doc);
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    private Object wrap(Object target) {
+        if (!(target instanceof Node || target instanceof NodeList || target instanceof NamedNodeMap)
+                || Proxy.isProxyClass(target.getClass())) {
+            return target;
+        }
+        Object proxy = proxies.get(target);
+        if (proxy == null) {
+            proxy = Proxy.newProxyInstance(DomOperations.class.getClassLoader(), interfaces(target.getClass()), new Handler(target));
+            proxies.put(target, proxy);
+        }
+        return proxy;
+    }
+
+    private static Object unwrap(Object o) {
+        if (o != null && Proxy.isProxyClass(o.getClass()) && Proxy.getInvocationHandler(o) instanceof Handler) {
+            return ((Handler) Proxy.getInvocationHandler(o)).target;
+        }
+        return o;
+    }
+
+    private static Class<?>[] interfaces(Class<?> type) {
+        List<Class<?>> interfaces = new ArrayList<Class<?>>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            collect(c.getInterfaces(), interfaces);
+        }
+        return interfaces.toArray(new Class<?>[interfaces.size()]);
+    }
+
+    private static void collect(Class<?>[] candidates, List<Class<?>> interfaces) {
+        for (Class<?> c : candidates) {
+            if (c.getName().startsWith("org.w3c.dom.") && !interfaces.contains(c)) {
+                interfaces.add(c);
+            }
+            collect(c.getInterfaces(), interfaces);
+        }
+    }
+
+    private final class Handler implements InvocationHandler {
+        final Object target;
+
+        Handler(Object target) {
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            count++;
+            if (args != null) {
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = unwrap(args[i]);
+                }
+            }
+            try {
+                return wrap(method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
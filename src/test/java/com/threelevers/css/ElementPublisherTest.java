@@ -0,0 +1,155 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.ElementPublisher.Subscription;
+
+public class ElementPublisherTest {
+    static final Document doc = SelectorTest.doc;
+
+    @Test
+    public void assertThatPublishedElementsAreTheSelectedElements() {
+        Recorder recorder = subscribe(from(doc).publish("label + input, option"));
+        recorder.subscription.request(Long.MAX_VALUE);
+        assertThat(recorder.elements(), is(equalTo(toArray(from(doc).select("label + input, option"), Element.class))));
+        assertThat(recorder.completed, is(true));
+    }
+
+    @Test
+    public void assertThatTheWalkOnlyGoesAsFarAsElementsAreAskedFor() {
+        DomOperations operations = new DomOperations();
+        Document wide = operations.wrap(Corpus.wide(1000));
+        Recorder all = subscribe(from(wide).publish(".mark"));
+        operations.reset();
+        all.subscription.request(Long.MAX_VALUE);
+        long walk = operations.count();
+
+        Recorder some = subscribe(from(wide).publish(".mark"));
+        operations.reset();
+        some.subscription.request(1);
+        assertThat(some.received.size(), is(1));
+        assertThat(operations.count(), is(lessThan(walk / 100)));
+        some.subscription.request(99);
+        assertThat(some.received.size(), is(100));
+        some.subscription.request(Long.MAX_VALUE);
+        assertThat(operations.count(), is(walk));
+        assertThat(some.elements(), is(equalTo(all.elements())));
+    }
+
+    @Test
+    public void assertThatCancellingStopsTheWalk() {
+        Recorder recorder = new Recorder() {
+            public void onSubscribe(Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(10);
+            }
+
+            public void onNext(Element element) {
+                super.onNext(element);
+                subscription.cancel();
+            }
+        };
+        from(Corpus.wide(1000)).publish(".mark").subscribe(recorder);
+        recorder.subscription.request(10);
+        assertThat(recorder.received.size(), is(1));
+        assertThat(recorder.completed, is(false));
+    }
+
+    @Test
+    public void assertThatElementsCanBeAskedForOneAtATimeFromOnNext() {
+        Recorder recorder = new Recorder() {
+            public void onSubscribe(Subscription subscription) {
+                super.onSubscribe(subscription);
+                subscription.request(1);
+            }
+
+            public void onNext(Element element) {
+                super.onNext(element);
+                subscription.request(1);
+            }
+        };
+        Document wide = Corpus.wide(10000);
+        from(wide).publish("*").subscribe(recorder);
+        assertThat(recorder.elements(), is(equalTo(toArray(from(wide).select("*"), Element.class))));
+        assertThat(recorder.completed, is(true));
+    }
+
+    @Test
+    public void assertThatAskingForNoElementsIsAnError() {
+        Recorder recorder = subscribe(from(doc).publish("option"));
+        recorder.subscription.request(0);
+        assertThat(recorder.error, is(instanceOf(IllegalArgumentException.class)));
+        recorder.subscription.request(1);
+        assertThat(recorder.received.size(), is(0));
+    }
+
+    @Test
+    public void assertThatSubscribersThrowingStopTheWalk() {
+        final RuntimeException failure = new IllegalStateException("full");
+        Recorder recorder = new Recorder() {
+            public void onNext(Element element) {
+                super.onNext(element);
+                if (received.size() == 2) {
+                    throw failure;
+                }
+            }
+        };
+        from(doc).publish("option").subscribe(recorder);
+        recorder.subscription.request(3);
+        assertThat(recorder.error, is(sameInstance((Throwable) failure)));
+        recorder.error = null;
+        recorder.subscription.request(1);
+        assertThat(recorder.received.size(), is(2));
+        assertThat(recorder.error, is(nullValue()));
+        assertThat(recorder.completed, is(false));
+    }
+
+    static Recorder subscribe(ElementPublisher publisher) {
+        Recorder recorder = new Recorder();
+        publisher.subscribe(recorder);
+        assertThat(recorder.error, is(nullValue()));
+        return recorder;
+    }
+
+    static class Recorder implements ElementPublisher.Subscriber {
+        final List<Element> received = new ArrayList<Element>();
+        Subscription subscription;
+        Throwable error;
+        boolean completed;
+
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(Element element) {
+            received.add(element);
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        public void onComplete() {
+            completed = true;
+        }
+
+        Element[] elements() {
+            return received.toArray(new Element[received.size()]);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.Extraction.Columns;
+
+public class ExtractionTest {
+    static final Document tables = Corpus.tables(3, 50, 4);
+    static final Document wide = Corpus.wide(1000);
+
+    @Test
+    public void assertThatColumnsHoldTheValuesOfTheSelectedElements() {
+        for (String selector : new String[] { "tr", "td:nth-child(2)", "tr.even-row > td", "th, td:last-child", "blink" }) {
+            Columns columns = from(tables).extract(selector).attr("class").text().columns();
+            List<String> classes = new ArrayList<String>();
+            List<String> texts = new ArrayList<String>();
+            for (Element e : from(tables).select(selector)) {
+                classes.add(e.hasAttribute("class") ? e.getAttribute("class") : null);
+                texts.add(e.getTextContent());
+            }
+            assertThat(selector, columns.getRowCount(), is(classes.size()));
+            assertThat(selector, columns.getColumnCount(), is(2));
+            assertThat(selector, columns.getColumn(0), is(equalTo(classes.toArray(new String[0]))));
+            assertThat(selector, columns.getColumn(1), is(equalTo(texts.toArray(new String[0]))));
+        }
+    }
+
+    @Test
+    public void assertThatMissingAttributesAreNull() {
+        Columns columns = from(wide).extract("#wide > *").attr("class").columns();
+        assertThat(columns.getRowCount(), is(1000));
+        assertThat(columns.get(0, 0), is("mark"));
+        assertThat(columns.get(1, 0), is(nullValue()));
+    }
+
+    @Test
+    public void assertThatInternedValuesAreShared() {
+        assertThat(shared(from(tables).extract("td").text().interned().columns()), is(true));
+        assertThat(shared(from(tables).extract("td").text().columns()), is(false));
+    }
+
+    @Test
+    public void assertThatTheQueryIsRunOnlyOnce() {
+        QueryStats extracted = new QueryStats();
+        from(tables).extract("td").text().attr("class").columns(extracted);
+        QueryStats selected = new QueryStats();
+        from(tables).select("td", selected);
+        assertThat(extracted.getElementsVisited(), is(selected.getElementsVisited()));
+        assertThat(extracted.getMatches(), is(selected.getMatches()));
+    }
+
+    /**
+     * @return whether all the equal values of the first column are the same string
+     */
+    static boolean shared(Columns columns) {
+        Map<String, String> first = new HashMap<String, String>();
+        boolean shared = true;
+        for (String value : columns.getColumn(0)) {
+            if (!first.containsKey(value)) {
+                first.put(value, value);
+            }
+            shared &= first.get(value) == value;
+        }
+        return shared;
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void assertThatExtractionsNeedAColumn() {
+        from(wide).extract("p").columns();
+    }
+}
@@ -0,0 +1,136 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class MappedDocumentsTest {
+    static final Document doc = SelectorTest.doc;
+    static final Document mapped = MappedDocuments.read(ByteBuffer.wrap(bytes(doc)));
+
+    @Test
+    public void assertThatMappedDocumentsSelectTheSameElementsAsTheirSource() {
+        String[] selectors = { "#title", "div.section h2", "form label + input.text", "fieldset > :nth-child(odd of .radio)",
+                ".form-fields > select option", "h1 ~ p, option[value=\"2\"]", "label:contains(\"name\" i)",
+                "body > :has(h2.sub, > fieldset)", "*", "a:lang(en)", "[hreflang|=\"en\"]", "input:checked",
+                "option:selected", ":disabled", "p:empty", "label:-text-matches(\"^[A-Z][a-z]+$\")" };
+        for (String selector : selectors) {
+            assertThat(selector, ids(from(mapped).select(selector)), is(equalTo(ids(from(doc).select(selector)))));
+        }
+    }
+
+    @Test
+    public void assertThatNamespacesAreKept() {
+        Document atom = MappedDocuments.read(ByteBuffer.wrap(bytes(NamespaceTest.doc)));
+        String[] selectors = { "atom|entry", "xhtml|p", "svg|a[xlink|href]", "*|title", "|title" };
+        for (String selector : selectors) {
+            assertThat(selector, ids(selector(atom).select(selector)), is(equalTo(ids(selector(NamespaceTest.doc).select(selector)))));
+        }
+    }
+
+    @Test
+    public void assertThatFilesAreMapped() throws IOException {
+        File file = File.createTempFile("mapped", ".bin");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                MappedDocuments.write(doc, out);
+            } finally {
+                out.close();
+            }
+            Document mapped = MappedDocuments.map(file);
+            assertThat(mapped.getElementById("option-1").getAttribute("value"), is("1"));
+            assertThat(mapped.getElementById("title").getTextContent(), is("Title"));
+            assertThat(mapped.getElementById("nowhere"), is(nullValue()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = DOMException.class)
+    public void assertThatMappedDocumentsCannotBeChanged() {
+        mapped.getElementById("title").setAttribute("class", "changed");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatOtherContentIsRejected() {
+        MappedDocuments.read(ByteBuffer.wrap(new byte[64]));
+    }
+
+    @Test
+    public void assertThatSelectorBundlesAreRejected() throws IOException {
+        try {
+            MappedDocuments.read(ByteBuffer.wrap(SelectorBundleTest.bundle(SelectorBundleTest.selectors)));
+            throw new AssertionError("not rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("not a mapped document: wrong magic number"));
+        }
+    }
+
+    @Test
+    public void assertThatTruncatedDocumentsAreRejected() {
+        byte[] bytes = bytes(doc);
+        for (int length = 20; length < bytes.length; length++) {
+            try {
+                MappedDocuments.read(ByteBuffer.wrap(bytes, 0, length));
+                throw new AssertionError("not rejected when cut at " + length + " of " + bytes.length + " bytes");
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), is("not a mapped document: truncated"));
+            }
+        }
+    }
+
+    @Test
+    public void assertThatCorruptCountsAreRejected() {
+        for (int count : new int[] { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE / 4 + 1 }) {
+            for (int offset = 8; offset <= 20; offset += 4) {
+                ByteBuffer corrupt = ByteBuffer.wrap(bytes(doc));
+                corrupt.putInt(offset, count);
+                try {
+                    MappedDocuments.read(corrupt);
+                    throw new AssertionError("count " + count + " at " + offset + " not rejected");
+                } catch (IllegalArgumentException e) {
+                    assertThat(e.getMessage().startsWith("not a mapped document: "), is(true));
+                }
+            }
+        }
+    }
+
+    static Selector selector(Document doc) {
+        return from(doc).namespace("atom", NamespaceTest.ATOM).namespace("xhtml", NamespaceTest.XHTML)
+                .namespace("svg", NamespaceTest.SVG).namespace("xlink", NamespaceTest.XLINK);
+    }
+
+    static List<String> ids(Iterable<Element> elements) {
+        List<String> ids = new ArrayList<String>();
+        for (Element element : elements) {
+            ids.add(element.getNodeName() + "#" + element.getAttribute("id"));
+        }
+        return ids;
+    }
+
+    static byte[] bytes(Document doc) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MappedDocuments.write(doc, out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.MatcherGenerator.generate;
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.generated.AttributeMatcher;
+import com.threelevers.css.generated.FormFieldMatcher;
+import com.threelevers.css.generated.LabelledInputMatcher;
+import com.threelevers.css.generated.NthMatcher;
+import com.threelevers.css.generated.StateMatcher;
+import com.threelevers.css.generated.StructuralMatcher;
+import com.threelevers.css.generated.SubtitleMatcher;
+import com.threelevers.css.generated.TitleMatcher;
+
+public class MatcherGeneratorTest {
+    static final Document doc = SelectorTest.doc;
+
+    @Test
+    public void assertThatGeneratedIdMatcherSelectsTheSameElementsAsTheSelector() {
+        assertThat(elements(TitleMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(TitleMatcher.SELECTOR))));
+    }
+
+    @Test
+    public void assertThatGeneratedCombinatorMatcherSelectsTheSameElementsAsTheSelector() {
+        assertThat(elements(SubtitleMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(SubtitleMatcher.SELECTOR))));
+        assertThat(elements(LabelledInputMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(LabelledInputMatcher.SELECTOR))));
+    }
+
+    @Test
+    public void assertThatGeneratedGroupingMatcherSelectsTheSameElementsAsTheSelector() {
+        assertThat(elements(FormFieldMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(FormFieldMatcher.SELECTOR))));
+    }
+
+    @Test
+    public void assertThatGeneratedPseudoClassMatchersSelectTheSameElementsAsTheSelectors() {
+        assertThat(elements(NthMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(NthMatcher.SELECTOR))));
+        assertThat(elements(StructuralMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(StructuralMatcher.SELECTOR))));
+        assertThat(elements(StateMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(StateMatcher.SELECTOR))));
+    }
+
+    @Test
+    public void assertThatGeneratedAttributeMatcherSelectsTheSameElementsAsTheSelector() {
+        assertThat(elements(AttributeMatcher.select(doc.getDocumentElement())), is(equalTo(selectedWith(AttributeMatcher.SELECTOR))));
+    }
+
+    @Test
+    public void assertThatGeneratedMatcherInlinesSelectorConstants() {
+        String source = generate("com.example", "Example", "div.product > a[href^=\"http:\"]");
+        assertThat(source, containsString("\"div\".equalsIgnoreCase(MatcherSupport.localName(element))"));
+        assertThat(source, containsString("MatcherSupport.has(element.getAttribute(\"class\"), \"product\")"));
+        assertThat(source, containsString("element.getAttribute(\"href\").startsWith(\"http:\")"));
+        assertThat(source, not(containsString("Selector.")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatGeneratingAMatcherForAnIncompleteSelectorFails() {
+        generate("com.example", "Example", "div >");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatGeneratingAMatcherForASelectorWithTrailingGarbageFails() {
+        generate("com.example", "Example", "div ]");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatGeneratingAMatcherWithAnInvalidClassNameFails() {
+        generate("com.example", "Not A Class", "div");
+    }
+
+    static Element[] elements(List<Element> elements) {
+        return elements.toArray(new Element[elements.size()]);
+    }
+
+    static Element[] selectedWith(String selector) {
+        return toArray(from(doc).select(selector), Element.class);
+    }
+}
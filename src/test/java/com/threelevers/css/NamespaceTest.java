@@ -0,0 +1,137 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import com.google.common.collect.ImmutableMap;
+
+public class NamespaceTest {
+    static final String ATOM = "http://www.w3.org/2005/Atom";
+    static final String XHTML = "http://www.w3.org/1999/xhtml";
+    static final String SVG = "http://www.w3.org/2000/svg";
+    static final String XLINK = "http://www.w3.org/1999/xlink";
+
+    static final Document doc = xml(
+            "<feed xmlns=\"http://www.w3.org/2005/Atom\" xmlns:media=\"http://search.yahoo.com/mrss/\">" +
+            "  <title id=\"feed-title\">Feed</title>" +
+            "  <entry id=\"entry-1\">" +
+            "    <title id=\"entry-1-title\">First</title>" +
+            "    <media:title id=\"entry-1-media-title\">Media</media:title>" +
+            "    <content id=\"entry-1-content\" type=\"xhtml\">" +
+            "      <div xmlns=\"http://www.w3.org/1999/xhtml\" id=\"xhtml-div\">" +
+            "        <svg:svg xmlns:svg=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" id=\"svg\">" +
+            "          <svg:a id=\"svg-link\" xlink:href=\"#entry-1\" href=\"plain\"/>" +
+            "          <svg:foreignObject id=\"svg-foreign\"/>" +
+            "        </svg:svg>" +
+            "        <a id=\"xhtml-link\" href=\"#entry-2\"/>" +
+            "      </div>" +
+            "    </content>" +
+            "  </entry>" +
+            "  <entry id=\"entry-2\">" +
+            "    <title id=\"entry-2-title\">Second</title>" +
+            "    <nons xmlns=\"\" id=\"no-namespace\"/>" +
+            "  </entry>" +
+            "</feed>");
+
+    static final Selector selector = Selector.from(doc)
+            .namespace("atom", ATOM)
+            .namespace("h", XHTML)
+            .namespace("svg", SVG)
+            .namespace("xlink", XLINK)
+            .namespace("media", "http://search.yahoo.com/mrss/");
+
+    @Test
+    public void assertThatPrefixedTypeSelectorsMatchElementsInTheBoundNamespace() {
+        assertThat(selectedWith("atom|title"), is(equalTo(byId("feed-title", "entry-1-title", "entry-2-title"))));
+        assertThat(selectedWith("media|title"), is(equalTo(byId("entry-1-media-title"))));
+        assertThat(selectedWith("h|a"), is(equalTo(byId("xhtml-link"))));
+        assertThat(selectedWith("svg|a"), is(equalTo(byId("svg-link"))));
+        assertThat(selectedWith("atom|entry > atom|*"), is(equalTo(byId("entry-1-title", "entry-1-content", "entry-2-title"))));
+    }
+
+    @Test
+    public void assertThatUnprefixedTypeSelectorsMatchLocalNamesInAnyNamespace() {
+        assertThat(selectedWith("title"), is(equalTo(byId("feed-title", "entry-1-title", "entry-1-media-title", "entry-2-title"))));
+        assertThat(selectedWith("*|a"), is(equalTo(byId("svg-link", "xhtml-link"))));
+        assertThat(selectedWith("|nons, |title"), is(equalTo(byId("no-namespace"))));
+    }
+
+    @Test
+    public void assertThatPrefixedNamesAreCaseSensitive() {
+        assertThat(selectedWith("svg|foreignObject"), is(equalTo(byId("svg-foreign"))));
+        assertThat(selectedWith("svg|foreignobject"), is(emptyArray()));
+        assertThat(selectedWith("foreignobject"), is(equalTo(byId("svg-foreign"))));
+    }
+
+    @Test
+    public void assertThatAttributesCanBeSelectedByNamespace() {
+        assertThat(selectedWith("[xlink|href]"), is(equalTo(byId("svg-link"))));
+        assertThat(selectedWith("[xlink|href=\"#entry-1\"]"), is(equalTo(byId("svg-link"))));
+        assertThat(selectedWith("[xlink|href^=\"#entry-2\"]"), is(emptyArray()));
+        assertThat(selectedWith("[|href]"), is(equalTo(byId("svg-link", "xhtml-link"))));
+        assertThat(selectedWith("[*|href=\"#entry-1\"]"), is(equalTo(byId("svg-link"))));
+        assertThat(selectedWith("svg|*[*|href]"), is(equalTo(byId("svg-link"))));
+    }
+
+    @Test
+    public void assertThatHtmlDocumentsMatchWithAndWithoutANamespacePrefix() {
+        Document html = SelectorTest.doc;
+        assertThat(toArray(Selector.from(html).select("*|label[|for=\"high\"]"), Element.class),
+                is(equalTo(Matchers.elements("high-label").from(html))));
+        assertThat(toArray(Selector.from(html).select("|h1"), Element.class), is(equalTo(Matchers.elements("title").from(html))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatUnboundPrefixesAreRejected() {
+        Selector.from(doc).select("atom|entry");
+    }
+
+    @Test
+    public void assertThatNamespacedSelectorsPrintTheWayTheyWereWritten() {
+        assertThat(CssSelectors.parse("*|a, |b, svg|*[xlink|href=\"x\"]", ImmutableMap.of("svg", SVG, "xlink", XLINK)).toString(),
+                is("*|a, |b, svg|*[xlink|href=\"x\"]"));
+    }
+
+    Element[] selectedWith(String s) {
+        return toArray(selector.select(s), Element.class);
+    }
+
+    static Element[] byId(String... ids) {
+        Element[] elements = new Element[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            elements[i] = byId(doc.getDocumentElement(), ids[i]);
+        }
+        return elements;
+    }
+
+    private static Element byId(Element root, String id) {
+        for (org.w3c.dom.Node node = root; node != null; node = Nodes.following(node, root)) {
+            if (Nodes.isElement(node) && id.equals(((Element) node).getAttribute("id"))) {
+                return (Element) node;
+            }
+        }
+        throw new IllegalArgumentException(id);
+    }
+
+    static Document xml(String xml) {
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            return factory.newDocumentBuilder().parse(new InputSource(new StringReader(xml)));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.Matchers.elements;
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.emptyArray;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.QueryStats.Strategy;
+
+public class PreparedDocumentTest {
+    static final Document doc = SelectorTest.doc;
+    static final PreparedDocument prepared = PreparedDocument.prepare(doc);
+
+    @Test
+    public void assertThatStatisticsAreCollectedWhenTheDocumentIsPrepared() {
+        assertThat(prepared.getTagCount("LABEL"), is(7));
+        assertThat(prepared.getIdCount("title"), is(1));
+        assertThat(prepared.getClassCount("radio"), is(3));
+        assertThat(prepared.getClassCount("title"), is(2));
+        assertThat(prepared.getAttributeCount("for"), is(7));
+        assertThat(prepared.getTagCount("table"), is(0));
+        assertThat(prepared.getMaxDepth(), is(5));
+        assertThat(prepared.getMaxFanOut(), is(15));
+    }
+
+    @Test
+    public void assertThatPreparedDocumentsSelectTheSameElementsAsSelector() {
+        String[] selectors = { "#title", "div.section h2", "form label + input.text", "fieldset > :nth-child(odd of .radio)",
+                ".form-fields > select option", "h1 ~ p, option[value=\"2\"]", "label:contains(\"name\" i)",
+                "body > :has(h2.sub, > fieldset)", "*" };
+        for (String selector : selectors) {
+            assertThat(selector, selectedWith(selector, new QueryStats()), is(equalTo(toArray(from(doc).select(selector), Element.class))));
+        }
+    }
+
+    @Test
+    public void assertThatNumberedDocumentsSelectTheSameElementsAsSelector() {
+        PreparedDocument numbered = prepared.numbered();
+        String[] selectors = { "div.section h2", "body label", "fieldset :nth-child(odd of .radio)", "div div * option",
+                ".form-fields > select option", "form :has(h2) h2", "html *" };
+        for (String selector : selectors) {
+            assertThat(selector, toArray(numbered.select(selector), Element.class), is(equalTo(toArray(from(doc).select(selector), Element.class))));
+        }
+    }
+
+    @Test
+    public void assertThatDescendantsOfRareElementsAreFoundWithoutWalkingUpTheirAncestors() {
+        for (String selector : new String[] { "html span", ".level div" }) {
+            assertThat(selector, operations(Corpus.deep(1000), true, selector), is(lessThan(operations(Corpus.deep(1000), false, selector))));
+        }
+    }
+
+    @Test
+    public void assertThatSetsOfElementsSelectTheSameElementsAsSelector() {
+        PreparedDocument numbered = prepared.numbered();
+        String[] selectors = { "#title", "div.section h2", "form label + input.text", "fieldset > :nth-child(odd of .radio)",
+                ".form-fields > select option", "h1 ~ p, option[value=\"2\"]", "label:contains(\"name\" i)",
+                "body > :has(h2.sub, > fieldset)", "*", "label ~ input", "div > * + *", "html", "table td" };
+        for (String selector : selectors) {
+            assertThat(selector, toArray(numbered.selectAll(selector), Element.class), is(equalTo(toArray(from(doc).select(selector), Element.class))));
+        }
+    }
+
+    @Test
+    public void assertThatSetsOfElementsAreSelectedWithFewerOperationsOnTheDocument() {
+        String[] selectors = { "tr td", "tbody > tr.odd-row > td + td", "table td:nth-child(2)", "tr ~ tr td" };
+        for (String selector : selectors) {
+            DomOperations operations = new DomOperations();
+            PreparedDocument tables = PreparedDocument.prepare(operations.wrap(Corpus.tables(4, 100, 10))).numbered();
+            tables.selectAll("table");
+            operations.reset();
+            Element[] selected = toArray(tables.selectAll(selector), Element.class);
+            long sets = operations.count();
+            operations.reset();
+            assertThat(selector, selected, is(equalTo(toArray(tables.select(selector), Element.class))));
+            assertThat(selector, sets, is(lessThan(operations.count())));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void assertThatSetsOfElementsAreOnlySelectedFromNumberedDocuments() {
+        prepared.selectAll("p");
+    }
+
+    @Test
+    public void assertThatQueriesForWhatTheDocumentDoesNotHaveDoNotWalkIt() {
+        QueryStats stats = new QueryStats();
+        assertThat(selectedWith("table td", stats), is(emptyArray()));
+        assertThat(stats.getElementsVisited(), is(0));
+    }
+
+    @Test
+    public void assertThatQueriesAreNarrowedToTheSubtreesOfRareClasses() {
+        QueryStats stats = new QueryStats();
+        assertThat(selectedWith(".form-fields label", stats).length, is(7));
+        assertThat(stats.getElementsVisited(), is(lessThan(prepared.getElementCount())));
+    }
+
+    @Test
+    public void assertThatEachSelectorOfAGroupIsPlannedOnItsOwn() {
+        QueryStats stats = new QueryStats();
+        assertThat(selectedWith("div .title, select option, p", stats), is(equalTo(elements("subtitle", "option-0", "option-1", "option-2", "option-3", "empty-p").from(doc))));
+        assertThat(stats.getSelectorCount(), is(3));
+        assertThat(stats.getInitialStrategy(0), is(Strategy.TOP_DOWN));
+        assertThat(stats.getInitialStrategy(1), is(Strategy.TOP_DOWN));
+        assertThat(stats.getInitialStrategy(2), is(Strategy.BOTTOM_UP));
+    }
+
+    /**
+     * @return the calls made to the DOM by the query, not counting those made to prepare the document
+     */
+    static long operations(Document doc, boolean numbered, String selector) {
+        DomOperations operations = new DomOperations();
+        PreparedDocument prepared = PreparedDocument.prepare(operations.wrap(doc));
+        if (numbered) {
+            prepared = prepared.numbered();
+        }
+        operations.reset();
+        prepared.select(selector);
+        return operations.count();
+    }
+
+    static Element[] selectedWith(String selector, QueryStats stats) {
+        return toArray(prepared.select(selector, stats), Element.class);
+    }
+}
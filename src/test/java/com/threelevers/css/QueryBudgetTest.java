@@ -0,0 +1,124 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.CssSelectors.SimpleSelector;
+import com.threelevers.css.QueryBudget.Cancellation;
+import com.threelevers.css.QueryBudget.Limit;
+import com.threelevers.css.QueryStats.Strategy;
+
+public class QueryBudgetTest {
+    static final Document wide = Corpus.wide(1000);
+    static final Document deep = Corpus.deep(1000);
+
+    @Test
+    public void assertThatQueriesWithinTheirBudgetSelectTheSameElements() {
+        QueryBudget budget = QueryBudget.unlimited().maxElementsVisited(10000).maxPredicateEvaluations(100000)
+                .timeout(1, TimeUnit.MINUTES).cancelledBy(new Cancellation());
+        for (String selector : new String[] { "div", ".mark", "body > div:nth-child(2n+1)", "div:has(span)" }) {
+            Element[] limited = toArray(from(wide).select(selector, new QueryStats(), budget), Element.class);
+            assertThat(selector, limited, is(equalTo(toArray(from(wide).select(selector), Element.class))));
+        }
+    }
+
+    @Test
+    public void assertThatVisitingTooManyElementsStopsTheQuery() {
+        QueryBudgetExceededException e = select(wide, "div", QueryBudget.unlimited().maxElementsVisited(100));
+        assertThat(e.getLimit(), is(Limit.ELEMENTS_VISITED));
+        assertThat(e.getStats().getElementsVisited(), is(101));
+    }
+
+    @Test
+    public void assertThatEvaluatingTooManyPredicatesStopsTheQuery() {
+        QueryBudgetExceededException e = select(deep, "section div div", QueryBudget.unlimited().maxPredicateEvaluations(1000));
+        assertThat(e.getLimit(), is(Limit.PREDICATE_EVALUATIONS));
+        assertThat(e.getPredicateEvaluations(), is(1001L));
+        assertThat(e.getStats().getElementsVisited(), is(lessThanOrEqualTo(1000)));
+    }
+
+    @Test
+    public void assertThatBothStrategiesChargeEveryEvaluationOnce() {
+        Document items = QueryExecutorTest.items(100);
+        // html, body, ul and every li and b against one compound, then every li against ul, or ul's children against li
+        long evaluations = 3 + 3 * 100;
+        for (Strategy strategy : Strategy.values()) {
+            QueryBudget budget = QueryBudget.unlimited().maxPredicateEvaluations(evaluations);
+            assertThat(strategy.toString(), select(items, "ul > li", strategy, budget), is(nullValue()));
+            QueryBudgetExceededException e = select(items, "ul > li", strategy, budget.maxPredicateEvaluations(evaluations - 1));
+            assertThat(strategy.toString(), e.getPredicateEvaluations(), is(evaluations));
+            assertThat(e.getStats().getInitialStrategy(), is(strategy));
+        }
+    }
+
+    @Test
+    public void assertThatQueriesStopAtTheirDeadline() {
+        QueryBudgetExceededException e = select(deep, ".level .level .level span", QueryBudget.unlimited().timeout(1, TimeUnit.NANOSECONDS));
+        assertThat(e.getLimit(), is(Limit.DEADLINE));
+    }
+
+    @Test
+    public void assertThatCancelledQueriesStopRightAway() {
+        Cancellation cancellation = new Cancellation();
+        cancellation.cancel();
+        QueryBudgetExceededException e = select(wide, "div", QueryBudget.unlimited().cancelledBy(cancellation));
+        assertThat(e.getLimit(), is(Limit.CANCELLED));
+        assertThat(e.getStats().getElementsVisited(), is(lessThanOrEqualTo(1)));
+    }
+
+    @Test
+    public void assertThatInterruptedQueriesStop() {
+        Thread.currentThread().interrupt();
+        try {
+            assertThat(select(wide, "div", QueryBudget.unlimited()).getLimit(), is(Limit.INTERRUPTED));
+            assertThat(Thread.currentThread().isInterrupted(), is(true));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    static QueryBudgetExceededException select(Document doc, String selector, QueryBudget budget) {
+        try {
+            from(doc).select(selector, new QueryStats(), budget);
+        } catch (QueryBudgetExceededException e) {
+            return e;
+        }
+        throw new AssertionError(selector + " was selected within " + budget);
+    }
+
+    /**
+     * @return the exception the query was stopped with, or null if it was run to the end with the strategy given
+     */
+    static QueryBudgetExceededException select(Document doc, String selector, final Strategy strategy, QueryBudget budget) {
+        final String leftmost = selector.substring(0, selector.indexOf(' '));
+        CostModel model = new CostModel() {
+            public double selectivity(SimpleSelector part) {
+                return part.toString().equals(leftmost) == (strategy == Strategy.TOP_DOWN) ? 0.1 : 0.5;
+            }
+
+            public double anchorLimit() {
+                return 0;
+            }
+        };
+        QueryStats stats = new QueryStats();
+        MatchContext context = new MatchContext();
+        context.limit(budget.start(stats));
+        try {
+            QueryExecutor.select(doc.getDocumentElement(), selector, CssSelectors.selectors(selector), context, stats, model);
+        } catch (QueryBudgetExceededException e) {
+            return e;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,109 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.DocumentBuilder.doc;
+import static com.threelevers.css.Matchers.elements;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class QueryCacheTest {
+    static Document notes() {
+        return doc(
+            "<html>" +
+            "  <body>" +
+            "    <p id=\"first\" class=\"note\">One</p>" +
+            "    <p id=\"second\">Two</p>" +
+            "    <div id=\"third\" class=\"note\">Three</div>" +
+            "  </body>" +
+            "</html>"
+        );
+    }
+
+    @Test
+    public void assertThatRepeatedQueriesOnAnUnchangedDocumentAreAnsweredFromTheCache() {
+        QueryCache cache = QueryCache.create(100, 1 << 20);
+        Document doc = notes();
+        Iterable<Element> notes = cache.select(doc, ".note");
+        assertThat(toArray(notes, Element.class), is(equalTo(elements("first", "third").from(doc))));
+        assertThat(cache.select(doc, ".note"), is(sameInstance(notes)));
+        assertThat(cache.getHitCount(), is(1L));
+        assertThat(cache.getMissCount(), is(1L));
+    }
+
+    @Test
+    public void assertThatChangesToTheDocumentAreNoticed() {
+        QueryCache cache = QueryCache.create(100, 1 << 20);
+        Document doc = notes();
+        cache.select(doc, ".note");
+        doc.getElementById("second").setAttribute("class", "note");
+        assertThat(toArray(cache.select(doc, ".note"), Element.class), is(equalTo(elements("first", "second", "third").from(doc))));
+        doc.getElementById("third").getParentNode().removeChild(doc.getElementById("third"));
+        assertThat(toArray(cache.select(doc, ".note"), Element.class), is(equalTo(elements("first", "second").from(doc))));
+        assertThat(cache.getHitCount(), is(0L));
+        assertThat(cache.getEntryCount(), is(1));
+    }
+
+    @Test
+    public void assertThatDocumentsCanBeMarkedAsModified() {
+        QueryCache cache = QueryCache.create(100, 1 << 20);
+        Document doc = notes();
+        Iterable<Element> notes = cache.select(doc, ".note");
+        cache.modified(doc);
+        assertThat(cache.select(doc, ".note"), is(not(sameInstance(notes))));
+        assertThat(cache.getMissCount(), is(2L));
+    }
+
+    @Test
+    public void assertThatTheLeastRecentlyUsedResultsAreEvicted() {
+        QueryCache cache = QueryCache.create(2, 1 << 20);
+        Document doc = notes();
+        Iterable<Element> paragraphs = cache.select(doc, "p");
+        cache.select(doc, "div");
+        cache.select(doc, "p");
+        cache.select(doc, ".note");
+        assertThat(cache.getEntryCount(), is(2));
+        assertThat(cache.select(doc, "p"), is(sameInstance(paragraphs)));
+        cache.select(doc, "div");
+        assertThat(cache.getMissCount(), is(4L));
+    }
+
+    @Test
+    public void assertThatCachesOfTheSameDocumentKeepTheirOwnResults() {
+        Document doc = notes();
+        QueryCache[] caches = new QueryCache[100];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = QueryCache.create(1, 1 << 20);
+            caches[i].select(doc, ".note");
+        }
+        QueryCache alone = QueryCache.create(1, 1 << 20);
+        alone.select(notes(), "p");
+        for (int i = 0; i < caches.length; i++) {
+            caches[i].select(doc, "p");
+            assertThat(caches[i].getEntryCount(), is(1));
+            assertThat(caches[i].getEstimatedBytes(), is(alone.getEstimatedBytes()));
+            assertThat(caches[i].select(doc, "p"), is(sameInstance(caches[i].select(doc, "p"))));
+        }
+    }
+
+    @Test
+    public void assertThatResultsAreEvictedOnceTheyTakeTooMuchMemory() {
+        long limit = 3 * QueryCache.ENTRY_BYTES + 40 * QueryCache.ELEMENT_BYTES;
+        QueryCache cache = QueryCache.create(100, limit);
+        Document doc = Corpus.wide(100);
+        cache.select(doc, "#wide > *");
+        assertThat(cache.getEntryCount(), is(0));
+        cache.select(doc, "p");
+        cache.select(doc, "a");
+        cache.select(doc, "span");
+        assertThat(cache.getEntryCount(), is(1));
+        assertThat(cache.getEstimatedBytes(), is(lessThanOrEqualTo(limit)));
+    }
+}
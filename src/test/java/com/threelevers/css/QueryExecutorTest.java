@@ -0,0 +1,93 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.DocumentBuilder.doc;
+import static com.threelevers.css.Matchers.elements;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import com.threelevers.css.QueryStats.Strategy;
+
+public class QueryExecutorTest {
+    static final Document doc = SelectorTest.doc;
+
+    @Test
+    public void assertThatOnlyChainsWithASelectiveLeftmostCompoundAreRunTopDown() {
+        QueryStats stats = new QueryStats();
+        assertThat(selectedWith(doc, ".form-fields label + input", stats).length, is(6));
+        assertThat(stats.getInitialStrategy(), is(Strategy.BOTTOM_UP));
+        stats = new QueryStats();
+        assertThat(selectedWith(doc, "form .radio", stats), is(equalTo(elements("high", "medium", "low").from(doc))));
+        assertThat(stats.getInitialStrategy(), is(Strategy.BOTTOM_UP));
+        stats = new QueryStats();
+        assertThat(selectedWith(doc, ".form-fields > select option", stats), is(equalTo(elements("option-0", "option-1", "option-2", "option-3").from(doc))));
+        assertThat(stats.getInitialStrategy(), is(Strategy.TOP_DOWN));
+        assertThat(stats.getSwitchedAfter(), is(-1));
+    }
+
+    @Test
+    public void assertThatTopDownSelectsTheSameElementsAsBottomUp() {
+        String[] selectors = { "body *", "form fieldset > label", "html > body > div > h2", "fieldset > *", "body :checked",
+                "[type] ~ input" };
+        for (String selector : selectors) {
+            assertThat(selector, selectedWith(doc, selector, new QueryStats()), is(equalTo(filtered(doc, selector))));
+        }
+    }
+
+    @Test
+    public void assertThatTopDownSwitchesToBottomUpWhenTheLeftmostCompoundIsNotSelective() {
+        Document items = items(1000);
+        QueryStats stats = new QueryStats();
+        Element[] selected = selectedWith(items, ".item b", stats);
+        assertThat(selected, is(equalTo(filtered(items, ".item b"))));
+        assertThat(stats.getInitialStrategy(), is(Strategy.TOP_DOWN));
+        assertThat(stats.getStrategy(), is(Strategy.BOTTOM_UP));
+        assertThat(stats.getSwitchedAfter(), is(QueryExecutor.CHECKPOINT));
+        assertThat(stats.getMatches(), is(1000));
+    }
+
+    @Test
+    public void assertThatBottomUpSwitchesToTopDownWhenTheRightmostCompoundIsNotSelective() {
+        Document items = items(1000);
+        QueryStats stats = new QueryStats();
+        Element[] selected = selectedWith(items, "ul li", stats);
+        assertThat(selected, is(equalTo(filtered(items, "ul li"))));
+        assertThat(stats.getInitialStrategy(), is(Strategy.BOTTOM_UP));
+        assertThat(stats.getStrategy(), is(Strategy.TOP_DOWN));
+        assertThat(stats.getElementsVisited(), is(greaterThan(stats.getSwitchedAfter())));
+    }
+
+    static Document items(int count) {
+        StringBuilder html = new StringBuilder("<html><body><ul>");
+        for (int i = 0; i < count; i++) {
+            html.append("<li class=\"item\"><b>").append(i).append("</b></li>");
+        }
+        return doc(html.append("</ul></body></html>").toString());
+    }
+
+    static Element[] selectedWith(Document doc, String selector, QueryStats stats) {
+        return toArray(Selector.from(doc).select(selector, stats), Element.class);
+    }
+
+    static Element[] filtered(Document doc, String selector) {
+        CssSelector matcher = selectors(selector);
+        List<Element> matches = new ArrayList<Element>();
+        for (Node node = doc.getDocumentElement(); node != null; node = Nodes.following(node, doc.getDocumentElement())) {
+            if (Nodes.isElement(node) && matcher.matches((Element) node)) {
+                matches.add((Element) node);
+            }
+        }
+        return matches.toArray(new Element[matches.size()]);
+    }
+}
@@ -0,0 +1,58 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.CssSelectors.selectors;
+import static com.threelevers.css.Matchers.elements;
+import static com.threelevers.css.ScopePlanner.anchor;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasToString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+public class ScopePlannerTest {
+    static final Document doc = SelectorTest.doc;
+
+    @Test
+    public void assertThatTheRightmostIdFollowedByDescendingCombinatorsAnchorsTheSelector() {
+        assertThat(anchor(selectors("body #info-form fieldset > label")), hasToString("#info-form"));
+        assertThat(anchor(selectors("h1 ~ #info-form label")), hasToString("#info-form"));
+        assertThat(anchor(selectors("div#section1")), hasToString("#section1"));
+    }
+
+    @Test
+    public void assertThatUniqueTagsAnchorSelectorsWithoutIds() {
+        assertThat(anchor(selectors("body > div h2")), hasToString("body"));
+    }
+
+    @Test
+    public void assertThatSelectorsWithoutASelectiveCompoundAreNotAnchored() {
+        assertThat(anchor(selectors("div h2")), is(nullValue()));
+        assertThat(anchor(selectors("#title ~ div")), is(nullValue()));
+        assertThat(anchor(selectors("#section1 h2, h1")), is(nullValue()));
+    }
+
+    @Test
+    public void assertThatEveryPartOfAGroupingSelectorNeedsAnAnchor() {
+        assertThat(anchor(selectors("#section1 h2, body > h1")), hasToString("#section1, body"));
+    }
+
+    @Test
+    public void assertThatAnchoredSelectionOnlyFindsElementsInsideTheAnchors() {
+        assertThat(selectedWith(doc.getDocumentElement(), "#info-form label + input.text"), is(equalTo(elements("first-name", "last-name").from(doc))));
+        assertThat(selectedWith(doc.getDocumentElement(), "#section1 h2, #title"), is(equalTo(elements("title", "subtitle").from(doc))));
+    }
+
+    @Test
+    public void assertThatAnchorsAboveTheRootOfTheSelectionAreFound() {
+        assertThat(selectedWith(doc.getElementById("how-many"), "#info-form option[value=\"1\"]"), is(equalTo(elements("option-1").from(doc))));
+    }
+
+    static Element[] selectedWith(Element root, String selector) {
+        return toArray(Selector.from(root).select(selector), Element.class);
+    }
+}
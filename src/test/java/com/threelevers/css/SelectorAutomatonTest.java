@@ -0,0 +1,152 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import com.google.common.collect.ImmutableMap;
+
+public class SelectorAutomatonTest {
+    static final Document doc = SelectorTest.doc;
+
+    static final String XML =
+            "<catalog xmlns:x=\"urn:x\" lang=\"en\">" +
+            "<section id=\"s1\" class=\"books\">" +
+            "<h2 id=\"h1\">Books</h2>" +
+            "<item id=\"i1\" class=\"new\"><name id=\"n1\">One</name><price id=\"p1\">10</price></item>" +
+            "<item id=\"i2\"><name id=\"n2\">Two</name><x:price id=\"p2\">20</x:price></item>" +
+            "<note id=\"t1\"/>" +
+            "<item id=\"i3\" class=\"new old\" lang=\"fr\"><name id=\"n3\">Three</name></item>" +
+            "</section>" +
+            "<section id=\"s2\"><item id=\"i4\"><item id=\"i5\" class=\"new\"/></item></section>" +
+            "</catalog>";
+
+    @Test
+    public void assertThatEverySelectorSelectsTheSameElementsAsOnItsOwn() {
+        String[] selectors = { "#title", "div.section h2", "form label + input.text", "fieldset > :nth-child(odd of .radio)",
+                ".form-fields > select option", "h1 ~ p, option[value=\"2\"]", "body > :has(h2.sub, > fieldset)", "*",
+                "body div ~ form input:checked", "html > body > form fieldset > label ~ label + input", "p:empty",
+                "label:contains(\"name\" i)", "a:lang(en) ~ div h2, form ~ p" };
+        List<Iterable<Element>> selected = from(doc).selectEach(selectors);
+        for (int i = 0; i < selectors.length; i++) {
+            assertThat(selectors[i], elements(selected.get(i)), is(equalTo(elements(from(doc).select(selectors[i])))));
+        }
+    }
+
+    @Test
+    public void assertThatAncestorsAndSiblingsOutsideTheSubtreeAreMatched() {
+        Element fieldset = doc.getElementById("info-form-fieldset1");
+        for (String selector : new String[] { "body form input", "div ~ form select > option", "label + input", "form > fieldset" }) {
+            assertThat(selector, elements(from(fieldset).selectEach(selector).get(0)), is(equalTo(elements(from(fieldset).select(selector)))));
+        }
+    }
+
+    @Test
+    public void assertThatElementsAreNotMatchedBackwards() {
+        String[] selectors = { "div div div", "div > div > div", ".level span", "section div", "body > div" };
+        DomOperations operations = new DomOperations();
+        Document deep = operations.wrap(Corpus.deep(300));
+        long select = 0;
+        List<Element[]> backwards = new ArrayList<Element[]>();
+        for (String selector : selectors) {
+            operations.reset();
+            backwards.add(elements(from(deep).select(selector)));
+            select += operations.count();
+        }
+        operations.reset();
+        List<Iterable<Element>> forwards = from(deep).selectEach(selectors);
+        long selectEach = operations.count();
+        for (int i = 0; i < selectors.length; i++) {
+            assertThat(selectors[i], elements(forwards.get(i)), is(equalTo(backwards.get(i))));
+        }
+        assertThat(selectEach, is(lessThan(select / 3)));
+    }
+
+    @Test
+    public void assertThatStreamedDocumentsMatchTheSameElementsAsTheirTree() throws Exception {
+        String[] selectors = { "item", "section > item name", "section item + item", "h2 ~ item > name", "[class~=\"new\"]",
+                ".books > :nth-child(2n of item)", "item:first-of-type, note", "x|price", "item:lang(fr) name",
+                "section:not(.books) item item", "catalog > section ~ section item" };
+        final List<List<String>> streamed = new ArrayList<List<String>>();
+        for (int i = 0; i < selectors.length; i++) {
+            streamed.add(new ArrayList<String>());
+        }
+        parse(StreamingSelector.handler(ImmutableMap.of("x", "urn:x"), new StreamingSelector.Listener() {
+            public void matched(int selector, Element element) {
+                streamed.get(selector).add(element.getAttribute("id"));
+            }
+        }, selectors));
+        Document tree = tree();
+        for (int i = 0; i < selectors.length; i++) {
+            List<String> ids = new ArrayList<String>();
+            for (Element element : from(tree).namespace("x", "urn:x").select(selectors[i])) {
+                ids.add(element.getAttribute("id"));
+            }
+            // elements are passed on when they end, so children come before their parents
+            assertThat(selectors[i], sorted(streamed.get(i)), is(equalTo(sorted(ids))));
+        }
+    }
+
+    @Test
+    public void assertThatStreamedElementsComeWithTheirContent() throws Exception {
+        final List<Element> matched = new ArrayList<Element>();
+        parse(StreamingSelector.handler(new StreamingSelector.Listener() {
+            public void matched(int selector, Element element) {
+                matched.add(element);
+            }
+        }, "item.new"));
+        assertThat(matched.size(), is(3));
+        assertThat(matched.get(0).getTextContent(), is("One10"));
+        assertThat(matched.get(1).getElementsByTagName("name").item(0).getTextContent(), is("Three"));
+        assertThat(matched.get(0).getParentNode() == null, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void assertThatSelectorsLookingAheadCannotBeStreamed() {
+        StreamingSelector.handler(new StreamingSelector.Listener() {
+            public void matched(int selector, Element element) {}
+        }, "item", "section > item:last-child");
+    }
+
+    static void parse(ContentHandler handler) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        XMLReader reader = factory.newSAXParser().getXMLReader();
+        reader.setContentHandler(handler);
+        reader.parse(new InputSource(new StringReader(XML)));
+    }
+
+    static Document tree() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().parse(new InputSource(new StringReader(XML)));
+    }
+
+    static List<String> sorted(List<String> ids) {
+        List<String> sorted = new ArrayList<String>(ids);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    static Element[] elements(Iterable<Element> elements) {
+        return toArray(elements, Element.class);
+    }
+}
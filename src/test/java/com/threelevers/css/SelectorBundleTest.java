@@ -0,0 +1,129 @@
+package com.threelevers.css;
+
+import static com.google.common.collect.Iterables.toArray;
+import static com.threelevers.css.DocumentBuilder.doc;
+import static com.threelevers.css.Selector.from;
+import static java.util.Arrays.asList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.threelevers.css.CssSelectors.GroupingSelector;
+
+public class SelectorBundleTest {
+    static final Document doc = doc(
+            "<html>" +
+            "  <body id=\"body\">" +
+            "    <a id=\"en-link\" hreflang=\"en-US\" lang=\"en\">US</a>" +
+            "    <a id=\"fr-link\" hreflang=\"fr\" lang=\"fr\">Fr</a>" +
+            "    <h1 id=\"title\" class=\"main title\">Title</h1>" +
+            "    <div id=\"section1\" class=\"section\">" +
+            "      <h2 id=\"subtitle\" class=\"sub title\">Subtitle</h2>" +
+            "    </div>" +
+            "    <form id=\"info-form\">" +
+            "      <input type=\"text\" id=\"first-name\" name=\"first-name\" class=\"text\">" +
+            "      <input type=\"checkbox\" id=\"yes-no\" name=\"yes-no\" class=\"checkbox\" checked>" +
+            "      <input type=\"submit\" id=\"info-form-submit\" class=\"info form submit button\" disabled>" +
+            "    </form>" +
+            "    <p id=\"empty-p\"></p>" +
+            "  </body>" +
+            "</html>"
+    );
+
+    static final List<String> selectors = asList(
+            "#title",
+            "h1.main.title",
+            "body h2",
+            "div + form",
+            "body > form",
+            "h1 ~ p",
+            "a[hreflang|=\"en\"], [class~=\"checkbox\"]",
+            "[id^=\"first\"][name$=\"name\"]",
+            "[class*=id]",
+            "input:not([type=\"text\"])",
+            ":nth-child(2n+1)",
+            ":nth-last-child(odd)",
+            ":nth-child(odd of .checkbox, [type=\"text\"]), :nth-last-child(-n+1 of input)",
+            ":nth-of-type(even)",
+            ":nth-last-of-type(-n+2)",
+            "* :first-child, :last-child, :only-child",
+            ":first-of-type:last-of-type, :only-of-type",
+            ":empty, :enabled, :disabled, :checked, :selected",
+            "body > :has(h2.sub, > input:checked), h1:has(+ div ~ p)",
+            "a:contains(\"US\"), :contains(\"title\" i), :-text-matches(\"^F\"), :-text-matches(\"^s\" i)",
+            "*|H1, |INPUT[*|type=\"text\"], *|*[|class~=\"checkbox\"]",
+            "a:lang(en), :lang(\"fr\")"
+    );
+
+    @Test
+    public void assertThatSelectorsReadFromABundleAreEquivalentToParsedSelectors() throws IOException {
+        Map<String, GroupingSelector> read = SelectorBundle.read(new ByteArrayInputStream(bundle(selectors)));
+        for (String selector : selectors) {
+            GroupingSelector parsed = CssSelectors.parse(selector);
+            assertThat(read.get(selector).toString(), is(equalTo(parsed.toString())));
+            assertThat(select(read.get(selector)), is(equalTo(select(parsed))));
+        }
+    }
+
+    @Test
+    public void assertThatLoadedSelectorsAreUsedInsteadOfParsing() throws IOException {
+        assertThat(SelectorBundle.load(new ByteArrayInputStream(bundle(asList("h1 + div > h2")))), is(1));
+        assertThat(CssSelectors.selectors("h1 + div > h2"), is(sameInstance(CssSelectors.selectors("h1 + div > h2"))));
+        assertThat(toArray(from(doc).select("h1 + div > h2"), Element.class), is(equalTo(new Element[] { doc.getElementById("subtitle") })));
+    }
+
+    @Test(expected = IOException.class)
+    public void assertThatBundlesFromOtherVersionsAreRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(SelectorBundle.MAGIC);
+        out.writeInt(SelectorBundle.VERSION + 1);
+        out.writeInt(0);
+        SelectorBundle.read(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void assertThatStreamsWhichAreNotBundlesAreRejected() throws IOException {
+        SelectorBundle.read(new ByteArrayInputStream("h1, h2".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void assertThatMappedDocumentsAreRejected() {
+        try {
+            SelectorBundle.read(new ByteArrayInputStream(MappedDocumentsTest.bytes(doc)));
+            throw new AssertionError("not rejected");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("Not a selector bundle"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void assertThatTruncatedBundlesAreRejected() throws IOException {
+        byte[] bundle = bundle(selectors);
+        byte[] truncated = new byte[bundle.length / 2];
+        System.arraycopy(bundle, 0, truncated, 0, truncated.length);
+        SelectorBundle.read(new ByteArrayInputStream(truncated));
+    }
+
+    static byte[] bundle(List<String> selectors) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SelectorBundle.write(selectors, out);
+        return out.toByteArray();
+    }
+
+    static Element[] select(CssSelector selector) {
+        return toArray(Selector.select(doc.getDocumentElement(), selector), Element.class);
+    }
+}
@@ -0,0 +1,78 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import com.threelevers.css.ComplexityTest.Query;
+import com.threelevers.css.SelectorComplexity.Feature;
+
+public class SelectorComplexityTest {
+    @Test
+    public void assertThatTheGrowthInDepthIsWorkedOut() {
+        assertThat(SelectorComplexity.analyze("div.a > p + span").toString(), is("O(n)"));
+        assertThat(SelectorComplexity.analyze("div p").toString(), is("O(n*d)"));
+        assertThat(SelectorComplexity.analyze("div p, ul li a").toString(), is("O(n*d^2)"));
+        assertThat(SelectorComplexity.analyze("section div > p span").getDepthExponent(), is(2));
+        assertThat(SelectorComplexity.analyze("p:contains(\"x\")").getDepthExponent(), is(1));
+        assertThat(SelectorComplexity.analyze("tr:has(td span a)").getDepthExponent(), is(0));
+    }
+
+    @Test
+    public void assertThatExpensivePartsAreFlagged() {
+        assertFeatures("div p", EnumSet.noneOf(Feature.class));
+        assertFeatures("div p a", EnumSet.of(Feature.DESCENDANT_CHAIN));
+        assertFeatures("h1 ~ p", EnumSet.of(Feature.SIBLING_COMBINATOR));
+        assertFeatures("li:nth-last-child(2), p:first-of-type", EnumSet.of(Feature.SIBLING_COUNTING));
+        assertFeatures("[href=title]", EnumSet.of(Feature.ATTRIBUTE_COMPARISON));
+        assertFeatures("a:not([href=title])", EnumSet.of(Feature.ATTRIBUTE_COMPARISON, Feature.NEGATED_EXPENSIVE));
+        assertFeatures("div:has(p ~ a)", EnumSet.of(Feature.RELATIONAL, Feature.SIBLING_COMBINATOR));
+        assertFeatures("div:not(.a)", EnumSet.noneOf(Feature.class));
+        assertThat(SelectorComplexity.analyze("h1 ~ p").getWarnings(), hasItem("h1 ~ p: the siblings before every element are matched"));
+        assertThat(SelectorComplexity.analyze("p").getWarnings(), is(empty()));
+    }
+
+    @Test
+    public void assertThatTheEstimateFollowsTheWorkDone() {
+        assertThat(measured("p div div"), is(greaterThan(2.5)));
+        assertThat(SelectorComplexity.analyze("p div div").getDepthExponent(), is(2));
+        // the deep corpus is as deep as it is large, so a linear estimate in the depth is quadratic in the size
+        assertThat(measured("p > div > div"), is(lessThan(1.5)));
+        assertThat(SelectorComplexity.analyze("p > div > div").getDepthExponent(), is(0));
+    }
+
+    @Test
+    public void assertThatSelectorsAboveTheLimitAreRejected() {
+        PreparedDocument doc = PreparedDocument.prepare(Corpus.deep(1000));
+        SelectorComplexity linear = SelectorComplexity.analyze("div > span");
+        assertThat(linear.requireAtMost(1e6, doc.getElementCount(), doc.getMaxDepth()), is(equalTo(linear)));
+        try {
+            SelectorComplexity.analyze("p div div").requireAtMost(1e6, doc.getElementCount(), doc.getMaxDepth());
+            throw new AssertionError("not rejected");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage().contains("DESCENDANT_CHAIN") || e.getMessage().contains("descendant combinator"), is(true));
+        }
+    }
+
+    static void assertFeatures(String selector, EnumSet<Feature> features) {
+        assertThat(selector, SelectorComplexity.analyze(selector).getFeatures(), is(equalTo((Object) features)));
+    }
+
+    static double measured(final String selector) {
+        return ComplexityTest.exponent(ComplexityTest.DEEP, new Query() {
+            public void run(Document doc) {
+                from(doc).select(selector);
+            }
+        }, 50);
+    }
+}
@@ -0,0 +1,164 @@
+package com.threelevers.css;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+
+import org.antlr.runtime.RecognitionException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Preconditions;
+
+public class SelectorGrepTest {
+    File dir;
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    @Before
+    public void writeFiles() throws IOException {
+        dir = File.createTempFile("grep", "");
+        dir.delete();
+        dir.mkdir();
+        new File(dir, "pages").mkdir();
+        write("pages/login.html", "<html><body><form><input type=\"text\"><input type=\"password\"></form></body></html>");
+        write("pages/signup.htm", "<html><body><form><input type=\"password\"><input type=\"password\"></form></body></html>");
+        write("pages/about.html", "<html><body><p>About</p></body></html>");
+        write("pages/notes.txt", "<form><input type=\"password\"></form>");
+        write("feed.xml", "<feed><form><input type=\"password\"/></form></feed>");
+        OutputStream mapped = new FileOutputStream(new File(dir, "archived.cssd"));
+        try {
+            MappedDocuments.write(DocumentBuilder.doc("<html><body><form><input type=\"password\"></form></body></html>"), mapped);
+        } finally {
+            mapped.close();
+        }
+    }
+
+    @After
+    public void deleteFiles() {
+        delete(dir);
+    }
+
+    @Test
+    public void assertThatTheFilesWithMatchesAreListed() throws InterruptedException {
+        assertThat(grep("form input[type=\"password\"]", dir.getPath()), is(0));
+        assertThat(lines(), is(equalTo(new String[] { "archived.cssd", "feed.xml", "pages/login.html", "pages/signup.htm" })));
+        assertThat(err.toString(), containsString("5 files"));
+    }
+
+    @Test
+    public void assertThatMatchesCanBeCounted() throws InterruptedException {
+        assertThat(grep("-c", "-j", "1", "input[type=\"password\"]", new File(dir, "pages").getPath()), is(0));
+        assertThat(lines(), is(equalTo(new String[] { "pages/login.html:1", "pages/signup.htm:2" })));
+        assertThat(err.toString(), containsString("3 elements in 2 files"));
+    }
+
+    @Test
+    public void assertThatMatchedElementsCanBePrinted() throws InterruptedException {
+        assertThat(grep("-o", "p", new File(dir, "pages/about.html").getPath()), is(0));
+        assertThat(lines(), is(equalTo(new String[] { "pages/about.html:<P>About</P>" })));
+    }
+
+    @Test
+    public void assertThatNoMatchesAndErrorsAreReportedInTheExitStatus() throws InterruptedException {
+        assertThat(grep("table", dir.getPath()), is(1));
+        assertThat(grep("table", new File(dir, "missing.html").getPath()), is(2));
+        assertThat(grep("table"), is(2));
+        assertThat(grep("-x", "table", dir.getPath()), is(2));
+        assertThat(err.toString(), containsString(SelectorGrep.USAGE));
+    }
+
+    @Test
+    public void assertThatMatchesAreReportedEvenIfOtherFilesFail() throws InterruptedException {
+        File missing = new File(dir, "missing.html");
+        assertThat(grep("p", new File(dir, "pages/about.html").getPath(), missing.getPath()), is(0));
+        assertThat(lines(), is(equalTo(new String[] { "pages/about.html" })));
+        assertThat(err.toString(), containsString(missing.getPath() + ": "));
+    }
+
+    @Test
+    public void assertThatExceptionsWithoutAMessageAreNamed() {
+        assertThat(SelectorGrep.message(new IllegalStateException("closed")), is("closed"));
+        assertThat(SelectorGrep.message(new IndexOutOfBoundsException()), is("java.lang.IndexOutOfBoundsException"));
+        assertThat(SelectorGrep.message(new StackOverflowError()), is("java.lang.StackOverflowError"));
+        assertThat(SelectorGrep.message(new NoClassDefFoundError("a/B")), is("java.lang.NoClassDefFoundError: a/B"));
+    }
+
+    @Test
+    public void assertThatDoctypesAndExternalEntitiesAreNotLoaded() throws Exception {
+        write("secret.txt", "password");
+        write("saved.xhtml", "<?xml version=\"1.0\"?>" +
+                "<!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.0 Strict//EN\" \"http://unresolvable.invalid/xhtml1-strict.dtd\">" +
+                "<html xmlns=\"http://www.w3.org/1999/xhtml\"><body><p>Saved</p></body></html>");
+        write("hostile.xml", "<?xml version=\"1.0\"?>" +
+                "<!DOCTYPE feed [<!ENTITY secret SYSTEM \"" + new File(dir, "secret.txt").toURI() + "\">]>" +
+                "<feed><p>&secret;</p></feed>");
+        assertThat(grep("-o", "p", new File(dir, "saved.xhtml").getPath(), new File(dir, "hostile.xml").getPath()), is(0));
+        assertThat(err.toString(), not(containsString("unresolvable")));
+        assertThat(out.toString(), containsString("Saved"));
+        assertThat(out.toString(), not(containsString("password")));
+    }
+
+    @Test
+    public void assertThatFilesFailWithoutTheirParser() throws Exception {
+        URL[] classPath = { location(SelectorGrep.class), location(Preconditions.class), location(RecognitionException.class) };
+        ClassLoader withoutNekoHtml = new URLClassLoader(classPath, ClassLoader.getSystemClassLoader().getParent());
+        Method run = Class.forName(SelectorGrep.class.getName(), true, withoutNekoHtml)
+                .getDeclaredMethod("run", String[].class, PrintStream.class, PrintStream.class);
+        run.setAccessible(true);
+        String[] args = { "p", new File(dir, "pages/about.html").getPath() };
+        assertThat(run.invoke(null, args, new PrintStream(out, true), new PrintStream(err, true)), is((Object) 2));
+        assertThat(err.toString(), containsString("about.html: java.lang.NoClassDefFoundError"));
+    }
+
+    static URL location(Class<?> type) {
+        return type.getProtectionDomain().getCodeSource().getLocation();
+    }
+
+    int grep(String... args) throws InterruptedException {
+        return SelectorGrep.run(args, new PrintStream(out, true), new PrintStream(err, true));
+    }
+
+    /**
+     * @return the lines printed, with paths relative to the directory of the files and sorted, since files are printed
+     *         in the order they are done
+     */
+    String[] lines() {
+        String[] lines = out.toString().replace(dir.getPath() + File.separator, "").replace(File.separatorChar, '/').split("\n");
+        Arrays.sort(lines);
+        return lines;
+    }
+
+    void write(String path, String content) throws IOException {
+        OutputStream file = new FileOutputStream(new File(dir, path));
+        try {
+            file.write(content.getBytes("UTF-8"));
+        } finally {
+            file.close();
+        }
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
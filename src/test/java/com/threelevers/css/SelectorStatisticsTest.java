@@ -0,0 +1,99 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.Selector.from;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class SelectorStatisticsTest {
+    static final Document doc = SelectorTest.doc;
+
+    @After
+    public void disable() {
+        SelectorStatistics.disable();
+    }
+
+    @Test
+    public void assertThatNothingIsCollectedUntilEnabled() throws Exception {
+        assertThat(SelectorStatistics.current(), is(nullValue()));
+        assertThat(server().isRegistered(new ObjectName(SelectorStatistics.OBJECT_NAME)), is(false));
+        from(doc).select("label");
+        SelectorStatistics statistics = SelectorStatistics.enable();
+        assertThat(statistics.getQueryCount(), is(0L));
+        assertThat(SelectorStatistics.enable(), is(statistics));
+    }
+
+    @Test
+    public void assertThatQueriesAndParsesArePublished() throws Exception {
+        SelectorStatistics.enable();
+        for (int i = 0; i < 10; i++) {
+            from(doc).select("fieldset > label");
+        }
+        from(doc).select("div.section h2");
+        ObjectName name = new ObjectName(SelectorStatistics.OBJECT_NAME);
+        assertThat((Long) server().getAttribute(name, "QueryCount"), is(11L));
+        assertThat((Long) server().getAttribute(name, "ParseCount"), is(11L));
+        assertThat((Long) server().getAttribute(name, "CacheMisses"), is(11L));
+        assertThat((Long) server().getAttribute(name, "ElementsVisited"), is(greaterThan(11L)));
+        assertThat((Double) server().getAttribute(name, "QueryLatencyP99Micros"),
+                is(greaterThanOrEqualTo((Double) server().getAttribute(name, "QueryLatencyP50Micros"))));
+        String[] top = (String[]) server().getAttribute(name, "MostExpensiveSelectors");
+        assertThat(top.length, is(2));
+        assertThat(top[0], startsWith("fieldset > label: 10 queries"));
+        server().invoke(name, "reset", null, null);
+        assertThat((Long) server().getAttribute(name, "QueryCount"), is(0L));
+    }
+
+    @Test
+    public void assertThatCostsAreKeptByTheTextQueriedWith() {
+        SelectorStatistics statistics = SelectorStatistics.enable();
+        from(doc).select("fieldset  >label");
+        Selector.select(doc.getDocumentElement(), CssSelectors.parse("p,  h1"));
+        CssSelector parsed = CssSelectors.parse("p,  h1");
+        assertThat(parsed.toString(), is(sameInstance(parsed.toString())));
+        String[] top = statistics.getMostExpensiveSelectors();
+        assertThat(top.length, is(2));
+        assertThat(top[0].startsWith("fieldset  >label: ") || top[1].startsWith("fieldset  >label: "), is(true));
+        assertThat(top[0].startsWith("p, h1: ") || top[1].startsWith("p, h1: "), is(true));
+    }
+
+    @Test
+    public void assertThatSelectorsGettingHotLaterAreTracked() {
+        SelectorStatistics statistics = SelectorStatistics.enable();
+        for (int i = 0; i < SelectorStatistics.TRACKED + 10; i++) {
+            statistics.queried("#early" + i, 1000, 1);
+        }
+        for (int i = 0; i < 10; i++) {
+            statistics.queried("#late, .late", 1000, 1);
+        }
+        assertThat(statistics.getMostExpensiveSelectors()[0], startsWith("#late, .late: 10 queries"));
+    }
+
+    @Test
+    public void assertThatLatenciesAreBucketedWithinAnEighth() {
+        for (long nanos : new long[] { 0, 3, 4, 7, 8, 1000, 123456, 999999999L, Long.MAX_VALUE / 2 }) {
+            int bucket = SelectorStatistics.bucket(nanos);
+            assertThat(SelectorStatistics.lowerBound(bucket) <= nanos && nanos < SelectorStatistics.lowerBound(bucket + 1), is(true));
+            double middle = (SelectorStatistics.lowerBound(bucket) + SelectorStatistics.lowerBound(bucket + 1)) / 2.0;
+            assertThat(middle, is(closeTo(nanos, Math.max(nanos / 8.0, 1))));
+        }
+    }
+
+    static MBeanServer server() {
+        return ManagementFactory.getPlatformMBeanServer();
+    }
+}
@@ -297,6 +297,40 @@ public class SelectorTest {
         assertThat(elementsSelectedWith(":nth-last-of-type(even)"), is(equalTo(elements("en-link", "last-name-label", "last-name", "high-label", "high", "low-label", "low", "option-0", "option-2").from(doc))));
     }
     
+    @Test
+    public void assertThatElementsCanBeSelectedWithNthChildPseudoSelectorCountingOnlyMatchingSiblings() {
+        assertThat(elementsSelectedWith(":nth-child(odd of .radio)"), is(equalTo(elements("high", "low").from(doc))));
+    }
+    
+    @Test
+    public void assertThatElementsCanBeSelectedWithNthChildPseudoSelectorCountingSiblingsMatchingAnyOfAList() {
+        assertThat(elementsSelectedWith(":nth-child(2 of .radio, .checkbox)"), is(equalTo(elements("high").from(doc))));
+    }
+    
+    @Test
+    public void assertThatElementsCanBeSelectedWithNthLastChildPseudoSelectorCountingOnlyMatchingSiblings() {
+        assertThat(elementsSelectedWith("fieldset > :nth-last-child(1 of input)"), is(equalTo(elements("info-form-submit").from(doc))));
+    }
+    
+    @Test
+    public void assertThatOfIsANameOutsideNthChildPseudoSelectors() {
+        Document doc = doc(
+                "<html><body>" +
+                "  <div id=\"root\">" +
+                "    <of id=\"of\" class=\"of\" of=\"of\"></of>" +
+                "    <p id=\"p\"></p>" +
+                "    <of id=\"other\"></of>" +
+                "  </div>" +
+                "</body></html>");
+        for (String selector : new String[] { ".of", "#of", "[of]", "[of=\"of\"]", "div of.of", "of:not(#other)", ":nth-child(1 of of)" }) {
+            assertThat(selector, toArray(from(doc).select(selector), Element.class), is(equalTo(elements("of").from(doc))));
+        }
+        assertThat(toArray(from(doc).select("of"), Element.class), is(equalTo(elements("of", "other").from(doc))));
+        assertThat(toArray(from(doc).select(":nth-child( -n+2  of  .of, of)"), Element.class), is(equalTo(elements("of", "other").from(doc))));
+        assertThat(toArray(from(doc).select(":nth-last-child(1 of of)"), Element.class), is(equalTo(elements("other").from(doc))));
+        assertThat(toArray(from(doc).select("div > :not(of)"), Element.class), is(equalTo(elements("p").from(doc))));
+    }
+    
     @Test
     public void assertThatElementsCanBeSelectedWithFirstOfType() {
         assertThat(elementsSelectedWith(":first-of-type"), is(equalTo(elements("body", "en-link", "title", "section1", "subtitle", "info-form", "info-form-fieldset1", "first-name-label", "first-name", "how-many", "option-0", "empty-p").from(doc))));
@@ -337,6 +371,95 @@ public class SelectorTest {
         assertThat(elementsSelectedWith(":selected"), is(equalTo(elements("option-1").from(doc))));
     }
 
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasChild() {
+        assertThat(elementsSelectedWith("div:has(> h2)"), is(equalTo(elements("section1").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasDescendant() {
+        assertThat(elementsSelectedWith("form:has(input[type=\"checkbox\"])"), is(equalTo(elements("info-form").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasAdjacent() {
+        assertThat(elementsSelectedWith("label:has(+ input[type=\"radio\"])"), is(equalTo(elements("high-label", "medium-label", "low-label").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasSibling() {
+        assertThat(elementsSelectedWith("body > :has(~ form)"), is(equalTo(elements("en-link", "fr-link", "title", "section1").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasSelectorList() {
+        assertThat(elementsSelectedWith("body > :has(h2.sub, option)"), is(equalTo(elements("section1", "info-form").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasCombinatorChain() {
+        assertThat(elementsSelectedWith(":has(> fieldset > select option)"), is(equalTo(elements("info-form").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithNestedHas() {
+        assertThat(elementsSelectedWith("fieldset:has(select:has(option[value=\"1\"]))"), is(equalTo(elements("info-form-fieldset1").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithHasInsideACombinator() {
+        assertThat(elementsSelectedWith("body :has(> option) option"), is(equalTo(elements("option-0", "option-1", "option-2", "option-3").from(doc))));
+    }
+
+    @Test
+    public void assertThatNoElementsAreSelectedWithHasWhenNothingMatches() {
+        assertThat(elementsSelectedWith("p:has(*)"), is(emptyArray()));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithContains() {
+        assertThat(elementsSelectedWith("label:contains(\"Name\")"), is(equalTo(elements("first-name-label", "last-name-label").from(doc))));
+        assertThat(elementsSelectedWith("label:contains(\"name\")"), is(emptyArray()));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithContainsIgnoringCase() {
+        assertThat(elementsSelectedWith("label:contains(\"name\" i)"), is(equalTo(elements("first-name-label", "last-name-label").from(doc))));
+    }
+
+    @Test
+    public void assertThatContainsComparesTextWithItsWhiteSpaceCollapsed() {
+        assertThat(elementsSelectedWith("form :contains(\" Last   Name: \")"), is(equalTo(elements("info-form-fieldset1", "last-name-label").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedWithTextMatches() {
+        assertThat(elementsSelectedWith("option:-text-matches(\"^\\d{2}\")"), is(equalTo(elements("option-2", "option-3").from(doc))));
+        assertThat(elementsSelectedWith("a:-text-matches(\"^us$\" i)"), is(equalTo(elements("en-link").from(doc))));
+    }
+
+    @Test
+    public void assertThatElementsCanBeSelectedByTheirOwnLanguage() {
+        assertThat(elementsSelectedWith(":lang(en)"), is(equalTo(elements("en-link").from(doc))));
+        assertThat(elementsSelectedWith(":lang(\"FR\")"), is(equalTo(elements("fr-link").from(doc))));
+        assertThat(elementsSelectedWith(":lang(e)"), is(emptyArray()));
+    }
+
+    @Test
+    public void assertThatTheLanguageIsInheritedFromTheNearestAncestorWithOne() {
+        Document langs = doc(
+                "<html lang=\"en-US\">" +
+                "  <body id=\"body\">" +
+                "    <div id=\"fr\" lang=\"fr-CA\"><p id=\"fr-p\"><span id=\"fr-span\"></span></p></div>" +
+                "    <div id=\"unknown\" lang=\"\"><p id=\"unknown-p\"></p></div>" +
+                "    <p id=\"en-p\"></p>" +
+                "  </body>" +
+                "</html>");
+        assertThat(toArray(from(langs).select("body :lang(fr)"), Element.class), is(equalTo(elements("fr", "fr-p", "fr-span").from(langs))));
+        assertThat(toArray(from(langs).select("body :lang(en-us)"), Element.class), is(equalTo(elements("en-p").from(langs))));
+        assertThat(toArray(from(langs).select("body :lang(en)"), Element.class), is(equalTo(elements("en-p").from(langs))));
+    }
+
     static Element[] elementsSelectedWith(String selector) {
         return toArray(from(doc).select(selector), Element.class);
     }
@@ -0,0 +1,37 @@
+package com.threelevers.css;
+
+import static com.threelevers.css.DocumentBuilder.doc;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class TextIndexTest {
+    static final Document doc = doc(
+            "<html>" +
+            "  <body id=\"body\">" +
+            "    <p id=\"p\">  Price:\n <b id=\"b\"> 12 </b>\t<i id=\"i\">EUR</i> </p>" +
+            "    <p id=\"empty-p\">   </p>" +
+            "  </body>" +
+            "</html>"
+    );
+
+    @Test
+    public void assertThatTextIsNormalizedAcrossNestedElements() {
+        TextIndex index = new TextIndex();
+        assertThat(index.text(doc.getElementById("p")), is(equalTo("Price: 12 EUR")));
+        assertThat(index.text(doc.getElementById("b")), is(equalTo("12")));
+        assertThat(index.text(doc.getElementById("empty-p")), is(equalTo("")));
+    }
+
+    @Test
+    public void assertThatContainsOnlyLooksAtTheTextOfTheElement() {
+        TextIndex index = new TextIndex();
+        assertThat(index.contains(doc.getElementById("p"), "12 EUR", false), is(true));
+        assertThat(index.contains(doc.getElementById("b"), "12 EUR", false), is(false));
+        assertThat(index.contains(doc.getElementById("i"), "eur", true), is(true));
+        assertThat(index.contains(doc.getElementById("i"), "eur", false), is(false));
+    }
+}